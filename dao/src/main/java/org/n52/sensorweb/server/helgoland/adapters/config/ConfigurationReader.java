@@ -28,34 +28,256 @@
  */
 package org.n52.sensorweb.server.helgoland.adapters.config;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
 
+/**
+ * Provides the configured data sources, read from {@code /config-data-sources.json} on the classpath or from an
+ * external file.
+ * <p>
+ * An external file is polled for modifications. A modified file replaces the configuration and the
+ * {@link ConfigurationChangeListener listeners} are notified about the data sources which were added, removed or
+ * changed. A file which can not be read keeps the previous configuration, as does a file without data sources: it
+ * is rather incomplete, e.g. caught while being written, than meant to remove the data of all sources.
+ */
 public class ConfigurationReader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfigurationReader.class);
 
     private static final String CONFIG_FILE = "/config-data-sources.json";
 
-    private final DataSourcesConfiguration intervalConfig = readConfig();
+    private static final String DATA_SOURCES = "dataSources";
+
+    private static final String ITEM_NAME = "itemName";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final List<ConfigurationChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile Snapshot intervalConfig = readConfig();
+
+    private String externalConfigFile;
+
+    private int pollIntervalInSeconds = 30;
 
-    private DataSourcesConfiguration readConfig() {
+    private FileTime lastModified;
+
+    private ScheduledExecutorService watcher;
+
+    private Snapshot readConfig() {
         try (InputStream config = getClass().getResourceAsStream(CONFIG_FILE)) {
-            ObjectMapper om = new ObjectMapper();
-            return om.readValue(config, DataSourcesConfiguration.class);
+            return read(config);
         } catch (Exception e) {
-            LOGGER.error("Could not load {). Using empty config.", CONFIG_FILE, e);
-            return new DataSourcesConfiguration();
+            LOGGER.error("Could not load {}. Using empty config.", CONFIG_FILE, e);
+            return new Snapshot(new DataSourcesConfiguration(), Collections.emptyMap());
+        }
+    }
+
+    private Snapshot read(InputStream in) throws IOException {
+        JsonNode tree = objectMapper.readTree(in);
+        if (tree == null || !tree.isObject()) {
+            throw new IOException("The configuration is no JSON object");
+        }
+        DataSourcesConfiguration config = objectMapper.treeToValue(tree, DataSourcesConfiguration.class);
+        if (config.getDataSources() == null) {
+            config.setDataSources(new ArrayList<>());
+        }
+        // the raw configuration is compared, the parsed one is modified by the connectors
+        Map<String, JsonNode> raw = new HashMap<>();
+        tree.path(DATA_SOURCES).forEach(node -> raw.put(node.path(ITEM_NAME).asText(), node));
+        config.getDataSources().forEach(dataSource -> Optional.ofNullable(raw.get(dataSource.getItemName()))
+                .map(node -> Hashing.sha256().hashString(node.toString(), StandardCharsets.UTF_8).toString())
+                .ifPresent(dataSource::setConfigHash));
+        return new Snapshot(config, raw);
+    }
+
+    /**
+     * Reads the external configuration file and starts watching it for modifications.
+     */
+    public void start() {
+        if (externalConfigFile == null || externalConfigFile.trim().isEmpty()) {
+            return;
+        }
+        if (!reload()) {
+            LOGGER.warn("Could not load {}. Using {} from the classpath.", externalConfigFile, CONFIG_FILE);
+        }
+        if (pollIntervalInSeconds > 0) {
+            watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "data-source-config-watcher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::reloadIfModified, pollIntervalInSeconds, pollIntervalInSeconds,
+                    TimeUnit.SECONDS);
+            LOGGER.info("Watching {} for modifications every {}s", externalConfigFile, pollIntervalInSeconds);
+        }
+    }
+
+    public void stop() {
+        if (watcher != null) {
+            watcher.shutdownNow();
         }
     }
 
+    private void reloadIfModified() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(getExternalConfigPath());
+            if (!modified.equals(lastModified)) {
+                reload();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not check {} for modifications: {}", externalConfigFile, e.getMessage());
+        } catch (RuntimeException e) {
+            LOGGER.error("Could not reload {}", externalConfigFile, e);
+        }
+    }
+
+    /**
+     * Reads the external configuration file and notifies the listeners about changed data sources.
+     *
+     * @return if the file could be read
+     */
+    public synchronized boolean reload() {
+        Path path = getExternalConfigPath();
+        Snapshot current;
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(path);
+            try (InputStream in = Files.newInputStream(path)) {
+                current = read(in);
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not load {}. Keeping the previous configuration.", path, e);
+            return false;
+        }
+        Snapshot previous = intervalConfig;
+        if (current.config.getDataSources().isEmpty() && !previous.config.getDataSources().isEmpty()) {
+            LOGGER.error("{} configures no data sources. Keeping the previous configuration.", path);
+            return false;
+        }
+        lastModified = modified;
+        intervalConfig = current;
+        DataSourcesChange change = diff(previous, current);
+        if (!change.isEmpty()) {
+            LOGGER.info("Data source configuration changed: {}", change);
+            for (ConfigurationChangeListener listener : listeners) {
+                try {
+                    listener.configurationChanged(change);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Could not apply the changed data source configuration", e);
+                }
+            }
+        }
+        return true;
+    }
+
+    private DataSourcesChange diff(Snapshot previous, Snapshot current) {
+        Map<String, DataSourceConfiguration> before = byName(previous.config.getDataSources());
+        Map<String, DataSourceConfiguration> after = byName(current.config.getDataSources());
+        List<DataSourceConfiguration> added = new ArrayList<>();
+        List<DataSourceConfiguration> changed = new ArrayList<>();
+        Map<String, DataSourceConfiguration> changedBefore = new HashMap<>();
+        after.forEach((name, config) -> {
+            if (!before.containsKey(name)) {
+                added.add(config);
+            } else if (!Objects.equals(previous.raw.get(name), current.raw.get(name))) {
+                changed.add(config);
+                changedBefore.put(name, before.get(name));
+            }
+        });
+        List<DataSourceConfiguration> removed = new ArrayList<>();
+        before.forEach((name, config) -> {
+            if (!after.containsKey(name)) {
+                removed.add(config);
+            }
+        });
+        return new DataSourcesChange(added, removed, changed, changedBefore);
+    }
+
+    private Map<String, DataSourceConfiguration> byName(List<DataSourceConfiguration> configs) {
+        Map<String, DataSourceConfiguration> byName = new LinkedHashMap<>();
+        configs.forEach(config -> byName.put(config.getItemName(), config));
+        return byName;
+    }
+
+    private Path getExternalConfigPath() {
+        return Paths.get(externalConfigFile);
+    }
+
     public List<DataSourceConfiguration> getDataSource() {
-        return intervalConfig.getDataSources();
+        return intervalConfig.config.getDataSources();
+    }
+
+    public Optional<DataSourceConfiguration> getDataSource(String itemName) {
+        return getDataSource().stream().filter(config -> config.getItemName().equals(itemName)).findFirst();
+    }
+
+    public void addListener(ConfigurationChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(ConfigurationChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    public String getExternalConfigFile() {
+        return externalConfigFile;
+    }
+
+    /**
+     * @param externalConfigFile
+     *            the path of a configuration file replacing the one on the classpath, empty to use the classpath
+     */
+    public void setExternalConfigFile(String externalConfigFile) {
+        this.externalConfigFile = externalConfigFile;
+    }
+
+    public int getPollIntervalInSeconds() {
+        return pollIntervalInSeconds;
+    }
+
+    /**
+     * @param pollIntervalInSeconds
+     *            the interval the external configuration file is checked for modifications in, 0 to not watch it
+     */
+    public void setPollIntervalInSeconds(int pollIntervalInSeconds) {
+        this.pollIntervalInSeconds = pollIntervalInSeconds;
+    }
+
+    private static final class Snapshot {
+
+        private final DataSourcesConfiguration config;
+
+        private final Map<String, JsonNode> raw;
+
+        Snapshot(DataSourcesConfiguration config, Map<String, JsonNode> raw) {
+            this.config = config;
+            this.raw = raw;
+        }
     }
 
 }
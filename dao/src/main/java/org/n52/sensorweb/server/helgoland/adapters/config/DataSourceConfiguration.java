@@ -33,6 +33,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 public class DataSourceConfiguration {
 
     private String itemName;
@@ -43,6 +45,8 @@ public class DataSourceConfiguration {
     private boolean supportsFirstLast = true;
     private boolean disableHumanReadableName;
     private boolean supportsGDA;
+    private boolean harvestLatestValues;
+    private boolean harvestFirstValues;
     private List<String> allowedOfferings;
     private List<String> allowedSensors;
     private Map<String, String> getUrls = new LinkedHashMap<>();
@@ -50,6 +54,9 @@ public class DataSourceConfiguration {
 
     private DataSourceJobConfiguration job;
 
+    @JsonIgnore
+    private String configHash;
+
     public DataSourceJobConfiguration getJob() {
         return job;
     }
@@ -122,6 +129,30 @@ public class DataSourceConfiguration {
         this.disableHumanReadableName = disableHumanReadableName;
     }
 
+    public boolean isHarvestLatestValues() {
+        return harvestLatestValues;
+    }
+
+    /**
+     * @param harvestLatestValues
+     *            request the latest observation of all datasets while harvesting
+     */
+    public void setHarvestLatestValues(boolean harvestLatestValues) {
+        this.harvestLatestValues = harvestLatestValues;
+    }
+
+    public boolean isHarvestFirstValues() {
+        return harvestFirstValues;
+    }
+
+    /**
+     * @param harvestFirstValues
+     *            request the first observation of all datasets while harvesting
+     */
+    public void setHarvestFirstValues(boolean harvestFirstValues) {
+        this.harvestFirstValues = harvestFirstValues;
+    }
+
     public List<String> getAllowedOfferings() {
         return allowedOfferings;
     }
@@ -144,6 +175,19 @@ public class DataSourceConfiguration {
             + ", version=" + version + ", connector=" + connector + ", type=" + type + "}";
     }
 
+    /**
+     * @return the hash of the configuration as read, not affected by connectors completing the configuration
+     */
+    @JsonIgnore
+    public String getConfigHash() {
+        return configHash;
+    }
+
+    @JsonIgnore
+    public void setConfigHash(String configHash) {
+        this.configHash = configHash;
+    }
+
     public void addGetUrls(String key, String value) {
         getUrls.put(key, value);
     }
@@ -33,6 +33,14 @@ public class DataSourceJobConfiguration {
     private String cronExpression;
     private boolean enabled;
     private boolean triggerAtStartup;
+    private HarvestPriority priority = HarvestPriority.NORMAL;
+    private double weight = 1d;
+    private Integer jitterInSeconds;
+    private Integer spreadWindowInSeconds;
+    private Integer budgetInSeconds;
+    private Integer minIntervalInSeconds;
+    private Integer maxIntervalInSeconds;
+    private Integer freshnessInSeconds;
 
     public String getCronExpression() {
         return cronExpression;
@@ -58,4 +66,93 @@ public class DataSourceJobConfiguration {
         this.triggerAtStartup = triggerAtStartup;
     }
 
+    public HarvestPriority getPriority() {
+        return priority;
+    }
+
+    public void setPriority(HarvestPriority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the share of harvest slots this source gets compared to other sources of the same priority
+     */
+    public double getWeight() {
+        return weight;
+    }
+
+    public void setWeight(double weight) {
+        this.weight = weight;
+    }
+
+    /**
+     * @return the maximum delay the cron triggered harvest may be shifted by, or {@code null} to use the scheduler's
+     *         default
+     */
+    public Integer getJitterInSeconds() {
+        return jitterInSeconds;
+    }
+
+    public void setJitterInSeconds(Integer jitterInSeconds) {
+        this.jitterInSeconds = jitterInSeconds;
+    }
+
+    /**
+     * @return the window length harvests are repeated in, spreading all sources with the same window evenly within
+     *         it. If set, the cron expression is ignored.
+     */
+    public Integer getSpreadWindowInSeconds() {
+        return spreadWindowInSeconds;
+    }
+
+    public void setSpreadWindowInSeconds(Integer spreadWindowInSeconds) {
+        this.spreadWindowInSeconds = spreadWindowInSeconds;
+    }
+
+    /**
+     * @return the time a harvest may take before it is cancelled, or {@code null} to use the default budget
+     */
+    public Integer getBudgetInSeconds() {
+        return budgetInSeconds;
+    }
+
+    public void setBudgetInSeconds(Integer budgetInSeconds) {
+        this.budgetInSeconds = budgetInSeconds;
+    }
+
+    /**
+     * @return the shortest interval between harvests. If both bounds are set, the interval adapts to how often the
+     *         source changes and the cron expression and spread window are ignored.
+     */
+    public Integer getMinIntervalInSeconds() {
+        return minIntervalInSeconds;
+    }
+
+    public void setMinIntervalInSeconds(Integer minIntervalInSeconds) {
+        this.minIntervalInSeconds = minIntervalInSeconds;
+    }
+
+    /**
+     * @return the longest interval between harvests of a source which does not change
+     */
+    public Integer getMaxIntervalInSeconds() {
+        return maxIntervalInSeconds;
+    }
+
+    public void setMaxIntervalInSeconds(Integer maxIntervalInSeconds) {
+        this.maxIntervalInSeconds = maxIntervalInSeconds;
+    }
+
+    /**
+     * @return the time after a successful harvest in which the harvest at startup is skipped, or {@code null} to use
+     *         the default
+     */
+    public Integer getFreshnessInSeconds() {
+        return freshnessInSeconds;
+    }
+
+    public void setFreshnessInSeconds(Integer freshnessInSeconds) {
+        this.freshnessInSeconds = freshnessInSeconds;
+    }
+
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.config;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between two versions of the data source configuration, matched by item name.
+ */
+public final class DataSourcesChange {
+
+    private final List<DataSourceConfiguration> added;
+
+    private final List<DataSourceConfiguration> removed;
+
+    private final List<DataSourceConfiguration> changed;
+
+    private final Map<String, DataSourceConfiguration> previous;
+
+    DataSourcesChange(List<DataSourceConfiguration> added, List<DataSourceConfiguration> removed,
+            List<DataSourceConfiguration> changed, Map<String, DataSourceConfiguration> previous) {
+        this.added = Collections.unmodifiableList(added);
+        this.removed = Collections.unmodifiableList(removed);
+        this.changed = Collections.unmodifiableList(changed);
+        this.previous = Collections.unmodifiableMap(previous);
+    }
+
+    /**
+     * @return the new data sources
+     */
+    public List<DataSourceConfiguration> getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the previous configuration of the data sources which were removed
+     */
+    public List<DataSourceConfiguration> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the new configuration of the data sources which were changed
+     */
+    public List<DataSourceConfiguration> getChanged() {
+        return changed;
+    }
+
+    /**
+     * @param itemName
+     *            the name of a changed data source
+     * @return the previous configuration of the changed data source
+     */
+    public DataSourceConfiguration getPrevious(String itemName) {
+        return previous.get(itemName);
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d added, %d removed, %d changed", added.size(), removed.size(), changed.size());
+    }
+
+}
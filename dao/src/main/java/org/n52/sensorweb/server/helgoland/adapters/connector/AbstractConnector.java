@@ -29,10 +29,12 @@
 package org.n52.sensorweb.server.helgoland.adapters.connector;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpResponse;
@@ -42,10 +44,12 @@ import org.joda.time.Interval;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
 import org.n52.sensorweb.server.db.old.dao.DbQuery;
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceMetadata;
+import org.n52.sensorweb.server.helgoland.adapters.web.HttpClient;
 import org.n52.sensorweb.server.helgoland.adapters.web.SimpleHttpClient;
 import org.n52.sensorweb.server.db.assembler.value.ValueConnector;
 import org.n52.series.db.beans.DataEntity;
@@ -73,6 +77,7 @@ import org.n52.shetland.ogc.sos.gda.GetDataAvailabilityResponse.DataAvailability
 import org.n52.shetland.util.ReferencedEnvelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.common.primitives.Ints;
 
@@ -84,13 +89,38 @@ public abstract class AbstractConnector implements ValueConnector {
     private static final long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
     private static final long SOCKET_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
 
-    private Map<String, DataSourceConfiguration> dataSourceConfigurations = new LinkedHashMap<>();
-    private final SimpleHttpClient httpClient;
+    private final ConcurrentMap<String, ConnectorContext> contexts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CompletableFuture<ConnectorContext>> restorations = new ConcurrentHashMap<>();
+    private HttpClient httpClient;
+    private ConfigurationReader configurationProvider;
 
     public AbstractConnector() {
         httpClient = new SimpleHttpClient(Ints.checkedCast(CONNECTION_TIMEOUT), Ints.checkedCast(SOCKET_TIMEOUT));
     }
 
+    /**
+     * Replaces the client requests to the upstream services are sent with, e.g. to record or replay them.
+     *
+     * @param httpClient
+     *            the client to use
+     */
+    @Autowired(required = false)
+    public void setHttpClient(HttpClient httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    /**
+     * Provides the configuration to recreate the context of services harvested by another node or before a
+     * restart.
+     *
+     * @param configurationProvider
+     *            the data source configuration
+     */
+    @Autowired(required = false)
+    public void setConfigurationProvider(ConfigurationReader configurationProvider) {
+        this.configurationProvider = configurationProvider;
+    }
+
     public String getConnectorName() {
         return getName();
     }
@@ -102,7 +132,7 @@ public abstract class AbstractConnector implements ValueConnector {
 
     protected HttpResponse sendPostRequest(XmlObject request, String uri) throws IOException {
         LOGGER.debug("Executing POST request to {}\n{}", uri, request.xmlText());
-        return httpClient.executePost(uri, request);
+        return httpClient.executePost(uri, request.xmlText());
     }
 
     @Override
@@ -119,9 +149,18 @@ public abstract class AbstractConnector implements ValueConnector {
 
     protected void addService(DataSourceConfiguration config, ServiceConstellation serviceConstellation,
             ServiceMetadata serviceMetadata) {
+        addService(config, serviceConstellation, config.getConnector(), config.getVersion(), serviceMetadata);
+    }
+
+    /**
+     * Adds the service harvested by this connector. The configuration is shared by all harvests and requests of the
+     * data source, so the connector and version determined while harvesting are set at the service only.
+     */
+    protected void addService(DataSourceConfiguration config, ServiceConstellation serviceConstellation,
+            String connector, String version, ServiceMetadata serviceMetadata) {
         ServiceEntity service =
-                EntityBuilder.createService(config.getItemName(), "here goes description", config.getConnector(),
-                        config.getUrl(), config.getVersion(), config.isSupportsFirstLast(), serviceMetadata);
+                EntityBuilder.createService(config.getItemName(), "here goes description", connector,
+                        config.getUrl(), version, config.isSupportsFirstLast(), serviceMetadata);
         serviceConstellation.setService(service);
     }
 
@@ -357,11 +396,75 @@ public abstract class AbstractConnector implements ValueConnector {
         }
     }
 
-    protected void addServiceConfig(DataSourceConfiguration config) {
-        this.dataSourceConfigurations.put(config.getUrl(), config);
+    protected ConnectorContext registerContext(ConnectorContext context) {
+        this.contexts.put(context.getUrl(), context);
+        return context;
+    }
+
+    /**
+     * Returns the context of the service, restoring it if the service was harvested by another cluster node or
+     * before a restart. Concurrent requests for a missing context wait for a single restoration instead of each
+     * requesting the capabilities.
+     */
+    protected ConnectorContext getContext(String serviceUrl) {
+        ConnectorContext context = this.contexts.get(serviceUrl);
+        if (context != null) {
+            return context;
+        }
+        CompletableFuture<ConnectorContext> restoration = new CompletableFuture<>();
+        CompletableFuture<ConnectorContext> running = this.restorations.putIfAbsent(serviceUrl, restoration);
+        if (running != null) {
+            return awaitRestoration(running);
+        }
+        try {
+            // registered by a harvest or a restoration in the meantime
+            context = this.contexts.get(serviceUrl);
+            if (context == null) {
+                ConnectorContext restored = getConfiguration(serviceUrl).flatMap(this::restoreContext)
+                        .orElseThrow(() -> new ConnectorRequestFailedException(String.format(
+                                "The service '%s' was not harvested by %s yet.", serviceUrl, getConnectorName())));
+                context = this.contexts.putIfAbsent(serviceUrl, restored);
+                if (context == null) {
+                    context = restored;
+                }
+            }
+            restoration.complete(context);
+            return context;
+        } catch (RuntimeException e) {
+            restoration.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.restorations.remove(serviceUrl, restoration);
+        }
+    }
+
+    private ConnectorContext awaitRestoration(CompletableFuture<ConnectorContext> restoration) {
+        try {
+            return restoration.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ConnectorRequestFailedException) {
+                throw (ConnectorRequestFailedException) e.getCause();
+            }
+            throw new ConnectorRequestFailedException(e.getCause());
+        }
     }
 
-    protected DataSourceConfiguration getServiceConfig(String key) {
-        return this.dataSourceConfigurations.get(key);
+    private Optional<DataSourceConfiguration> getConfiguration(String serviceUrl) {
+        if (configurationProvider == null) {
+            return Optional.empty();
+        }
+        return configurationProvider.getDataSource().stream().filter(config -> serviceUrl.equals(config.getUrl()))
+                .findFirst();
+    }
+
+    /**
+     * Recreates the context of a service without harvesting it again.
+     *
+     * @param config
+     *            the configuration of the service
+     * @return the context, empty if the connector can not recreate it
+     */
+    protected Optional<ConnectorContext> restoreContext(DataSourceConfiguration config) {
+        return Optional.empty();
     }
 }
@@ -53,6 +53,7 @@ import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguratio
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.DataEntityBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
@@ -115,8 +116,6 @@ public abstract class AbstractSosConnector extends AbstractConnector {
 
     private static final String RETURN_HUMAN_READABLE_NAME = "returnHumanReadableIdentifier";
 
-    protected int counter;
-
     private DecoderRepository decoderRepository;
 
     private EncoderRepository encoderRepository;
@@ -170,7 +169,6 @@ public abstract class AbstractSosConnector extends AbstractConnector {
     }
 
     protected Object getSosResponseFor(OwsServiceRequest request, String namespace, String serviceUrl) {
-        counter++;
         try {
             EncoderKey encoderKey = CodingHelper.getEncoderKey(namespace, request);
             Encoder<XmlObject, OwsServiceRequest> encoder = getEncoderRepository().getEncoder(encoderKey);
@@ -189,7 +187,6 @@ public abstract class AbstractSosConnector extends AbstractConnector {
     }
 
     private Object getSosResponseFor(SoapRequest request, String namespace, String serviceUrl) {
-        counter++;
         try {
             EncoderKey encoderKey = CodingHelper.getEncoderKey(namespace, request);
             Encoder<XmlObject, Object> encoder = getEncoderRepository().getEncoder(encoderKey);
@@ -234,7 +231,7 @@ public abstract class AbstractSosConnector extends AbstractConnector {
 
     protected abstract boolean canHandle(DataSourceConfiguration config, GetCapabilitiesResponse capabilities);
 
-    public abstract ServiceConstellation getConstellation(DataSourceConfiguration config,
+    public abstract ServiceConstellation getConstellation(HarvestContext context,
             GetCapabilitiesResponse capabilities);
 
     protected DataEntity<?> createDataEntity(OmObservation observation, DatasetEntity seriesEntity) {
@@ -260,17 +257,18 @@ public abstract class AbstractSosConnector extends AbstractConnector {
 
     protected GetFeatureOfInterestResponse getFeatureOfInterest(String featureId, String procedureId, String obsProp,
             String serviceURL) {
-        DataSourceConfiguration config = getServiceConfig(serviceURL);
+        ConnectorContext context = getContext(serviceURL);
+        context.requestSent();
         try {
-            if (supportsKvp(config)) {
-                QueryBuilder builder = new QueryBuilder(getKvpUrl(config));
+            if (supportsKvp(context)) {
+                QueryBuilder builder = new QueryBuilder(getKvpUrl(context));
                 builder.add(OWSConstants.RequestParams.service, SosConstants.SOS);
                 builder.add(OWSConstants.RequestParams.version, Sos2Constants.SERVICEVERSION);
                 builder.add(OWSConstants.RequestParams.request, SosConstants.Operations.GetFeatureOfInterest);
                 builder.add(Sos2Constants.GetFeatureOfInterestParams.procedure, procedureId);
                 builder.add(Sos2Constants.GetFeatureOfInterestParams.observedProperty, obsProp);
                 builder.add(Sos2Constants.GetFeatureOfInterestParams.featureOfInterest, featureId);
-                checkHumanReadableName(config, builder);
+                checkHumanReadableName(context, builder);
                 return (GetFeatureOfInterestResponse) getSosResponseFor(builder.build());
             } else {
                 GetFeatureOfInterestRequest request =
@@ -278,47 +276,48 @@ public abstract class AbstractSosConnector extends AbstractConnector {
                 Optional.ofNullable(featureId).map(Arrays::asList).ifPresent(request::setFeatureIdentifiers);
                 Optional.ofNullable(procedureId).map(Arrays::asList).ifPresent(request::setProcedures);
                 Optional.ofNullable(obsProp).map(Arrays::asList).ifPresent(request::setObservedProperties);
-                if (supportsPox(config)) {
+                if (supportsPox(context)) {
                     return (GetFeatureOfInterestResponse) getSosResponseFor(request, Sos2Constants.NS_SOS_20,
-                            getPoxUrl(config).toString());
+                            getPoxUrl(context).toString());
                 }
                 SoapRequest soap =
                         new SoapRequest(SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE, SOAPConstants.SOAP_1_2_PROTOCOL);
                 soap.setSoapBodyContent(request);
                 return (GetFeatureOfInterestResponse) ((SoapResponse) getSosResponseFor(soap, SoapConstants.NS_SOAP_12,
-                        getSoapUrl(config).toString())).getBodyContent();
+                        getSoapUrl(context).toString())).getBodyContent();
             }
         } catch (MalformedURLException ex) {
             throw new IllegalArgumentException(ex);
         }
     }
 
-    protected DescribeSensorResponse describeSensor(String procedureId, String format,
-            DataSourceConfiguration config) {
+    protected DescribeSensorResponse describeSensor(String procedureId, String format, String serviceURL) {
+        ConnectorContext context = getContext(serviceURL);
+        context.requestSent();
         try {
-            if (supportsKvp(config)) {
-                QueryBuilder builder = new QueryBuilder(getKvpUrl(config));
+            if (supportsKvp(context)) {
+                QueryBuilder builder = new QueryBuilder(getKvpUrl(context));
                 builder.add(OWSConstants.RequestParams.service, SosConstants.SOS);
                 builder.add(OWSConstants.RequestParams.version, Sos2Constants.SERVICEVERSION);
                 builder.add(OWSConstants.RequestParams.request, SosConstants.Operations.DescribeSensor);
                 builder.add(Sos2Constants.DescribeSensorParams.procedureDescriptionFormat, format);
                 builder.add(SosConstants.DescribeSensorParams.procedure, procedureId);
-                checkHumanReadableName(config, builder);
+                checkHumanReadableName(context, builder);
                 return (DescribeSensorResponse) getSosResponseFor(builder.build());
             } else {
                 DescribeSensorRequest request =
                         new DescribeSensorRequest(SosConstants.SOS, Sos2Constants.SERVICEVERSION);
                 request.setProcedure(procedureId);
                 request.setProcedureDescriptionFormat(format);
-                if (supportsPox(config)) {
+                if (supportsPox(context)) {
                     return (DescribeSensorResponse) getSosResponseFor(request, SwesConstants.NS_SWES_20,
-                            getPoxUrl(config).toString());
+                            getPoxUrl(context).toString());
                 }
                 SoapRequest soap =
                         new SoapRequest(SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE, SOAPConstants.SOAP_1_2_PROTOCOL);
                 soap.setSoapBodyContent(request);
                 return (DescribeSensorResponse) ((SoapResponse) getSosResponseFor(soap, SoapConstants.NS_SOAP_12,
-                        getSoapUrl(config).toString())).getBodyContent();
+                        getSoapUrl(context).toString())).getBodyContent();
             }
         } catch (MalformedURLException ex) {
             throw new IllegalArgumentException(ex);
@@ -351,9 +350,10 @@ public abstract class AbstractSosConnector extends AbstractConnector {
 
     protected GetDataAvailabilityResponse getDataAvailability(String procedure, String offering, String phenomenon,
             String feature, String serviceURL) {
-        DataSourceConfiguration config = getServiceConfig(serviceURL);
+        ConnectorContext context = getContext(serviceURL);
+        context.requestSent();
         try {
-            QueryBuilder builder = new QueryBuilder(getKvpUrl(config));
+            QueryBuilder builder = new QueryBuilder(getKvpUrl(context));
             builder.add(OWSConstants.RequestParams.service, SosConstants.SOS);
             builder.add(OWSConstants.RequestParams.version, Sos2Constants.SERVICEVERSION);
             builder.add(OWSConstants.RequestParams.request, GetDataAvailabilityConstants.EN_GET_DATA_AVAILABILITY);
@@ -361,7 +361,7 @@ public abstract class AbstractSosConnector extends AbstractConnector {
             builder.add(GetDataAvailabilityConstants.GetDataAvailabilityParams.offering, offering);
             builder.add(GetDataAvailabilityConstants.GetDataAvailabilityParams.observedProperty, phenomenon);
             builder.add(GetDataAvailabilityConstants.GetDataAvailabilityParams.featureOfInterest, feature);
-            checkHumanReadableName(config, builder);
+            checkHumanReadableName(context, builder);
             return (GetDataAvailabilityResponse) getSosResponseFor(builder.build());
         } catch (MalformedURLException ex) {
             throw new IllegalArgumentException(ex);
@@ -414,28 +414,66 @@ public abstract class AbstractSosConnector extends AbstractConnector {
         return getObservation(request, serviceURL);
     }
 
+    protected GetObservationResponse getObservationsForOffering(String offering, TemporalFilter temporalFilter,
+            String serviceURL) {
+        GetObservationRequest request = new GetObservationRequest(SosConstants.SOS, Sos2Constants.SERVICEVERSION);
+        request.addOffering(offering);
+        Optional.ofNullable(temporalFilter).ifPresent(request::addTemporalFilter);
+        request.setResponseFormat(OmConstants.NS_OM_2);
+        return getObservation(request, serviceURL);
+    }
+
     private GetObservationResponse getObservation(GetObservationRequest request, String serviceURL) {
-        DataSourceConfiguration config = getServiceConfig(serviceURL);
+        ConnectorContext context = getContext(serviceURL);
+        context.requestSent();
         try {
-            if (supportsPox(config)) {
+            if (supportsPox(context)) {
                 return (GetObservationResponse) getSosResponseFor(request,
                         request.isSetVersion() && request.getVersion().equals(Sos1Constants.SERVICEVERSION)
                                 ? Sos1Constants.NS_SOS
                                 : Sos2Constants.NS_SOS_20,
-                        getPoxUrl(config).toString());
+                        getPoxUrl(context).toString());
             }
             SoapRequest soap =
                     new SoapRequest(SOAPConstants.URI_NS_SOAP_1_2_ENVELOPE, SOAPConstants.SOAP_1_2_PROTOCOL);
             soap.setSoapBodyContent(request);
             return (GetObservationResponse) ((SoapResponse) getSosResponseFor(soap, SoapConstants.NS_SOAP_12,
-                    getSoapUrl(config).toString())).getBodyContent();
+                    getSoapUrl(context).toString())).getBodyContent();
         } catch (MalformedURLException ex) {
             throw new IllegalArgumentException(ex);
         }
 
     }
 
-    protected void addBindingUrls(SosCapabilities capabilities, DataSourceConfiguration config) {
+    /**
+     * Recreates the context of a service from its capabilities.
+     */
+    @Override
+    protected Optional<ConnectorContext> restoreContext(DataSourceConfiguration config) {
+        LOGGER.info("Recreate the context of '{}' from its capabilities.", config.getItemName());
+        GetCapabilitiesResponse capabilities = getCapabilities(config);
+        return Optional.of(createContext(config, (SosCapabilities) capabilities.getCapabilities()).build());
+    }
+
+    protected GetCapabilitiesResponse getCapabilities(DataSourceConfiguration config) {
+        String url = config.getUrl() + (config.getUrl().contains("?") ? "&" : "?")
+                + "service=SOS&request=GetCapabilities";
+        if (config.isDisableHumanReadableName()) {
+            url += "&" + RETURN_HUMAN_READABLE_NAME + "=false";
+        }
+        return (GetCapabilitiesResponse) getSosResponseFor(url);
+    }
+
+    /**
+     * @return the context of the service with the binding URLs of the capabilities
+     */
+    protected ConnectorContext.Builder createContext(DataSourceConfiguration config, SosCapabilities capabilities) {
+        ConnectorContext.Builder builder = ConnectorContext.builder(config);
+        addBindingUrls(capabilities, builder);
+        return builder;
+    }
+
+    protected void addBindingUrls(SosCapabilities capabilities, ConnectorContext.Builder builder) {
         Optional<OwsOperation> operation = capabilities.getOperationsMetadata()
                 .map(OwsOperationsMetadata::getOperations).map(Set::stream).orElseGet(Stream::empty)
                 .filter(o -> o.getName().equals(SosConstants.Operations.GetObservation.name())).findFirst();
@@ -450,15 +488,15 @@ public abstract class AbstractSosConnector extends AbstractConnector {
                                     for (OwsValueRestriction restriction : domain.getPossibleValues().asAllowedValues()
                                             .getRestrictions()) {
                                         if (restriction.isValue()) {
-                                            config.addGetUrls(restriction.asValue().getValue(), rm.getHref()
-                                                    .orElse(URI.create(config.getUrl())).toString().replace("?", ""));
+                                            builder.addGetUrl(restriction.asValue().getValue(), rm.getHref()
+                                                    .orElse(URI.create(builder.getUrl())).toString().replace("?", ""));
                                         }
                                     }
                                 }
                             }
-                            if (config.getGetUrls().isEmpty()) {
-                                config.addGetUrls(DEFAULT,
-                                        rm.getHref().orElse(URI.create(config.getUrl())).toString());
+                            if (!builder.hasGetUrls()) {
+                                builder.addGetUrl(DEFAULT,
+                                        rm.getHref().orElse(URI.create(builder.getUrl())).toString());
                             }
                             break;
                         case "POST":
@@ -468,15 +506,15 @@ public abstract class AbstractSosConnector extends AbstractConnector {
                                     for (OwsValueRestriction restriction : domain.getPossibleValues().asAllowedValues()
                                             .getRestrictions()) {
                                         if (restriction.isValue()) {
-                                            config.addPostUrls(restriction.asValue().getValue(),
-                                                    rm.getHref().orElse(URI.create(config.getUrl())).toString());
+                                            builder.addPostUrl(restriction.asValue().getValue(),
+                                                    rm.getHref().orElse(URI.create(builder.getUrl())).toString());
                                         }
                                     }
                                 }
                             }
-                            if (config.getPostUrls().isEmpty()) {
-                                config.addPostUrls(DEFAULT,
-                                        rm.getHref().orElse(URI.create(config.getUrl())).toString());
+                            if (!builder.hasPostUrls()) {
+                                builder.addPostUrl(DEFAULT,
+                                        rm.getHref().orElse(URI.create(builder.getUrl())).toString());
                             }
                             break;
                         default:
@@ -488,50 +526,59 @@ public abstract class AbstractSosConnector extends AbstractConnector {
         }
     }
 
-    protected URL getKvpUrl(DataSourceConfiguration config) throws MalformedURLException {
-        return URI.create(config.getGetUrls().containsKey(MediaTypes.APPLICATION_KVP.toString())
-                ? config.getGetUrls().get(MediaTypes.APPLICATION_KVP.toString())
-                : config.getGetUrls().get(DEFAULT)).toURL();
+    protected URL getKvpUrl(ConnectorContext context) throws MalformedURLException {
+        return URI.create(context.getGetUrls().containsKey(MediaTypes.APPLICATION_KVP.toString())
+                ? context.getGetUrls().get(MediaTypes.APPLICATION_KVP.toString())
+                : context.getGetUrls().get(DEFAULT)).toURL();
     }
 
-    protected URL getSoapUrl(DataSourceConfiguration config) throws MalformedURLException {
-        return URI.create(config.getPostUrls().containsKey(MediaTypes.APPLICATION_SOAP_XML.toString())
-                ? config.getPostUrls().get(MediaTypes.APPLICATION_SOAP_XML.toString())
-                : config.getPostUrls().get(DEFAULT)).toURL();
+    protected URL getSoapUrl(ConnectorContext context) throws MalformedURLException {
+        return URI.create(context.getPostUrls().containsKey(MediaTypes.APPLICATION_SOAP_XML.toString())
+                ? context.getPostUrls().get(MediaTypes.APPLICATION_SOAP_XML.toString())
+                : context.getPostUrls().get(DEFAULT)).toURL();
     }
 
-    protected URL getPoxUrl(DataSourceConfiguration config) throws MalformedURLException {
-        return URI.create(config.getPostUrls().containsKey(MediaTypes.APPLICATION_KVP.toString())
-                ? config.getPostUrls().get(MediaTypes.APPLICATION_KVP.toString())
-                : config.getPostUrls().containsKey(MediaTypes.APPLICATION_XML.toString())
-                        ? config.getPostUrls().get(MediaTypes.APPLICATION_XML.toString())
-                        : config.getPostUrls().get(DEFAULT))
+    protected URL getPoxUrl(ConnectorContext context) throws MalformedURLException {
+        return URI.create(context.getPostUrls().containsKey(MediaTypes.APPLICATION_KVP.toString())
+                ? context.getPostUrls().get(MediaTypes.APPLICATION_KVP.toString())
+                : context.getPostUrls().containsKey(MediaTypes.APPLICATION_XML.toString())
+                        ? context.getPostUrls().get(MediaTypes.APPLICATION_XML.toString())
+                        : context.getPostUrls().get(DEFAULT))
                 .toURL();
     }
 
-    protected boolean supportsKvp(DataSourceConfiguration config) {
-        return !config.getGetUrls().isEmpty() && (config.getGetUrls().containsKey(DEFAULT)
-                || config.getGetUrls().containsKey(MediaTypes.APPLICATION_KVP.toString()));
+    protected boolean supportsKvp(ConnectorContext context) {
+        return !context.getGetUrls().isEmpty() && (context.getGetUrls().containsKey(DEFAULT)
+                || context.getGetUrls().containsKey(MediaTypes.APPLICATION_KVP.toString()));
     }
 
-    protected boolean supportsSoap(DataSourceConfiguration config) {
-        return !config.getPostUrls().isEmpty() && (config.getGetUrls().containsKey(DEFAULT)
-                || config.getPostUrls().containsKey(MediaTypes.APPLICATION_SOAP_XML.toString()));
+    /**
+     * @return if the context has a URL to post requests to, either as POX or as SOAP
+     */
+    protected boolean supportsPost(ConnectorContext context) {
+        return Stream.of(MediaTypes.APPLICATION_KVP, MediaTypes.APPLICATION_XML, MediaTypes.APPLICATION_SOAP_XML)
+                .map(Object::toString).anyMatch(context.getPostUrls()::containsKey)
+                || context.getPostUrls().containsKey(DEFAULT);
     }
 
-    protected boolean supportsPox(DataSourceConfiguration config) {
-        return !config.getPostUrls().isEmpty() && (config.getGetUrls().containsKey(MediaTypes.TEXT_XML.toString())
-                || config.getPostUrls().containsKey(MediaTypes.APPLICATION_XML.toString()));
+    protected boolean supportsSoap(ConnectorContext context) {
+        return !context.getPostUrls().isEmpty() && (context.getGetUrls().containsKey(DEFAULT)
+                || context.getPostUrls().containsKey(MediaTypes.APPLICATION_SOAP_XML.toString()));
     }
 
-    protected void checkHumanReadableName(DataSourceConfiguration config, QueryBuilder builder) {
-        if (config.isDisableHumanReadableName()) {
+    protected boolean supportsPox(ConnectorContext context) {
+        return !context.getPostUrls().isEmpty() && (context.getGetUrls().containsKey(MediaTypes.TEXT_XML.toString())
+                || context.getPostUrls().containsKey(MediaTypes.APPLICATION_XML.toString()));
+    }
+
+    protected void checkHumanReadableName(ConnectorContext context, QueryBuilder builder) {
+        if (context.isDisableHumanReadableName()) {
             builder.add(RETURN_HUMAN_READABLE_NAME, false);
         }
     }
 
-    protected void checkHumanReadableName(DataSourceConfiguration config, OwsServiceRequest request) {
-        if (config.isDisableHumanReadableName()) {
+    protected void checkHumanReadableName(ConnectorContext context, OwsServiceRequest request) {
+        if (context.isDisableHumanReadableName()) {
             SwesExtension<SweBoolean> ext = new SwesExtension<>();
             ext.setIdentifier(RETURN_HUMAN_READABLE_NAME);
             ext.setValue((SweBoolean) new SweBoolean().setValue(false).setIdentifier(RETURN_HUMAN_READABLE_NAME));
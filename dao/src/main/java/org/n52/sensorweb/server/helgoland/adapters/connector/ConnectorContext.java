@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.connector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.shetland.ogc.gml.AbstractFeature;
+
+/**
+ * State a connector needs to send requests to a harvested service: the binding URLs and capabilities flags
+ * determined while harvesting, which are immutable. A new context is created for each harvest and replaces the
+ * previous one of the same service URL, so harvests of different sources never share connector state.
+ * <p>
+ * The context is not immutable as a whole: the feature cache and the request counter are mutable and shared by the
+ * harvest and all request threads using the context. Both are thread-safe and live as long as the context.
+ */
+public final class ConnectorContext {
+
+    private final String itemName;
+
+    private final String url;
+
+    private final Map<String, String> getUrls;
+
+    private final Map<String, String> postUrls;
+
+    private final boolean supportsGDA;
+
+    private final boolean supportsFirstLast;
+
+    private final boolean disableHumanReadableName;
+
+    private final ConcurrentMap<String, AbstractFeature> featureCache = new ConcurrentHashMap<>();
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private ConnectorContext(Builder builder) {
+        this.itemName = builder.itemName;
+        this.url = builder.url;
+        this.getUrls = Collections.unmodifiableMap(new LinkedHashMap<>(builder.getUrls));
+        this.postUrls = Collections.unmodifiableMap(new LinkedHashMap<>(builder.postUrls));
+        this.supportsGDA = builder.supportsGDA;
+        this.supportsFirstLast = builder.supportsFirstLast;
+        this.disableHumanReadableName = builder.disableHumanReadableName;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Map<String, String> getGetUrls() {
+        return getUrls;
+    }
+
+    public Map<String, String> getPostUrls() {
+        return postUrls;
+    }
+
+    public boolean isSupportsGDA() {
+        return supportsGDA;
+    }
+
+    public boolean isSupportsFirstLast() {
+        return supportsFirstLast;
+    }
+
+    public boolean isDisableHumanReadableName() {
+        return disableHumanReadableName;
+    }
+
+    public ConcurrentMap<String, AbstractFeature> getFeatureCache() {
+        return featureCache;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void requestSent() {
+        requestCount.incrementAndGet();
+    }
+
+    public static Builder builder(DataSourceConfiguration config) {
+        return new Builder(config);
+    }
+
+    public static final class Builder {
+
+        private final String itemName;
+
+        private final String url;
+
+        private final Map<String, String> getUrls;
+
+        private final Map<String, String> postUrls;
+
+        private boolean supportsGDA;
+
+        private boolean supportsFirstLast;
+
+        private boolean disableHumanReadableName;
+
+        private Builder(DataSourceConfiguration config) {
+            this.itemName = config.getItemName();
+            this.url = config.getUrl();
+            this.getUrls = new LinkedHashMap<>(config.getGetUrls());
+            this.postUrls = new LinkedHashMap<>(config.getPostUrls());
+            this.supportsGDA = config.isSupportsGDA();
+            this.supportsFirstLast = config.isSupportsFirstLast();
+            this.disableHumanReadableName = config.isDisableHumanReadableName();
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public Builder addGetUrl(String key, String value) {
+            getUrls.put(key, value);
+            return this;
+        }
+
+        public boolean hasGetUrls() {
+            return !getUrls.isEmpty();
+        }
+
+        public Builder addPostUrl(String key, String value) {
+            postUrls.put(key, value);
+            return this;
+        }
+
+        public boolean hasPostUrls() {
+            return !postUrls.isEmpty();
+        }
+
+        public Builder setSupportsGDA(boolean supportsGDA) {
+            this.supportsGDA = supportsGDA;
+            return this;
+        }
+
+        public ConnectorContext build() {
+            return new ConnectorContext(this);
+        }
+
+    }
+
+}
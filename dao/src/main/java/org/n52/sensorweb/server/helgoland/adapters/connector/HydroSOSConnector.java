@@ -36,6 +36,7 @@ import java.util.Optional;
 import org.n52.janmayen.function.Functions;
 import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceMetadata;
 import org.n52.series.db.beans.DataEntity;
@@ -56,18 +57,23 @@ public class HydroSOSConnector extends SOS2Connector {
     private static final Logger LOGGER = LoggerFactory.getLogger(HydroSOSConnector.class);
 
     @Override
-    public ServiceConstellation getConstellation(DataSourceConfiguration config, GetCapabilitiesResponse capabilities) {
+    public ServiceConstellation getConstellation(HarvestContext context, GetCapabilitiesResponse capabilities) {
+        DataSourceConfiguration config = context.getConfig();
         ServiceConstellation serviceConstellation = new ServiceConstellation();
-        config.setVersion(Sos2Constants.SERVICEVERSION);
-        config.setConnector(getConnectorName());
-        addService(config, serviceConstellation, ServiceMetadata.createXmlServiceMetadata(capabilities.getXmlString()));
+        addService(config, serviceConstellation, getConnectorName(), Sos2Constants.SERVICEVERSION,
+                ServiceMetadata.createXmlServiceMetadata(capabilities.getXmlString()));
         SosCapabilities sosCaps = (SosCapabilities) capabilities.getCapabilities();
-        addBindingUrls(sosCaps, config);
-        addServiceConfig(config);
-        addDatasets(serviceConstellation, sosCaps, config);
+        registerContext(createContext(config, sosCaps).build());
+        addDatasets(serviceConstellation, sosCaps, context);
         return serviceConstellation;
     }
 
+    @Override
+    protected ConnectorContext.Builder createContext(DataSourceConfiguration config, SosCapabilities capabilities) {
+        // the availability of GetDataAvailability is configured only
+        return super.createContext(config, capabilities).setSupportsGDA(config.isSupportsGDA());
+    }
+
     @Override
     public List<DataEntity<?>> getObservations(DatasetEntity seriesEntity, DbQuery query) {
         // TODO set responseFormat and fix response enoding
@@ -40,6 +40,7 @@ import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguratio
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ProxyException;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
@@ -74,10 +75,11 @@ public class NestedOfferingsSOSConnector extends SOS2Connector {
     @Override
     protected void doForOffering(SosObservationOffering obsOff,
                                  ServiceConstellation serviceConstellation,
-                                 DataSourceConfiguration config) {
+                                 HarvestContext context) {
         obsOff.getExtension(RelatedOfferingConstants.RELATED_OFFERINGS)
                 .filter(Predicates.instanceOf(RelatedOfferings.class))
-                .ifPresent(e -> addNestedOfferings((RelatedOfferings) e, serviceConstellation, config.getUrl()));
+                .ifPresent(e -> addNestedOfferings((RelatedOfferings) e, serviceConstellation,
+                        context.getConfig().getUrl()));
     }
 
     @Override
@@ -43,6 +43,7 @@ import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.ProfileDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
@@ -203,13 +204,19 @@ public class OceanotronSosConnector extends SOS2Connector {
 
     @Override
     protected void addDatasets(ServiceConstellation serviceConstellation, SosCapabilities sosCaps,
-                               DataSourceConfiguration config) {
+                               HarvestContext context) {
+        DataSourceConfiguration config = context.getConfig();
         if (sosCaps != null) {
             sosCaps.getContents().ifPresent(obsOffs -> {
                 obsOffs.stream()
                         .filter(obsOff -> config.getAllowedOfferings() == null ||
                                           config.getAllowedOfferings().contains(obsOff.getIdentifier()))
-                        .forEach(obsOff -> addElem(obsOff, serviceConstellation, config.getUrl()));
+                        .filter(obsOff -> !context.isHarvested(obsOff.getIdentifier()))
+                        .forEach(obsOff -> {
+                            context.safePoint(serviceConstellation);
+                            addElem(obsOff, serviceConstellation, config.getUrl());
+                            context.offeringHarvested(obsOff.getIdentifier(), serviceConstellation);
+                        });
             });
         }
     }
@@ -30,7 +30,10 @@ package org.n52.sensorweb.server.helgoland.adapters.connector;
 
 import static java.util.stream.Collectors.toList;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import org.n52.janmayen.function.Functions;
@@ -38,16 +41,21 @@ import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.DatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.DataEntityBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceMetadata;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
 import org.n52.series.db.beans.UnitEntity;
+import org.n52.shetland.ogc.filter.TemporalFilter;
 import org.n52.shetland.ogc.gml.AbstractFeature;
 import org.n52.shetland.ogc.gml.time.Time;
 import org.n52.shetland.ogc.gml.time.TimeInstant;
 import org.n52.shetland.ogc.gml.time.TimePeriod;
+import org.n52.shetland.ogc.om.OmObservation;
+import org.n52.shetland.ogc.om.OmObservationConstellation;
 import org.n52.shetland.ogc.om.features.FeatureCollection;
 import org.n52.shetland.ogc.om.features.samplingFeatures.AbstractSamplingFeature;
 import org.n52.shetland.ogc.ows.OwsCapabilities;
@@ -85,22 +93,24 @@ public class SOS2Connector extends AbstractSosConnector {
     }
 
     @Override
-    public ServiceConstellation getConstellation(DataSourceConfiguration config,
-            GetCapabilitiesResponse capabilities) {
+    public ServiceConstellation getConstellation(HarvestContext context, GetCapabilitiesResponse capabilities) {
+        DataSourceConfiguration config = context.getConfig();
         ServiceConstellation serviceConstellation = new ServiceConstellation();
-        config.setVersion(Sos2Constants.SERVICEVERSION);
-        config.setConnector(getConnectorName());
-        addService(config, serviceConstellation,
+        addService(config, serviceConstellation, getConnectorName(), Sos2Constants.SERVICEVERSION,
                 ServiceMetadata.createXmlServiceMetadata(capabilities.getXmlString()));
         SosCapabilities sosCaps = (SosCapabilities) capabilities.getCapabilities();
-        config.setSupportsGDA(supportsGDA(sosCaps));
-        addBindingUrls(sosCaps, config);
-        addServiceConfig(config);
-        addDatasets(serviceConstellation, sosCaps, config);
-        LOGGER.info("{} requests were send to harvest the service {}", counter, config.getItemName());
+        ConnectorContext connectorContext = registerContext(createContext(config, sosCaps).build());
+        addDatasets(serviceConstellation, sosCaps, context);
+        LOGGER.info("{} requests were send to harvest the service {}", connectorContext.getRequestCount(),
+                config.getItemName());
         return serviceConstellation;
     }
 
+    @Override
+    protected ConnectorContext.Builder createContext(DataSourceConfiguration config, SosCapabilities capabilities) {
+        return super.createContext(config, capabilities).setSupportsGDA(supportsGDA(capabilities));
+    }
+
     @Override
     public List<DataEntity<?>> getObservations(DatasetEntity seriesEntity, DbQuery query) {
         List<DataEntity<?>> data = getObservation(seriesEntity, createTimeFilter(query)).getObservationCollection()
@@ -129,24 +139,40 @@ public class SOS2Connector extends AbstractSosConnector {
     }
 
     protected void addDatasets(ServiceConstellation serviceConstellation, SosCapabilities sosCaps,
-            DataSourceConfiguration config) {
-        sosCaps.getContents().ifPresent(
-                contents -> contents.forEach(sosObsOff -> doForOffering(sosObsOff, serviceConstellation, config)));
+            HarvestContext context) {
+        sosCaps.getContents().ifPresent(contents -> contents.forEach(sosObsOff -> {
+            context.safePoint(serviceConstellation);
+            if (context.isHarvested(sosObsOff.getIdentifier())) {
+                LOGGER.debug("Skip offering '{}' harvested by a previous run", sosObsOff.getIdentifier());
+            } else {
+                doForOffering(sosObsOff, serviceConstellation, context);
+                context.offeringHarvested(sosObsOff.getIdentifier(), serviceConstellation);
+            }
+        }));
     }
 
     protected void doForOffering(SosObservationOffering offering, ServiceConstellation serviceConstellation,
-            DataSourceConfiguration config) {
+            HarvestContext context) {
+        DataSourceConfiguration config = context.getConfig();
+        ConnectorContext connectorContext = getContext(config.getUrl());
         LOGGER.debug("Harvest data for offering '{}'", offering.getIdentifier());
         String offeringId = addOffering(offering, serviceConstellation);
+        Map<String, DataEntity<?>> latestValues = config.isHarvestLatestValues()
+                ? getObservationValues(offeringId, createLatestTimefilter(), connectorContext)
+                : Collections.emptyMap();
+        Map<String, DataEntity<?>> firstValues = config.isHarvestFirstValues()
+                ? getObservationValues(offeringId, createFirstTimefilter(), connectorContext)
+                : Collections.emptyMap();
 
         offering.getProcedures().forEach(procedureId -> {
+            context.safePoint(serviceConstellation);
             try {
                 addProcedure(procedureId, true, false, serviceConstellation);
                 GetFeatureOfInterestResponse foiResponse =
                         getFeatureOfInterestByProcedure(procedureId, config.getUrl());
                 AbstractFeature abstractFeature = foiResponse.getAbstractFeature();
                 addFeature(abstractFeature, serviceConstellation);
-                if (config.isSupportsGDA()) {
+                if (connectorContext.isSupportsGDA()) {
                     GetDataAvailabilityResponse gdaResponse =
                             getDataAvailabilityByProcedure(procedureId, config.getUrl());
                     if (gdaResponse != null) {
@@ -191,9 +217,64 @@ public class SOS2Connector extends AbstractSosConnector {
             } catch (Exception e) {
                 LOGGER.debug(String.format("Error while processing offering '%s'", offeringId), e);
             }
+            if (!latestValues.isEmpty() || !firstValues.isEmpty()) {
+                setObservationValues(offeringId, procedureId, serviceConstellation, latestValues, firstValues);
+            }
+            context.datasetsAdded(serviceConstellation);
         });
     }
 
+    /**
+     * Requests the first or latest observation of all datasets of the offering with a single GetObservation. The
+     * values are optional, a failed request does not affect the harvest of the offering.
+     *
+     * @return the observations by {@link #valueKey(String, String, String)}
+     */
+    private Map<String, DataEntity<?>> getObservationValues(String offeringId, TemporalFilter temporalFilter,
+            ConnectorContext connectorContext) {
+        if (!connectorContext.isSupportsFirstLast() || !supportsPost(connectorContext)) {
+            // the request is posted, KVP only services are not asked
+            return Collections.emptyMap();
+        }
+        Map<String, DataEntity<?>> values = new HashMap<>();
+        try {
+            getObservationsForOffering(offeringId, temporalFilter, connectorContext.getUrl())
+                    .getObservationCollection().toStream()
+                    // the datasets are quantity datasets, text or boolean values cannot be stored
+                    .filter(DataEntityBuilder::hasNumericValue)
+                    .forEach(observation -> values.put(valueKey(observation),
+                            DataEntityBuilder.createQuantityDataEntity(observation)));
+        } catch (RuntimeException e) {
+            // failed requests, unusable binding URLs and unexpected responses
+            LOGGER.warn("Could not request observation values of offering '{}': {}", offeringId, e.getMessage());
+            return Collections.emptyMap();
+        }
+        return values;
+    }
+
+    private void setObservationValues(String offeringId, String procedureId,
+            ServiceConstellation serviceConstellation, Map<String, DataEntity<?>> latestValues,
+            Map<String, DataEntity<?>> firstValues) {
+        serviceConstellation.getDatasets().stream()
+                .filter(dataset -> procedureId.equals(dataset.getProcedure())
+                        && offeringId.equals(dataset.getOffering()))
+                .forEach(dataset -> {
+                    String key = valueKey(dataset.getProcedure(), dataset.getPhenomenon(), dataset.getFeature());
+                    Optional.ofNullable(latestValues.get(key)).ifPresent(dataset::setLatest);
+                    Optional.ofNullable(firstValues.get(key)).ifPresent(dataset::setFirst);
+                });
+    }
+
+    private String valueKey(OmObservation observation) {
+        OmObservationConstellation constellation = observation.getObservationConstellation();
+        return valueKey(constellation.getProcedureIdentifier(), constellation.getObservablePropertyIdentifier(),
+                constellation.getFeatureOfInterestIdentifier());
+    }
+
+    private String valueKey(String procedure, String phenomenon, String feature) {
+        return procedure + "|" + phenomenon + "|" + feature;
+    }
+
     private DatasetConstellation addPhenomenonTime(QuantityDatasetConstellation quantityDatasetConstellation,
             SosObservationOffering offering) {
         if (offering.isSetPhenomenonTime()) {
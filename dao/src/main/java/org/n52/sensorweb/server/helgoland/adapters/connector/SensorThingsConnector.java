@@ -47,6 +47,7 @@ import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.sensorthings.Datastream;
 import org.n52.sensorweb.server.helgoland.adapters.sensorthings.Datastreams;
@@ -99,26 +100,35 @@ public class SensorThingsConnector extends AbstractConnector {
         return Optional.of(createObservationBounds(entity, "desc"));
     }
 
-    public ServiceConstellation getConstellation(DataSourceConfiguration config) {
+    public ServiceConstellation getConstellation(HarvestContext context) {
+        DataSourceConfiguration config = context.getConfig();
         ServiceConstellation serviceConstellation = new ServiceConstellation();
-        config.setConnector(getConnectorName());
-        addService(config, serviceConstellation, null);
-        createDatasets(serviceConstellation, config.getUrl());
+        addService(config, serviceConstellation, getConnectorName(), config.getVersion(), null);
+        createDatasets(serviceConstellation, context);
         return serviceConstellation;
     }
 
-    private void createDatasets(ServiceConstellation serviceConstellation, String url) {
-        Datastreams datastreams = getDatastreams(url);
-        doForDatastreams(datastreams, serviceConstellation);
+    private void createDatasets(ServiceConstellation serviceConstellation, HarvestContext context) {
+        Optional<String> resumeLink = context.getResumeLink();
+        Datastreams datastreams = resumeLink.isPresent()
+                ? (Datastreams) doGetRequest(resumeLink.get(), Datastreams.class)
+                : getDatastreams(context.getConfig());
+        doForDatastreams(datastreams, serviceConstellation, context);
+        context.pageHarvested(datastreams.getNextLink(), serviceConstellation);
         while (datastreams.getNextLink() != null) {
+            context.safePoint(serviceConstellation);
             datastreams = (Datastreams) doGetRequest(datastreams.getNextLink(), Datastreams.class);
-            doForDatastreams(datastreams, serviceConstellation);
+            doForDatastreams(datastreams, serviceConstellation, context);
+            context.pageHarvested(datastreams.getNextLink(), serviceConstellation);
         }
     }
 
-    private void doForDatastreams(Datastreams datastreams, ServiceConstellation serviceConstellation) {
+    private void doForDatastreams(Datastreams datastreams, ServiceConstellation serviceConstellation,
+            HarvestContext context) {
         datastreams.getValue().forEach((Datastream datastream) -> {
+            context.safePoint(serviceConstellation);
             doForDatastream(datastream, serviceConstellation);
+            context.datasetsAdded(serviceConstellation);
         });
     }
 
@@ -137,6 +147,8 @@ public class SensorThingsConnector extends AbstractConnector {
                                                                                           featureId,
                                                                                           offeringId);
             constellation.setIdentifier(Integer.toString(datastream.getIotID()));
+            Optional.ofNullable(datastream.getObservations()).flatMap(o -> o.stream().findFirst())
+                    .map(this::createObservation).ifPresent(constellation::setLatest);
             constellation.setUnit(EntityBuilder.createUnit(datastream.getUnitOfMeasurement().getSymbol(),
                                                            datastream.getUnitOfMeasurement().getDefinition(),
                                                            serviceConstellation.getService()));
@@ -162,8 +174,13 @@ public class SensorThingsConnector extends AbstractConnector {
         return doGetRequest(url + entity, clazz);
     }
 
-    private Datastreams getDatastreams(String url) {
-        return (Datastreams) doGetRequest(url, "Datastreams?$expand=Sensor,Thing,ObservedProperty", Datastreams.class);
+    private Datastreams getDatastreams(DataSourceConfiguration config) {
+        String expand = "Datastreams?$expand=Sensor,Thing,ObservedProperty";
+        if (config.isHarvestLatestValues()) {
+            // the latest observation of each datastream is returned with the datastream page
+            expand += ",Observations($orderby=phenomenonTime%20desc;$top=1)";
+        }
+        return (Datastreams) doGetRequest(config.getUrl(), expand, Datastreams.class);
     }
 
     private List<DataEntity<?>> createObservations(DatasetEntity seriesEntity, DateTime start, DateTime end) {
@@ -42,6 +42,7 @@ import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceMetadata;
 import org.n52.series.db.beans.DataEntity;
@@ -87,14 +88,13 @@ public class TrajectorySOSConnector extends AbstractSosConnector {
     }
 
     @Override
-    public ServiceConstellation getConstellation(DataSourceConfiguration config, GetCapabilitiesResponse capabilities) {
+    public ServiceConstellation getConstellation(HarvestContext context, GetCapabilitiesResponse capabilities) {
+        DataSourceConfiguration config = context.getConfig();
         ServiceConstellation serviceConstellation = new ServiceConstellation();
-        config.setVersion(Sos2Constants.SERVICEVERSION);
-        config.setConnector(getConnectorName());
-        addService(config, serviceConstellation, ServiceMetadata.createXmlServiceMetadata(capabilities.getXmlString()));
+        addService(config, serviceConstellation, getConnectorName(), Sos2Constants.SERVICEVERSION,
+                ServiceMetadata.createXmlServiceMetadata(capabilities.getXmlString()));
         SosCapabilities sosCaps = (SosCapabilities) capabilities.getCapabilities();
-        addBindingUrls(sosCaps, config);
-        addServiceConfig(config);
+        registerContext(createContext(config, sosCaps).build());
         addDatasets(serviceConstellation, sosCaps, config.getUrl());
         return serviceConstellation;
     }
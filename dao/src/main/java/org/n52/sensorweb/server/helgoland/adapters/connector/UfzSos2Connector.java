@@ -33,6 +33,7 @@ import org.n52.sensorweb.server.db.old.dao.DbQuery;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.QuantityDatasetConstellation;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.EntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
@@ -51,11 +52,9 @@ import org.n52.shetland.ogc.sensorML.elements.SmlIdentifier;
 import org.n52.shetland.ogc.sensorML.elements.SmlIo;
 import org.n52.shetland.ogc.sensorML.v20.AbstractProcessV20;
 import org.n52.shetland.ogc.sensorML.v20.PhysicalSystem;
-import org.n52.shetland.ogc.sos.SosCapabilities;
 import org.n52.shetland.ogc.sos.SosObservationOffering;
 import org.n52.shetland.ogc.sos.SosProcedureDescription;
 import org.n52.shetland.ogc.sos.response.DescribeSensorResponse;
-import org.n52.shetland.ogc.sos.response.GetFeatureOfInterestResponse;
 import org.n52.shetland.ogc.swe.SweAbstractDataComponent;
 import org.n52.shetland.ogc.swe.simpleType.SweQuantity;
 import org.n52.shetland.ogc.swe.simpleType.SweText;
@@ -65,9 +64,7 @@ import org.springframework.stereotype.Component;
 
 import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Optional;
 import java.util.SortedSet;
 
@@ -76,8 +73,6 @@ public class UfzSos2Connector extends SOS2Connector {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(UfzSos2Connector.class);
 
-    private Map<String, AbstractFeature> featureCache = new LinkedHashMap<>();
-
     @Override
     public List<DataEntity<?>> getObservations(DatasetEntity seriesEntity, DbQuery query) {
         return Collections.emptyList();
@@ -105,16 +100,10 @@ public class UfzSos2Connector extends SOS2Connector {
         // .map(obs -> createDataEntity(obs, dataset));
     }
 
-    @Override
-    protected void addDatasets(ServiceConstellation serviceConstellation, SosCapabilities sosCaps,
-                               DataSourceConfiguration config) {
-        this.featureCache.clear();
-        super.addDatasets(serviceConstellation, sosCaps, config);
-    }
-
     @Override
     protected void doForOffering(SosObservationOffering obsOff, ServiceConstellation serviceConstellation,
-                                 DataSourceConfiguration config) {
+                                 HarvestContext context) {
+        DataSourceConfiguration config = context.getConfig();
         String offeringId = addOffering(obsOff, serviceConstellation);
 
         obsOff.getProcedures().stream()
@@ -127,9 +116,10 @@ public class UfzSos2Connector extends SOS2Connector {
                 return false;
             })
             .forEach(procedureId -> {
+                context.safePoint(serviceConstellation);
                 try {
                     String format = getFormat(obsOff.getProcedureDescriptionFormats());
-                    DescribeSensorResponse dsr = describeSensor(procedureId, format, config);
+                    DescribeSensorResponse dsr = describeSensor(procedureId, format, config.getUrl());
                     if (dsr.isSetProcedureDescriptions()) {
                         for (SosProcedureDescription<?> pd : dsr.getProcedureDescriptions()) {
                             if (format.equals(SensorML20Constants.NS_SML_20)) {
@@ -206,6 +196,7 @@ public class UfzSos2Connector extends SOS2Connector {
                 } catch (Exception e) {
                     LOGGER.error(String.format("Error while harvesting offering '%s'!", offeringId), e);
                 }
+                context.datasetsAdded(serviceConstellation);
 
                 // getchilds
                 // add parent^
@@ -283,8 +274,9 @@ public class UfzSos2Connector extends SOS2Connector {
                                 ServiceConstellation serviceConstellation) {
         if (ap.isSetSmlFeatureOfInterest() && ap.getSmlFeatureOfInterest().isSetFeatures()) {
             for (String identifier : ap.getSmlFeatureOfInterest().getFeaturesOfInterest()) {
-                GetFeatureOfInterestResponse foiResponse = getFeatureOfInterestById(identifier, config.getUrl());
-                AbstractFeature abstractFeature = foiResponse.getAbstractFeature();
+                // features are shared by many sensors, request each of them once per harvest
+                AbstractFeature abstractFeature = getContext(config.getUrl()).getFeatureCache().computeIfAbsent(
+                    identifier, id -> getFeatureOfInterestById(id, config.getUrl()).getAbstractFeature());
                 return addFeature((AbstractSamplingFeature) abstractFeature, serviceConstellation);
             }
         }
@@ -82,9 +82,19 @@ public final class DataEntityBuilder {
         return setCommonValues(observation, dataEntity);
     }
 
+    /**
+     * @param observation
+     *            the observation
+     * @return if the observation has a single numeric value, e.g. a measurement or a count, which can be stored as
+     *         a quantity
+     */
+    public static boolean hasNumericValue(OmObservation observation) {
+        return observation.getValue() instanceof SingleObservationValue && getNumericValue(observation).isPresent();
+    }
+
     private static Optional<Number> getNumericValue(OmObservation observation) {
         SingleObservationValue<?> singleValue = (SingleObservationValue) observation.getValue();
-        Object value = singleValue.getValue().getValue();
+        Object value = singleValue.getValue() != null ? singleValue.getValue().getValue() : null;
         if (value instanceof Number) {
             return Optional.of((Number) value);
         } else {
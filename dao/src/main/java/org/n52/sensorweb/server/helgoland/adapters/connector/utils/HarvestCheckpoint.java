@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.connector.utils;
+
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Progress of a single harvest run which is persisted while harvesting. A subsequent run of the same data source
+ * resumes from this state instead of starting over, i.e. completed offerings are skipped and already persisted
+ * datasets are kept.
+ */
+public class HarvestCheckpoint {
+
+    private String itemName;
+    private String configHash;
+    private Date started;
+    private Date updated;
+    private String resumeLink;
+    private Set<String> completedOfferings = new LinkedHashSet<>();
+    private Set<Long> datasetIds = new LinkedHashSet<>();
+
+    public HarvestCheckpoint() {
+    }
+
+    public HarvestCheckpoint(String itemName) {
+        this.itemName = itemName;
+        this.started = new Date();
+        this.updated = started;
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public void setItemName(String itemName) {
+        this.itemName = itemName;
+    }
+
+    /**
+     * @return the hash of the data source configuration the checkpoint was created with
+     */
+    public String getConfigHash() {
+        return configHash;
+    }
+
+    public void setConfigHash(String configHash) {
+        this.configHash = configHash;
+    }
+
+    public Date getStarted() {
+        return started == null ? null : new Date(started.getTime());
+    }
+
+    public void setStarted(Date started) {
+        this.started = started == null ? null : new Date(started.getTime());
+    }
+
+    public Date getUpdated() {
+        return updated == null ? null : new Date(updated.getTime());
+    }
+
+    public void setUpdated(Date updated) {
+        this.updated = updated == null ? null : new Date(updated.getTime());
+    }
+
+    /**
+     * @return the link to continue a paged harvest with, e.g. the {@code @iot.nextLink} of a SensorThings API
+     */
+    public String getResumeLink() {
+        return resumeLink;
+    }
+
+    public void setResumeLink(String resumeLink) {
+        this.resumeLink = resumeLink;
+    }
+
+    public Set<String> getCompletedOfferings() {
+        return completedOfferings;
+    }
+
+    public void setCompletedOfferings(Set<String> completedOfferings) {
+        this.completedOfferings = completedOfferings == null ? new LinkedHashSet<>() : completedOfferings;
+    }
+
+    public Set<Long> getDatasetIds() {
+        return datasetIds;
+    }
+
+    public void setDatasetIds(Set<Long> datasetIds) {
+        this.datasetIds = datasetIds == null ? new LinkedHashSet<>() : datasetIds;
+    }
+
+    public boolean isCompleted(String offeringId) {
+        return completedOfferings.contains(offeringId);
+    }
+
+    public void addCompletedOffering(String offeringId) {
+        completedOfferings.add(offeringId);
+    }
+
+    public void addDatasetId(Long datasetId) {
+        datasetIds.add(datasetId);
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.connector.utils;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+
+/**
+ * State of a single harvest run of a data source which is handed from the harvester job to the connector.
+ * <p>
+ * If the harvest is checkpointed or streamed, connectors report their progress, and the datasets collected so far are
+ * handed to the {@link ChunkListener} to be persisted and released from the {@link ServiceConstellation}.
+ * <p>
+ * Connectors call {@link #safePoint(ServiceConstellation)} in between units of work, so a harvest can be cancelled or
+ * stopped once it exceeds its budget, and paused by a {@link Throttle}.
+ */
+public class HarvestContext {
+
+    private final DataSourceConfiguration config;
+
+    private final HarvestCheckpoint checkpoint;
+
+    private final int chunkSize;
+
+    private final ChunkListener chunkListener;
+
+    private volatile long deadline = Long.MAX_VALUE;
+
+    private volatile String cancelReason;
+
+    private Throttle throttle;
+
+    public HarvestContext(DataSourceConfiguration config) {
+        this(config, null, 0, null);
+    }
+
+    /**
+     * @param config
+     *            the data source configuration
+     * @param checkpoint
+     *            the progress of the harvest, or {@code null} if the complete constellation is kept in memory
+     * @param chunkSize
+     *            the number of datasets after which a chunk is emitted while harvesting an offering or page, or
+     *            {@code 0} to emit chunks only when an offering or page is finished
+     * @param chunkListener
+     *            the listener persisting emitted chunks
+     */
+    public HarvestContext(DataSourceConfiguration config, HarvestCheckpoint checkpoint, int chunkSize,
+            ChunkListener chunkListener) {
+        this.config = config;
+        this.checkpoint = checkpoint;
+        this.chunkSize = chunkSize;
+        this.chunkListener = chunkListener;
+    }
+
+    public DataSourceConfiguration getConfig() {
+        return config;
+    }
+
+    /**
+     * @param budgetInSeconds
+     *            the time the harvest may take from now on, {@code 0} or less for no limit
+     */
+    public void setBudget(long budgetInSeconds) {
+        this.deadline = budgetInSeconds > 0
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(budgetInSeconds)
+                : Long.MAX_VALUE;
+    }
+
+    /**
+     * @param throttle
+     *            the throttle consulted at every safe point, e.g. to pause the harvest while the server is under load
+     */
+    public void setThrottle(Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Requests the cancellation of the harvest at the next safe point.
+     *
+     * @param reason
+     *            the reason of the cancellation
+     */
+    public void cancel(String reason) {
+        this.cancelReason = reason;
+    }
+
+    public boolean isCancelled() {
+        return cancelReason != null || System.currentTimeMillis() > deadline;
+    }
+
+    /**
+     * Stops the harvest if it was cancelled or exceeded its budget, and waits as long as the throttle holds it back.
+     *
+     * @param serviceConstellation
+     *            the constellation harvested so far
+     * @throws HarvestCancelledException
+     *             if the harvest has to stop
+     */
+    public void safePoint(ServiceConstellation serviceConstellation) {
+        if (cancelReason != null) {
+            throw new HarvestCancelledException(cancelReason, serviceConstellation);
+        }
+        if (System.currentTimeMillis() > deadline) {
+            throw new HarvestCancelledException("harvest budget exceeded", serviceConstellation);
+        }
+        if (throttle != null) {
+            try {
+                throttle.await(this);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new HarvestCancelledException("harvest interrupted", serviceConstellation);
+            }
+        }
+    }
+
+    public Optional<HarvestCheckpoint> getCheckpoint() {
+        return Optional.ofNullable(checkpoint);
+    }
+
+    /**
+     * @param offeringId
+     *            the offering identifier
+     * @return {@code true} if the offering was completely harvested by a previous, interrupted run
+     */
+    public boolean isHarvested(String offeringId) {
+        return checkpoint != null && checkpoint.isCompleted(offeringId);
+    }
+
+    /**
+     * @return the link a paged harvest should continue with, if a previous run was interrupted
+     */
+    public Optional<String> getResumeLink() {
+        return getCheckpoint().map(HarvestCheckpoint::getResumeLink);
+    }
+
+    /**
+     * Emits a chunk if the number of collected datasets reached the chunk size. Connectors call this in between
+     * independent units of work (e.g. procedures) of a single offering or page.
+     *
+     * @param serviceConstellation
+     *            the constellation holding the harvested datasets
+     */
+    public void datasetsAdded(ServiceConstellation serviceConstellation) {
+        if (checkpoint != null && chunkSize > 0 && serviceConstellation.getDatasets().size() >= chunkSize) {
+            emit(serviceConstellation);
+        }
+    }
+
+    /**
+     * Marks the offering as harvested and emits the datasets collected so far.
+     *
+     * @param offeringId
+     *            the offering identifier
+     * @param serviceConstellation
+     *            the constellation holding the harvested datasets
+     */
+    public void offeringHarvested(String offeringId, ServiceConstellation serviceConstellation) {
+        if (checkpoint != null) {
+            checkpoint.addCompletedOffering(offeringId);
+            emit(serviceConstellation);
+        }
+    }
+
+    /**
+     * Marks a page of a paged harvest as harvested and emits the datasets collected so far.
+     *
+     * @param nextLink
+     *            the link of the next page or {@code null} if the last page was harvested
+     * @param serviceConstellation
+     *            the constellation holding the harvested datasets
+     */
+    public void pageHarvested(String nextLink, ServiceConstellation serviceConstellation) {
+        if (checkpoint != null) {
+            checkpoint.setResumeLink(nextLink);
+            emit(serviceConstellation);
+        }
+    }
+
+    private void emit(ServiceConstellation serviceConstellation) {
+        checkpoint.setUpdated(new Date());
+        if (chunkListener != null) {
+            chunkListener.onChunk(checkpoint, serviceConstellation);
+        }
+    }
+
+    @FunctionalInterface
+    public interface Throttle {
+
+        /**
+         * Blocks the harvest until it may continue. Implementations return early once the harvest is cancelled.
+         *
+         * @param context
+         *            the context of the harvest
+         * @throws InterruptedException
+         *             if the harvesting thread was interrupted while waiting
+         */
+        void await(HarvestContext context) throws InterruptedException;
+
+    }
+
+    @FunctionalInterface
+    public interface ChunkListener {
+
+        /**
+         * Persists the datasets of the constellation, records them in the checkpoint and releases them.
+         *
+         * @param checkpoint
+         *            the progress of the harvest
+         * @param serviceConstellation
+         *            the constellation holding the harvested datasets
+         */
+        void onChunk(HarvestCheckpoint checkpoint, ServiceConstellation serviceConstellation);
+
+    }
+
+}
@@ -209,6 +209,20 @@ public class ServiceConstellation {
         return datasets.add(e);
     }
 
+    /**
+     * Releases the datasets and all entities referenced by them except for the offerings. Connectors add the
+     * entities again with the next dataset referencing them, offerings are only added once when starting with the
+     * offering.
+     */
+    public void release() {
+        datasets.clear();
+        procedures.clear();
+        categories.clear();
+        phenomena.clear();
+        features.clear();
+        platforms.clear();
+    }
+
     protected GeometryEntity createGeometryEntitity(Geometry geometry) {
         GeometryEntity geometryEntity = new GeometryEntity();
         geometryEntity.setGeometry(geometry);
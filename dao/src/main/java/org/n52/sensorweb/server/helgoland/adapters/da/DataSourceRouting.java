@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+/**
+ * Marks the reads of the current thread which may be served by a read replica, see {@link RoutingDataSource}.
+ * Threads without a mark, e.g. harvests, use the primary database.
+ */
+public final class DataSourceRouting {
+
+    private static final ThreadLocal<Integer> MAX_LAG_IN_SECONDS = new ThreadLocal<>();
+
+    private DataSourceRouting() {
+    }
+
+    /**
+     * Lets the following reads of the current thread use a replica lagging behind the primary database by at most
+     * the given time.
+     *
+     * @param maxLagInSeconds
+     *            the tolerated replication lag
+     */
+    public static void routeReads(int maxLagInSeconds) {
+        MAX_LAG_IN_SECONDS.set(maxLagInSeconds);
+    }
+
+    public static void clear() {
+        MAX_LAG_IN_SECONDS.remove();
+    }
+
+    /**
+     * @return the tolerated replication lag of the current thread, {@code null} if it has to use the primary
+     *         database
+     */
+    public static Integer getMaxLagInSeconds() {
+        return MAX_LAG_IN_SECONDS.get();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.util.Objects;
+
+/**
+ * Identifies a dataset of a service by the identifiers of its procedure, offering, phenomenon, feature and platform.
+ */
+public final class DatasetKey {
+
+    private final String procedure;
+
+    private final String offering;
+
+    private final String phenomenon;
+
+    private final String feature;
+
+    private final String platform;
+
+    public DatasetKey(String procedure, String offering, String phenomenon, String feature, String platform) {
+        this.procedure = procedure;
+        this.offering = offering;
+        this.phenomenon = phenomenon;
+        this.feature = feature;
+        this.platform = platform;
+    }
+
+    public String getProcedure() {
+        return procedure;
+    }
+
+    public String getOffering() {
+        return offering;
+    }
+
+    public String getPhenomenon() {
+        return phenomenon;
+    }
+
+    public String getFeature() {
+        return feature;
+    }
+
+    public String getPlatform() {
+        return platform;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(procedure, offering, phenomenon, feature, platform);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DatasetKey)) {
+            return false;
+        }
+        DatasetKey other = (DatasetKey) obj;
+        return Objects.equals(procedure, other.procedure) && Objects.equals(offering, other.offering)
+                && Objects.equals(phenomenon, other.phenomenon) && Objects.equals(feature, other.feature)
+                && Objects.equals(platform, other.platform);
+    }
+
+    @Override
+    public String toString() {
+        return "DatasetKey{" + "procedure=" + procedure + ", offering=" + offering + ", phenomenon=" + phenomenon
+                + ", feature=" + feature + ", platform=" + platform + '}';
+    }
+
+}
@@ -28,14 +28,49 @@
  */
 package org.n52.sensorweb.server.helgoland.adapters.da;
 
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.nullsFirst;
+import static java.util.Comparator.nullsLast;
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+import javax.persistence.Cache;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.Tuple;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaDelete;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.CriteriaUpdate;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.Root;
+import javax.persistence.criteria.Subquery;
 
-import org.n52.io.request.IoParameters;
 import org.n52.sensorweb.server.db.repositories.core.DatasetRepository;
 import org.n52.sensorweb.server.db.repositories.core.UnitRepository;
 import org.n52.sensorweb.server.db.repositories.core.DataRepository;
+import org.n52.sensorweb.server.db.repositories.core.ServiceRepository;
 import org.n52.sensorweb.server.db.assembler.core.CategoryAssembler;
 import org.n52.sensorweb.server.db.assembler.core.DatasetAssembler;
 import org.n52.sensorweb.server.db.assembler.core.FeatureAssembler;
@@ -44,8 +79,6 @@ import org.n52.sensorweb.server.db.assembler.core.PhenomenonAssembler;
 import org.n52.sensorweb.server.db.assembler.core.PlatformAssembler;
 import org.n52.sensorweb.server.db.assembler.core.ProcedureAssembler;
 import org.n52.sensorweb.server.db.assembler.core.ServiceAssembler;
-import org.n52.sensorweb.server.db.old.dao.DbQueryFactory;
-import org.n52.sensorweb.server.db.query.DatasetQuerySpecifications;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.series.db.beans.AbstractFeatureEntity;
 import org.n52.series.db.beans.CategoryEntity;
@@ -59,15 +92,77 @@ import org.n52.series.db.beans.ProcedureEntity;
 import org.n52.series.db.beans.QuantityDataEntity;
 import org.n52.series.db.beans.ServiceEntity;
 import org.n52.series.db.beans.UnitEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.jpa.domain.Specification;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.common.util.concurrent.Striped;
 
 @Component
 public class InsertRepository {
 
-    @Autowired
-    private DbQueryFactory dbQueryFactory;
+    private static final Logger LOGGER = LoggerFactory.getLogger(InsertRepository.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final int DELETE_CHUNK_SIZE = 1000;
+
+    /**
+     * the maximum number of values of the IN lists of lookup queries, some databases do not accept more
+     */
+    private static final int LOOKUP_CHUNK_SIZE = 1000;
+
+    private static final String PROPERTY_ID = "id";
+
+    private static final String PROPERTY_IDENTIFIER = "identifier";
+
+    private static final String PROPERTY_SERVICE = "service";
+
+    private static final String PROPERTY_FIRST_VALUE_AT = "firstValueAt";
+
+    private static final String PROPERTY_LAST_VALUE_AT = "lastValueAt";
+
+    private static final String PROPERTY_DELETED = "deleted";
+
+    private static final String PROPERTY_PUBLISHED = "published";
+
+    private static final String PROPERTY_DATASET = "dataset";
+
+    private static final String PROPERTY_FIRST_OBSERVATION = "firstObservation";
+
+    private static final String PROPERTY_LAST_OBSERVATION = "lastObservation";
+
+    private static final String PROPERTY_CATEGORY = "category";
+
+    private static final String PROPERTY_OFFERING = "offering";
+
+    private static final String PROPERTY_PROCEDURE = "procedure";
+
+    private static final String PROPERTY_FEATURE = "feature";
+
+    private static final String PROPERTY_PHENOMENON = "phenomenon";
+
+    private static final String PROPERTY_PLATFORM = "platform";
+
+    /**
+     * the entities kept in the second-level cache, see persistence.xml
+     */
+    private static final List<Class<?>> CACHED_PARAMETERS = Arrays.asList(ServiceEntity.class,
+            CategoryEntity.class, ProcedureEntity.class, PhenomenonEntity.class, OfferingEntity.class,
+            AbstractFeatureEntity.class, PlatformEntity.class);
+
+    private final Striped<Lock> serviceLocks = Striped.lazyWeakLock(64);
+
+    private TransactionTemplate transactionTemplate;
+
+    @PersistenceContext
+    private EntityManager entityManager;
 
     @Autowired
     private CategoryAssembler categoryAssembler;
@@ -99,25 +194,192 @@ public class InsertRepository {
     @Autowired
     private UnitRepository unitRepository;
 
+    @Autowired
+    private ServiceRepository serviceRepository;
+
     @Autowired
     private DataRepository dataRepository;
 
-    public synchronized Set<Long> getIdsForService(ServiceEntity service) {
-        DatasetQuerySpecifications dsQS =
-                DatasetQuerySpecifications.of(dbQueryFactory.createFrom(IoParameters.createDefaults()), null);
-        Specification<DatasetEntity> specification = dsQS.matchServices(service.getId().toString());
-        return datasetRepository.findAll(specification).stream().map(DescribableEntity::getId).collect(toSet());
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
-    public void cleanUp(ServiceEntity service, Set<Long> datasetIds, boolean removeService) {
-        if (datasetIds != null && !datasetIds.isEmpty()) {
-            for (Long id : datasetIds) {
-                dataRepository.deleteByDataset(datasetRepository.getOne(id));
+    public Set<Long> getIdsForService(ServiceEntity service) {
+        return withServiceLocks(Collections.singleton(service), () -> new HashSet<>(getDatasetIds(service)));
+    }
+
+    /**
+     * Fetches the identifying parameters and the time span of the datasets of a service with a single query, without
+     * loading the entities.
+     *
+     * @param service
+     *            the service
+     * @return the datasets of the service
+     */
+    public List<StoredDataset> getStoredDatasets(ServiceEntity service) {
+        return withServiceLocks(Collections.singleton(service), () -> {
+            CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+            CriteriaQuery<Tuple> query = builder.createTupleQuery();
+            Root<DatasetEntity> dataset = query.from(DatasetEntity.class);
+            query.multiselect(dataset.get(PROPERTY_ID),
+                    dataset.join(PROPERTY_PROCEDURE, JoinType.LEFT).get(PROPERTY_IDENTIFIER),
+                    dataset.join(PROPERTY_OFFERING, JoinType.LEFT).get(PROPERTY_IDENTIFIER),
+                    dataset.join(PROPERTY_PHENOMENON, JoinType.LEFT).get(PROPERTY_IDENTIFIER),
+                    dataset.join(PROPERTY_FEATURE, JoinType.LEFT).get(PROPERTY_IDENTIFIER),
+                    dataset.join(PROPERTY_PLATFORM, JoinType.LEFT).get(PROPERTY_IDENTIFIER),
+                    dataset.get(PROPERTY_FIRST_VALUE_AT),
+                    dataset.get(PROPERTY_LAST_VALUE_AT),
+                    dataset.get(PROPERTY_DELETED),
+                    dataset.get(PROPERTY_PUBLISHED))
+                    .where(builder.equal(dataset.get(PROPERTY_SERVICE), service));
+            return entityManager.createQuery(query).getResultList().stream()
+                    .map(tuple -> new StoredDataset(tuple.get(0, Long.class),
+                            new DatasetKey(tuple.get(1, String.class), tuple.get(2, String.class),
+                                    tuple.get(3, String.class), tuple.get(4, String.class),
+                                    tuple.get(5, String.class)),
+                            tuple.get(6, Date.class), tuple.get(7, Date.class),
+                            Boolean.TRUE.equals(tuple.get(8, Boolean.class)),
+                            Boolean.TRUE.equals(tuple.get(9, Boolean.class))))
+                    .collect(toList());
+        });
+    }
+
+    /**
+     * Hides datasets from the API by their deleted flag without removing them, or shows them again.
+     *
+     * @param service
+     *            the service of the datasets
+     * @param datasetIds
+     *            the ids of the datasets
+     * @param deleted
+     *            if the datasets are hidden
+     */
+    public void setDeleted(ServiceEntity service, Collection<Long> datasetIds, boolean deleted) {
+        if (deleted) {
+            switchOver(service, Collections.emptySet(), Collections.emptySet(), datasetIds);
+        } else {
+            switchOver(service, Collections.emptySet(), datasetIds, Collections.emptySet());
+        }
+    }
+
+    /**
+     * Changes what the API shows of a service in one short transaction, so readers see either the state before or
+     * after a harvest.
+     *
+     * @param service
+     *            the service of the datasets
+     * @param published
+     *            the ids of the staged datasets to publish
+     * @param shown
+     *            the ids of the hidden datasets to show again
+     * @param hidden
+     *            the ids of the datasets to hide
+     */
+    public void switchOver(ServiceEntity service, Collection<Long> published, Collection<Long> shown,
+            Collection<Long> hidden) {
+        if (published.isEmpty() && shown.isEmpty() && hidden.isEmpty()) {
+            return;
+        }
+        switchOver(service, published, shown, hidden, () -> {
+        });
+    }
+
+    /**
+     * Changes what the API shows of a service like {@link #switchOver(ServiceEntity, Collection, Collection,
+     * Collection)} and updates related state in the same transaction, e.g. with a JDBC template on the same data
+     * source. Either both changes are committed or none.
+     *
+     * @param service
+     *            the service of the datasets
+     * @param published
+     *            the ids of the staged datasets to publish
+     * @param shown
+     *            the ids of the hidden datasets to show again
+     * @param hidden
+     *            the ids of the datasets to hide
+     * @param bookkeeping
+     *            the state to update within the transaction
+     */
+    public void switchOver(ServiceEntity service, Collection<Long> published, Collection<Long> shown,
+            Collection<Long> hidden, Runnable bookkeeping) {
+        switchOver(service, Collections.emptyMap(), published, shown, hidden, bookkeeping);
+    }
+
+    /**
+     * Changes what the API shows of a service like {@link #switchOver(ServiceEntity, Collection, Collection,
+     * Collection, Runnable)} and inserts the values staged for already published datasets in the same transaction.
+     *
+     * @param service
+     *            the service of the datasets
+     * @param values
+     *            the staged values per dataset
+     * @param published
+     *            the ids of the staged datasets to publish
+     * @param shown
+     *            the ids of the hidden datasets to show again
+     * @param hidden
+     *            the ids of the datasets to hide
+     * @param bookkeeping
+     *            the state to update within the transaction
+     */
+    public void switchOver(ServiceEntity service, Map<DatasetEntity, List<DataEntity<?>>> values,
+            Collection<Long> published, Collection<Long> shown, Collection<Long> hidden, Runnable bookkeeping) {
+        withServiceLocks(Collections.singleton(service), () -> transactionTemplate.execute(status -> {
+            if (!values.isEmpty()) {
+                // written before the bulk updates, the datasets carry the flags of the start of the harvest
+                doInsertData(values);
+                entityManager.flush();
             }
-            datasetRepository.deleteByIdIn(datasetIds);
+            updateDatasets(PROPERTY_PUBLISHED, true, published);
+            updateDatasets(PROPERTY_DELETED, false, shown);
+            updateDatasets(PROPERTY_DELETED, true, hidden);
+            // bulk statements bypass the persistence context
+            entityManager.flush();
+            entityManager.clear();
+            bookkeeping.run();
+            return null;
+        }));
+        LOGGER.debug("Switched over '{}': {} datasets published, {} shown, {} hidden, {} updated.",
+                service.getName(), published.size(), shown.size(), hidden.size(), values.size());
+    }
+
+    private void updateDatasets(String property, boolean value, Collection<Long> datasetIds) {
+        List<Long> ids = new ArrayList<>(datasetIds);
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (int from = 0; from < ids.size(); from += DELETE_CHUNK_SIZE) {
+            CriteriaUpdate<DatasetEntity> update = builder.createCriteriaUpdate(DatasetEntity.class);
+            Root<DatasetEntity> dataset = update.from(DatasetEntity.class);
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + DELETE_CHUNK_SIZE));
+            update.set(dataset.<Boolean> get(property), value).where(dataset.get(PROPERTY_ID).in(chunk));
+            entityManager.createQuery(update).executeUpdate();
         }
-        if (removeService) {
-            removeService(service);
+    }
+
+    public void cleanUp(ServiceEntity service, Set<Long> datasetIds, boolean removeService) {
+        withServiceLocks(Collections.singleton(service), () -> {
+            if (datasetIds != null && !datasetIds.isEmpty()) {
+                deleteDatasets(datasetIds);
+            }
+            if (removeService) {
+                removeService(service);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Evicts the harvested parameters from the second-level cache, so readers see the parameters of a completed
+     * harvest even if they were changed without this persistence unit.
+     */
+    public void evictCachedParameters() {
+        Cache cache = entityManager.getEntityManagerFactory().getCache();
+        for (Class<?> type : CACHED_PARAMETERS) {
+            try {
+                cache.evict(type);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Could not evict the cached {}.", type.getSimpleName(), e);
+            }
         }
     }
 
@@ -126,34 +388,382 @@ public class InsertRepository {
                 .filter(service -> !isConfigured(configuredServices, service)).forEach(this::removeService);
     }
 
+    /**
+     * Removes the service of a single data source with all its datasets.
+     *
+     * @param configuration
+     *            the configuration the service was harvested with
+     */
+    public void removeService(DataSourceConfiguration configuration) {
+        serviceRepository.findByIdentifier(configuration.getItemName())
+                .filter(service -> equals(configuration, service)).ifPresent(this::removeService);
+    }
+
+    /**
+     * @param configuration
+     *            the configuration of a data source
+     * @return if the service of the data source is stored
+     */
+    public boolean hasService(DataSourceConfiguration configuration) {
+        return serviceRepository.findByIdentifier(configuration.getItemName())
+                .filter(service -> equals(configuration, service)).isPresent();
+    }
+
     private void removeService(ServiceEntity service) {
-        for (DatasetEntity dataset : datasetRepository.findByService(service)) {
-            dataRepository.deleteByDataset(datasetRepository.getOne(dataset.getId()));
+        withServiceLocks(Collections.singleton(service), () -> {
+            deleteDatasets(getDatasetIds(service));
+            clearUnused(CategoryEntity.class, PROPERTY_CATEGORY, service, categoryAssembler::clearUnusedForService);
+            clearUnused(OfferingEntity.class, PROPERTY_OFFERING, service, offeringAssembler::clearUnusedForService);
+            clearUnused(ProcedureEntity.class, PROPERTY_PROCEDURE, service,
+                    procedureAssembler::clearUnusedForService);
+            clearUnused(AbstractFeatureEntity.class, PROPERTY_FEATURE, service,
+                    featureAssembler::clearUnusedForService);
+            clearUnused(PhenomenonEntity.class, PROPERTY_PHENOMENON, service,
+                    phenomenonAssembler::clearUnusedForService);
+            clearUnused(PlatformEntity.class, PROPERTY_PLATFORM, service, platformAssembler::clearUnusedForService);
+            serviceAssembler.clearUnusedForService(service);
+            // new ProxyRelatedFeatureDao(session).clearUnusedForService(service);
+            return null;
+        });
+    }
+
+    private List<Long> getDatasetIds(ServiceEntity service) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Long> query = builder.createQuery(Long.class);
+        Root<DatasetEntity> dataset = query.from(DatasetEntity.class);
+        query.select(dataset.<Long> get(PROPERTY_ID)).where(builder.equal(dataset.get(PROPERTY_SERVICE), service));
+        return entityManager.createQuery(query).getResultList();
+    }
+
+    /**
+     * Deletes the datasets and their data with one statement per table and chunk. Chunks the bulk statements fail
+     * for, e.g. due to references not cascaded by bulk statements, are deleted dataset by dataset.
+     */
+    private void deleteDatasets(Collection<Long> datasetIds) {
+        List<Long> ids = new ArrayList<>(datasetIds);
+        for (int from = 0; from < ids.size(); from += DELETE_CHUNK_SIZE) {
+            List<Long> chunk = ids.subList(from, Math.min(ids.size(), from + DELETE_CHUNK_SIZE));
+            try {
+                transactionTemplate.execute(status -> {
+                    bulkDeleteDatasets(chunk);
+                    return null;
+                });
+            } catch (PersistenceException | DataAccessException e) {
+                LOGGER.debug("Bulk deletion of {} datasets failed, deleting them one by one.", chunk.size(), e);
+                for (Long id : chunk) {
+                    dataRepository.deleteByDataset(datasetRepository.getOne(id));
+                }
+                datasetRepository.deleteByIdIn(chunk);
+            }
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private void bulkDeleteDatasets(List<Long> ids) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        // the datasets reference their first and last value
+        CriteriaUpdate<DatasetEntity> unlink = builder.createCriteriaUpdate(DatasetEntity.class);
+        Root<DatasetEntity> linked = unlink.from(DatasetEntity.class);
+        unlink.set(linked.get(PROPERTY_FIRST_OBSERVATION), builder.nullLiteral(DataEntity.class))
+                .set(linked.get(PROPERTY_LAST_OBSERVATION), builder.nullLiteral(DataEntity.class))
+                .where(linked.get(PROPERTY_ID).in(ids));
+        entityManager.createQuery(unlink).executeUpdate();
+
+        CriteriaDelete<DataEntity> deleteData = builder.createCriteriaDelete(DataEntity.class);
+        Root<DataEntity> data = deleteData.from(DataEntity.class);
+        deleteData.where(data.get(PROPERTY_DATASET).get(PROPERTY_ID).in(ids));
+        int deletedData = entityManager.createQuery(deleteData).executeUpdate();
+
+        CriteriaDelete<DatasetEntity> deleteDatasets = builder.createCriteriaDelete(DatasetEntity.class);
+        deleteDatasets.where(deleteDatasets.from(DatasetEntity.class).get(PROPERTY_ID).in(ids));
+        int deletedDatasets = entityManager.createQuery(deleteDatasets).executeUpdate();
+        // bulk statements bypass the persistence context
+        entityManager.flush();
+        entityManager.clear();
+        LOGGER.debug("Deleted {} datasets with {} values.", deletedDatasets, deletedData);
+    }
+
+    /**
+     * Deletes the parameters of the service which are not referenced by a dataset anymore with a single statement,
+     * or with the given fallback if the bulk statement fails.
+     */
+    private <T> void clearUnused(Class<T> type, String datasetProperty, ServiceEntity service,
+            Consumer<ServiceEntity> fallback) {
+        try {
+            transactionTemplate.execute(status -> {
+                CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+                CriteriaDelete<T> delete = builder.createCriteriaDelete(type);
+                Root<T> parameter = delete.from(type);
+                Subquery<Long> used = delete.subquery(Long.class);
+                Root<DatasetEntity> dataset = used.from(DatasetEntity.class);
+                used.select(dataset.<Long> get(PROPERTY_ID))
+                        .where(builder.equal(dataset.get(datasetProperty), parameter));
+                delete.where(builder.equal(parameter.get(PROPERTY_SERVICE), service),
+                        builder.not(builder.exists(used)));
+                int deleted = entityManager.createQuery(delete).executeUpdate();
+                entityManager.flush();
+                entityManager.clear();
+                return deleted;
+            });
+        } catch (PersistenceException | DataAccessException | IllegalArgumentException e) {
+            LOGGER.debug("Bulk deletion of unused {} failed, deleting them one by one.", type.getSimpleName(), e);
+            fallback.accept(service);
         }
-        datasetRepository.deleteByService(service);
-        categoryAssembler.clearUnusedForService(service);
-        offeringAssembler.clearUnusedForService(service);
-        procedureAssembler.clearUnusedForService(service);
-        featureAssembler.clearUnusedForService(service);
-        phenomenonAssembler.clearUnusedForService(service);
-        platformAssembler.clearUnusedForService(service);
-        serviceAssembler.clearUnusedForService(service);
-        // new ProxyRelatedFeatureDao(session).clearUnusedForService(service);
     }
 
     public ServiceEntity insertService(ServiceEntity service) {
-        return serviceAssembler.getOrInsertInstance(service);
+        return withServiceLocks(Collections.singleton(service),
+                () -> retryOnConflict(() -> serviceAssembler.getOrInsertInstance(service)));
+    }
+
+    public DatasetEntity insertDataset(DatasetEntity dataset) {
+        return withServiceLocks(Collections.singleton(dataset.getService()), () -> retryOnConflict(() -> {
+            ProcedureEntity procedure = insertProcedure(dataset.getProcedure());
+            CategoryEntity category = insertCategory(dataset.getCategory());
+            OfferingEntity offering = insertOffering(dataset.getOffering());
+            AbstractFeatureEntity<?> feature = insertFeature(dataset.getFeature());
+            PhenomenonEntity phenomenon = insertPhenomenon(dataset.getPhenomenon());
+            PlatformEntity platform = insertPlatform(dataset.getPlatform());
+            UnitEntity unit = insertUnit(dataset.getUnit());
+            return insertDataset(dataset, category, procedure, offering, feature, phenomenon, platform, unit);
+        }));
+    }
+
+    /**
+     * Persists several datasets within one transaction. Parameters shared by several datasets, e.g. the feature of
+     * all datasets of a station, are looked up or inserted once instead of once per dataset.
+     *
+     * @param datasets
+     *            the datasets to persist
+     * @return the persisted datasets in the order of the given ones
+     */
+    public List<DatasetEntity> insertDatasets(List<DatasetEntity> datasets) {
+        return insertDatasets(datasets, new ParameterCache());
+    }
+
+    /**
+     * Persists several datasets within one transaction, referencing parameters known from previous calls of the same
+     * harvest by their id.
+     *
+     * @param datasets
+     *            the datasets to persist
+     * @param cache
+     *            the ids of the parameters persisted by the harvest so far, updated once the datasets are committed
+     * @return the persisted datasets in the order of the given ones
+     */
+    public List<DatasetEntity> insertDatasets(List<DatasetEntity> datasets, ParameterCache cache) {
+        Set<ServiceEntity> services = datasets.stream().map(DatasetEntity::getService).collect(toSet());
+        return withServiceLocks(services, () -> retryOnConflict(() -> {
+            // ids of a rolled back attempt are invalid, so the cache is updated after the commit only
+            Map<String, DescribableEntity> resolved = new HashMap<>();
+            Map<String, UnitEntity> resolvedUnits = new HashMap<>();
+            List<DatasetEntity> inserted = transactionTemplate
+                    .execute(status -> doInsertDatasets(datasets, cache, resolved, resolvedUnits));
+            resolved.forEach((key, entity) -> cache.put(key, entity.getId()));
+            resolvedUnits.forEach((key, unit) -> cache.put(key, unit.getId()));
+            return inserted;
+        }));
+    }
+
+    private List<DatasetEntity> doInsertDatasets(List<DatasetEntity> datasets, ParameterCache cache,
+            Map<String, DescribableEntity> resolved, Map<String, UnitEntity> resolvedUnits) {
+        findParameters(datasets, cache, resolved, resolvedUnits);
+        for (DatasetEntity dataset : datasets) {
+            dataset.setProcedure(resolve(cache, resolved, dataset.getProcedure(), this::insertProcedure));
+            dataset.setCategory(resolve(cache, resolved, dataset.getCategory(), this::insertCategory));
+            dataset.setOffering(resolve(cache, resolved, dataset.getOffering(), this::insertOffering));
+            dataset.setFeature(resolve(cache, resolved, dataset.getFeature(), this::insertFeature));
+            dataset.setPhenomenon(resolve(cache, resolved, dataset.getPhenomenon(), this::insertPhenomenon));
+            dataset.setPlatform(resolve(cache, resolved, dataset.getPlatform(), this::insertPlatform));
+            dataset.setUnit(resolveUnit(cache, resolvedUnits, dataset.getUnit()));
+        }
+        Map<List<Long>, DatasetEntity> stored = findDatasets(datasets);
+        List<DatasetEntity> inserted = new ArrayList<>(datasets.size());
+        for (DatasetEntity dataset : datasets) {
+            DatasetEntity instance = stored.get(getParameterIds(dataset));
+            if (instance == null) {
+                // an id without a stored dataset is left from a rolled back attempt
+                dataset.setId(null);
+                // the inserts are sent in JDBC batches when the transaction is flushed on commit
+                entityManager.persist(dataset);
+                stored.put(getParameterIds(dataset), dataset);
+                instance = dataset;
+            } else if (instance.getUnit() == null && dataset.getUnit() != null) {
+                instance.setUnit(dataset.getUnit());
+            }
+            inserted.add(instance);
+        }
+        return inserted;
+    }
+
+    /**
+     * Looks up the stored datasets matching the parameters of the given ones with one query per chunk of
+     * procedures, instead of one query per dataset.
+     *
+     * @return the stored datasets by the ids of their parameters
+     */
+    private Map<List<Long>, DatasetEntity> findDatasets(List<DatasetEntity> datasets) {
+        Map<List<Long>, DatasetEntity> stored = new HashMap<>();
+        Set<ServiceEntity> services = datasets.stream().map(DatasetEntity::getService).collect(toSet());
+        List<Long> procedures = datasets.stream().map(DatasetEntity::getProcedure).filter(Objects::nonNull)
+                .map(ProcedureEntity::getId).distinct().collect(toList());
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (int from = 0; from < procedures.size(); from += LOOKUP_CHUNK_SIZE) {
+            List<Long> chunk = procedures.subList(from, Math.min(procedures.size(), from + LOOKUP_CHUNK_SIZE));
+            CriteriaQuery<DatasetEntity> query = builder.createQuery(DatasetEntity.class);
+            Root<DatasetEntity> dataset = query.from(DatasetEntity.class);
+            query.select(dataset).where(dataset.get(PROPERTY_SERVICE).in(services),
+                    dataset.get(PROPERTY_PROCEDURE).get(PROPERTY_ID).in(chunk));
+            entityManager.createQuery(query).getResultList()
+                    .forEach(instance -> stored.putIfAbsent(getParameterIds(instance), instance));
+        }
+        return stored;
+    }
+
+    /**
+     * Looks up the stored parameters of the datasets which are not known to the harvest yet, with one query per type
+     * and service, instead of one query per parameter. Only parameters not found are inserted one by one.
+     */
+    private void findParameters(List<DatasetEntity> datasets, ParameterCache cache,
+            Map<String, DescribableEntity> resolved, Map<String, UnitEntity> resolvedUnits) {
+        findParameters(ProcedureEntity.class, datasets, DatasetEntity::getProcedure, cache, resolved);
+        findParameters(CategoryEntity.class, datasets, DatasetEntity::getCategory, cache, resolved);
+        findParameters(OfferingEntity.class, datasets, DatasetEntity::getOffering, cache, resolved);
+        findParameters(AbstractFeatureEntity.class, datasets, DatasetEntity::getFeature, cache, resolved);
+        findParameters(PhenomenonEntity.class, datasets, DatasetEntity::getPhenomenon, cache, resolved);
+        findParameters(PlatformEntity.class, datasets, DatasetEntity::getPlatform, cache, resolved);
+        findUnits(datasets, cache, resolvedUnits);
+    }
+
+    private <T extends DescribableEntity> void findParameters(Class<T> type, List<DatasetEntity> datasets,
+            Function<DatasetEntity, ? extends DescribableEntity> parameter, ParameterCache cache,
+            Map<String, DescribableEntity> resolved) {
+        // the keys of the unknown parameters by their service and identifier
+        Map<ServiceEntity, Map<String, String>> unknown = new HashMap<>();
+        for (DatasetEntity dataset : datasets) {
+            DescribableEntity entity = parameter.apply(dataset);
+            String key = ParameterCache.getKey(entity);
+            if (key != null && !resolved.containsKey(key) && cache.get(key) == null) {
+                unknown.computeIfAbsent(entity.getService(), service -> new HashMap<>())
+                        .putIfAbsent(entity.getIdentifier(), key);
+            }
+        }
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        unknown.forEach((service, keys) -> {
+            if (service != null && service.getId() == null) {
+                // parameters of a service not stored yet are not stored either
+                return;
+            }
+            List<String> identifiers = new ArrayList<>(keys.keySet());
+            for (int from = 0; from < identifiers.size(); from += LOOKUP_CHUNK_SIZE) {
+                List<String> chunk =
+                        identifiers.subList(from, Math.min(identifiers.size(), from + LOOKUP_CHUNK_SIZE));
+                CriteriaQuery<T> query = builder.createQuery(type);
+                Root<T> root = query.from(type);
+                query.select(root).where(service != null
+                        ? builder.equal(root.get(PROPERTY_SERVICE), service)
+                        : builder.isNull(root.get(PROPERTY_SERVICE)), root.get(PROPERTY_IDENTIFIER).in(chunk));
+                entityManager.createQuery(query).getResultList()
+                        .forEach(instance -> resolved.putIfAbsent(keys.get(instance.getIdentifier()), instance));
+            }
+        });
+    }
+
+    private void findUnits(List<DatasetEntity> datasets, ParameterCache cache,
+            Map<String, UnitEntity> resolvedUnits) {
+        Map<String, String> unknown = new HashMap<>();
+        datasets.stream().map(DatasetEntity::getUnit).filter(unit -> unit != null && unit.isSetIdentifier())
+                .forEach(unit -> {
+                    String key = ParameterCache.getKey(unit);
+                    if (!resolvedUnits.containsKey(key) && cache.get(key) == null) {
+                        unknown.putIfAbsent(unit.getIdentifier(), key);
+                    }
+                });
+        List<String> identifiers = new ArrayList<>(unknown.keySet());
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        for (int from = 0; from < identifiers.size(); from += LOOKUP_CHUNK_SIZE) {
+            List<String> chunk = identifiers.subList(from, Math.min(identifiers.size(), from + LOOKUP_CHUNK_SIZE));
+            CriteriaQuery<UnitEntity> query = builder.createQuery(UnitEntity.class);
+            Root<UnitEntity> root = query.from(UnitEntity.class);
+            query.select(root).where(root.get(PROPERTY_IDENTIFIER).in(chunk));
+            entityManager.createQuery(query).getResultList()
+                    .forEach(instance -> resolvedUnits.putIfAbsent(unknown.get(instance.getIdentifier()), instance));
+        }
+    }
+
+    private List<Long> getParameterIds(DatasetEntity dataset) {
+        return Arrays.asList(getId(dataset.getService()), getId(dataset.getProcedure()),
+                getId(dataset.getCategory()), getId(dataset.getOffering()), getId(dataset.getFeature()),
+                getId(dataset.getPhenomenon()), getId(dataset.getPlatform()));
     }
 
-    public synchronized DatasetEntity insertDataset(DatasetEntity dataset) {
-        ProcedureEntity procedure = insertProcedure(dataset.getProcedure());
-        CategoryEntity category = insertCategory(dataset.getCategory());
-        OfferingEntity offering = insertOffering(dataset.getOffering());
-        AbstractFeatureEntity<?> feature = insertFeature(dataset.getFeature());
-        PhenomenonEntity phenomenon = insertPhenomenon(dataset.getPhenomenon());
-        PlatformEntity platform = insertPlatform(dataset.getPlatform());
-        UnitEntity unit = insertUnit(dataset.getUnit());
-        return insertDataset(dataset, category, procedure, offering, feature, phenomenon, platform, unit);
+    private Long getId(DescribableEntity entity) {
+        return entity != null ? entity.getId() : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T extends DescribableEntity> T resolve(ParameterCache cache, Map<String, DescribableEntity> resolved,
+            T entity, UnaryOperator<T> insert) {
+        String key = ParameterCache.getKey(entity);
+        if (key == null) {
+            return entity == null ? null : insert.apply(entity);
+        }
+        return (T) resolved.computeIfAbsent(key, k -> {
+            Long id = cache.get(k);
+            // a reference does not query the database
+            return id != null ? entityManager.getReference(entity.getClass(), id) : insert.apply(entity);
+        });
+    }
+
+    private UnitEntity resolveUnit(ParameterCache cache, Map<String, UnitEntity> resolvedUnits, UnitEntity unit) {
+        if (unit == null || !unit.isSetIdentifier()) {
+            return null;
+        }
+        return resolvedUnits.computeIfAbsent(ParameterCache.getKey(unit), key -> {
+            Long id = cache.get(key);
+            return id != null ? entityManager.getReference(UnitEntity.class, id) : insertUnit(unit);
+        });
+    }
+
+    /**
+     * Runs the action while holding the locks of the given services. Harvests of different services use different
+     * locks and persist in parallel.
+     */
+    private <T> T withServiceLocks(Collection<ServiceEntity> services, Supplier<T> action) {
+        List<Object> keys = services.stream().filter(Objects::nonNull)
+                .map(service -> service.getIdentifier() != null ? service.getIdentifier() : service.getId())
+                .collect(toList());
+        // bulkGet returns the locks in a stable order, so acquiring several locks cannot deadlock
+        List<Lock> locks = new ArrayList<>();
+        serviceLocks.bulkGet(keys).forEach(locks::add);
+        locks.forEach(Lock::lock);
+        try {
+            return action.get();
+        } finally {
+            Collections.reverse(locks);
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Retries the action if it collided with a concurrent insertion of the same entity, e.g. of a unit or category
+     * shared by several services, or of a parameter by a harvest of the same service on another node. The unique
+     * constraints of the database detect the collision, see {@link ParameterConstraints}, the second attempt finds
+     * the entity inserted by the other harvest. Actions joining an outer transaction are not retried, as that
+     * transaction is already marked for rollback.
+     */
+    private <T> T retryOnConflict(Supplier<T> action) {
+        boolean retryable = !TransactionSynchronizationManager.isActualTransactionActive();
+        for (int attempt = 1;; attempt++) {
+            try {
+                return action.get();
+            } catch (DataIntegrityViolationException e) {
+                if (!retryable || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                LOGGER.debug("Concurrent insertion detected, retrying (attempt {}).", attempt + 1, e);
+            }
+        }
     }
 
     private DatasetEntity insertDataset(DatasetEntity dataset, CategoryEntity category, ProcedureEntity procedure,
@@ -241,34 +851,85 @@ public class InsertRepository {
     }
 
     public DataEntity<?> insertData(DatasetEntity dataset, DataEntity<?> data) {
-        data.setDataset(dataset);
-        DataEntity<?> insertedData = (DataEntity<?>) dataRepository.saveAndFlush(data);
-        boolean minChanged = false;
-        boolean maxChanged = false;
-        if (!dataset.isSetFirstValueAt() || (dataset.isSetFirstValueAt()
-                && dataset.getFirstValueAt().after(insertedData.getSamplingTimeStart()))) {
-            minChanged = true;
-            dataset.setFirstValueAt(insertedData.getSamplingTimeStart());
-            dataset.setFirstObservation(insertedData);
-        }
-        if (!dataset.isSetLastValueAt() || (dataset.isSetLastValueAt()
-                && dataset.getLastValueAt().before(insertedData.getSamplingTimeEnd()))) {
-            maxChanged = true;
-            dataset.setLastValueAt(insertedData.getSamplingTimeEnd());
-            dataset.setLastObservation(insertedData);
-        }
-        if (insertedData instanceof QuantityDataEntity) {
-            if (minChanged) {
-                dataset.setFirstQuantityValue(((QuantityDataEntity) insertedData).getValue());
+        return insertData(dataset, Collections.singletonList(data)).get(0);
+    }
+
+    /**
+     * Inserts the values of a dataset and updates its first and last value once.
+     *
+     * @param dataset
+     *            the dataset
+     * @param data
+     *            the values to insert
+     * @return the inserted values
+     */
+    public List<DataEntity<?>> insertData(DatasetEntity dataset, List<DataEntity<?>> data) {
+        return insertData(Collections.singletonMap(dataset, data)).get(dataset);
+    }
+
+    /**
+     * Inserts the values of several datasets within one transaction. The inserts are sent in JDBC batches, and each
+     * dataset is updated once with the earliest and latest of its values if they extend its current time span.
+     *
+     * @param data
+     *            the values to insert per dataset
+     * @return the inserted values per dataset
+     */
+    public Map<DatasetEntity, List<DataEntity<?>>> insertData(Map<DatasetEntity, List<DataEntity<?>>> data) {
+        Set<ServiceEntity> services = data.keySet().stream().map(DatasetEntity::getService).collect(toSet());
+        return withServiceLocks(services, () -> transactionTemplate.execute(status -> doInsertData(data)));
+    }
+
+    private Map<DatasetEntity, List<DataEntity<?>>> doInsertData(Map<DatasetEntity, List<DataEntity<?>>> data) {
+        Map<DatasetEntity, List<DataEntity<?>>> inserted = new IdentityHashMap<>();
+        List<DatasetEntity> changed = new ArrayList<>();
+        data.forEach((dataset, values) -> {
+            List<DataEntity<?>> insertedValues = new ArrayList<>(values.size());
+            for (DataEntity<?> value : values) {
+                value.setDataset(dataset);
+                insertedValues.add((DataEntity<?>) dataRepository.save(value));
             }
-            if (maxChanged) {
-                dataset.setLastQuantityValue(((QuantityDataEntity) insertedData).getValue());
+            inserted.put(dataset, insertedValues);
+            if (updateExtent(dataset, insertedValues)) {
+                changed.add(dataset);
             }
-        }
-        if (minChanged && maxChanged) {
-            datasetRepository.saveAndFlush(dataset);
-        }
-        return insertedData;
+        });
+        changed.forEach(datasetRepository::save);
+        return inserted;
+    }
+
+    /**
+     * Sets the earliest and latest of the values as first and last value of the dataset if they extend its time
+     * span.
+     *
+     * @return if the dataset changed
+     */
+    private boolean updateExtent(DatasetEntity dataset, List<DataEntity<?>> values) {
+        Optional<DataEntity<?>> first = values.stream()
+                .min(Comparator.comparing(DataEntity::getSamplingTimeStart, nullsLast(naturalOrder())));
+        Optional<DataEntity<?>> last = values.stream()
+                .max(Comparator.comparing(DataEntity::getSamplingTimeEnd, nullsFirst(naturalOrder())));
+        boolean minChanged = first.filter(value -> dataset.getFirstObservation() == null
+                || !dataset.isSetFirstValueAt() || dataset.getFirstValueAt().after(value.getSamplingTimeStart()))
+                .map(value -> {
+                    dataset.setFirstValueAt(value.getSamplingTimeStart());
+                    dataset.setFirstObservation(value);
+                    if (value instanceof QuantityDataEntity) {
+                        dataset.setFirstQuantityValue(((QuantityDataEntity) value).getValue());
+                    }
+                    return true;
+                }).orElse(false);
+        boolean maxChanged = last.filter(value -> dataset.getLastObservation() == null
+                || !dataset.isSetLastValueAt() || dataset.getLastValueAt().before(value.getSamplingTimeEnd()))
+                .map(value -> {
+                    dataset.setLastValueAt(value.getSamplingTimeEnd());
+                    dataset.setLastObservation(value);
+                    if (value instanceof QuantityDataEntity) {
+                        dataset.setLastQuantityValue(((QuantityDataEntity) value).getValue());
+                    }
+                    return true;
+                }).orElse(false);
+        return minChanged || maxChanged;
     }
 
 }
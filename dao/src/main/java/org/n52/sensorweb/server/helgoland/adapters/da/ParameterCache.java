@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.n52.series.db.beans.DescribableEntity;
+import org.n52.series.db.beans.ServiceEntity;
+import org.n52.series.db.beans.UnitEntity;
+
+/**
+ * Ids of the parameters (procedures, features, phenomena, ...) persisted during a single harvest, keyed by their type,
+ * service and identifier. Datasets of later chunks referencing a known parameter use its id instead of looking it up
+ * again.
+ * <p>
+ * The cache lives as long as the harvest only. Parameters are removed by the clean up at the end of a harvest once
+ * they are not used anymore, so ids must not be kept across harvests.
+ */
+public class ParameterCache {
+
+    private final Map<String, Long> ids = new ConcurrentHashMap<>();
+
+    public Long get(String key) {
+        return ids.get(key);
+    }
+
+    public void put(String key, Long id) {
+        if (id != null) {
+            ids.put(key, id);
+        }
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public void clear() {
+        ids.clear();
+    }
+
+    /**
+     * @param entity
+     *            the parameter
+     * @return the key of the parameter, or {@code null} if it has no identifier
+     */
+    public static String getKey(DescribableEntity entity) {
+        if (entity == null || entity.getIdentifier() == null) {
+            return null;
+        }
+        ServiceEntity service = entity.getService();
+        return entity.getClass().getName() + "/" + (service != null ? service.getIdentifier() : "") + "/"
+                + entity.getIdentifier();
+    }
+
+    /**
+     * @param unit
+     *            the unit
+     * @return the key of the unit, units are shared by all services
+     */
+    public static String getKey(UnitEntity unit) {
+        return UnitEntity.class.getName() + "/" + unit.getIdentifier();
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Makes sure the parameter tables have a unique constraint on the identifier and the service, the key the
+ * {@link InsertRepository} looks parameters up by, and on the identifier of the services. The service locks of the
+ * repository are local to a node, so harvests of the same service on different nodes may insert the same parameter
+ * at once. Without the constraint this is not detected and both harvests insert a row; with it the second insertion
+ * fails and is retried, finding the row of the first one.
+ * <p>
+ * Existing unique indexes covering these columns are used as they are. A missing one is created after hbm2ddl
+ * created the schema. If that fails, e.g. as the table already contains duplicates, a warning is logged and
+ * insertions are only serialized within this node.
+ */
+@Component
+public class ParameterConstraints implements InitializingBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParameterConstraints.class);
+
+    private static final String IDENTIFIER = "identifier";
+
+    private static final String SERVICE_TABLE = "service";
+
+    private static final List<String> TABLES = Arrays.asList(SERVICE_TABLE, "procedure", "offering", "feature",
+            "category", "phenomenon", "platform");
+
+    private final DataSource dataSource;
+
+    /**
+     * @param dataSource
+     *            the data source of the entities
+     * @param entityManagerFactory
+     *            required so the schema is created by hbm2ddl before
+     */
+    public ParameterConstraints(DataSource dataSource, EntityManagerFactory entityManagerFactory) {
+        this.dataSource = dataSource;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        for (String table : TABLES) {
+            try {
+                ensureUniqueIdentifier(table);
+            } catch (SQLException | DataAccessException e) {
+                LOGGER.warn("Could not add a unique constraint to {}, concurrent insertions of the same entity by "
+                        + "other nodes are not detected.", table, e);
+            }
+        }
+    }
+
+    private void ensureUniqueIdentifier(String table) throws SQLException {
+        Optional<String> name;
+        List<String> columns;
+        try (Connection connection = dataSource.getConnection()) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            name = getTableName(metaData, table);
+            if (!name.isPresent()) {
+                LOGGER.debug("No table {} to constrain.", table);
+                return;
+            }
+            columns = new ArrayList<>();
+            columns.add(IDENTIFIER);
+            getServiceColumn(metaData, name.get()).ifPresent(columns::add);
+            if (hasUniqueIndex(metaData, name.get(), columns)) {
+                LOGGER.debug("{} has a unique constraint on {}.", table, columns);
+                return;
+            }
+        }
+        LOGGER.info("Adding a unique constraint on {} to {}.", columns, table);
+        new JdbcTemplate(dataSource).execute(String.format("CREATE UNIQUE INDEX un_%s_%s ON %s (%s)", table,
+                String.join("_", columns), name.get(), String.join(", ", columns)));
+    }
+
+    private Optional<String> getTableName(DatabaseMetaData metaData, String table) throws SQLException {
+        for (String name : new String[] { table, table.toUpperCase(Locale.ROOT) }) {
+            try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+                if (tables.next()) {
+                    return Optional.of(name);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return the column referencing the service of the parameter
+     */
+    private Optional<String> getServiceColumn(DatabaseMetaData metaData, String table) throws SQLException {
+        try (ResultSet keys = metaData.getImportedKeys(null, null, table)) {
+            while (keys.next()) {
+                if (SERVICE_TABLE.equalsIgnoreCase(keys.getString("PKTABLE_NAME"))) {
+                    return Optional.of(keys.getString("FKCOLUMN_NAME").toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return if a unique index on a subset of the columns including the identifier exists
+     */
+    private boolean hasUniqueIndex(DatabaseMetaData metaData, String table, List<String> columns)
+            throws SQLException {
+        Map<String, Set<String>> indexes = new HashMap<>();
+        try (ResultSet index = metaData.getIndexInfo(null, null, table, true, false)) {
+            while (index.next()) {
+                String column = index.getString("COLUMN_NAME");
+                if (column != null) {
+                    indexes.computeIfAbsent(index.getString("INDEX_NAME"), k -> new HashSet<>())
+                            .add(column.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return indexes.values().stream()
+                .anyMatch(indexed -> indexed.contains(IDENTIFIER) && columns.containsAll(indexed));
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
+import org.springframework.orm.jpa.AbstractEntityManagerFactoryBean;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+
+/**
+ * Replaces the {@code dataSource} bean with a {@link RoutingDataSource} if read replicas are configured with
+ * {@code database.replicas}, and provides the replication lag tolerated by each API endpoint.
+ * <p>
+ * Entities read from a replica may be older than those of the primary database. Entity managers of reads routed to
+ * the replicas therefore read from the shared second-level and query cache, but do not put anything into it.
+ */
+@Component
+public class ReadReplicaConfigurer implements BeanPostProcessor, EnvironmentAware {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReadReplicaConfigurer.class);
+
+    private static final String DATA_SOURCE_BEAN = "dataSource";
+
+    private static final String CACHE_STORE_MODE = "javax.persistence.cache.storeMode";
+
+    private final PathMatcher pathMatcher = new AntPathMatcher();
+
+    private Map<String, DataSourceProperties> replicas = Collections.emptyMap();
+
+    private Map<String, Integer> endpoints = Collections.emptyMap();
+
+    private int maxLagInSeconds;
+
+    private int lagCheckInSeconds;
+
+    private String lagQuery;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        Binder binder = Binder.get(environment);
+        replicas = binder.bind("database.replicas", Bindable.mapOf(String.class, DataSourceProperties.class))
+                .orElse(Collections.emptyMap());
+        endpoints = binder.bind("database.read.endpoints", Bindable.mapOf(String.class, Integer.class))
+                .map(LinkedHashMap::new).orElse(new LinkedHashMap<>());
+        maxLagInSeconds = binder.bind("database.read.max-lag-seconds", Integer.class).orElse(30);
+        lagCheckInSeconds = binder.bind("database.read.lag-check-seconds", Integer.class).orElse(5);
+        lagQuery = binder.bind("database.read.lag-query", String.class).orElse(null);
+    }
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        if (bean instanceof AbstractEntityManagerFactoryBean && isEnabled()) {
+            ((AbstractEntityManagerFactoryBean) bean)
+                    .setEntityManagerInitializer(ReadReplicaConfigurer::bypassCacheForRoutedReads);
+        }
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (DATA_SOURCE_BEAN.equals(beanName) && bean instanceof DataSource && !(bean instanceof RoutingDataSource)
+                && isEnabled()) {
+            Map<String, DataSource> targets = new LinkedHashMap<>();
+            replicas.forEach((name, properties) -> targets.put(name, createDataSource(properties)));
+            LOGGER.info("Routing API reads to the read replicas {}.", targets.keySet());
+            return new RoutingDataSource((DataSource) bean, targets, lagQuery, lagCheckInSeconds);
+        }
+        return bean;
+    }
+
+    private DataSource createDataSource(DataSourceProperties properties) {
+        return DataSourceBuilder.create().url(properties.getUrl()).username(properties.getUsername())
+                .password(properties.getPassword()).driverClassName(properties.getDriverClassName()).build();
+    }
+
+    /**
+     * Lets the following reads of the current thread use a read replica, see {@link DataSourceRouting}. Entity
+     * managers already opened for the thread, e.g. for the current request, stop putting entities into the shared
+     * cache as well.
+     *
+     * @param maxLagInSeconds
+     *            the tolerated replication lag
+     */
+    public void routeReads(int maxLagInSeconds) {
+        DataSourceRouting.routeReads(maxLagInSeconds);
+        TransactionSynchronizationManager.getResourceMap().values().stream()
+                .filter(EntityManagerHolder.class::isInstance).map(EntityManagerHolder.class::cast)
+                .forEach(holder -> bypassCacheForRoutedReads(holder.getEntityManager()));
+    }
+
+    /**
+     * Keeps the entity manager from putting entities and query results into the shared cache if the reads of the
+     * current thread are routed to a read replica.
+     *
+     * @param entityManager
+     *            the entity manager
+     */
+    public static void bypassCacheForRoutedReads(EntityManager entityManager) {
+        if (DataSourceRouting.getMaxLagInSeconds() != null) {
+            entityManager.setProperty(CACHE_STORE_MODE, CacheStoreMode.BYPASS);
+        }
+    }
+
+    /**
+     * @return if read replicas are configured
+     */
+    public boolean isEnabled() {
+        return !replicas.isEmpty();
+    }
+
+    /**
+     * @param path
+     *            the path of the request within the application
+     * @return the replication lag tolerated by the endpoint, a negative value if it has to read from the primary
+     *         database
+     */
+    public int getMaxLagInSeconds(String path) {
+        for (Map.Entry<String, Integer> endpoint : endpoints.entrySet()) {
+            if (pathMatcher.match(endpoint.getKey(), path)) {
+                return endpoint.getValue();
+            }
+        }
+        return maxLagInSeconds;
+    }
+
+}
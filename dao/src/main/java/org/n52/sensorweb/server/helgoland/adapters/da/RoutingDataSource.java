@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Routes connections to the primary database, unless the current thread marked its reads with
+ * {@link DataSourceRouting#routeReads(int)}. Marked reads go to the replicas in turn, skipping replicas which are
+ * unavailable or lag behind more than tolerated. The lag of each replica is probed with a query at most once per
+ * check interval; without a query a replica is considered in sync while it is reachable.
+ */
+public class RoutingDataSource extends AbstractRoutingDataSource implements Closeable {
+
+    static final String PRIMARY = "primary";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingDataSource.class);
+
+    private final DataSource primary;
+
+    private final List<Replica> replicas = new ArrayList<>();
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final long lagCheckInMillis;
+
+    /**
+     * @param primary
+     *            the database written to
+     * @param replicas
+     *            the read replicas by name
+     * @param lagQuery
+     *            the query returning the replication lag of a replica in seconds, may be {@code null}
+     * @param lagCheckInSeconds
+     *            the time the probed lag of a replica is reused
+     */
+    public RoutingDataSource(DataSource primary, Map<String, DataSource> replicas, String lagQuery,
+            int lagCheckInSeconds) {
+        this.primary = primary;
+        this.lagCheckInMillis = TimeUnit.SECONDS.toMillis(lagCheckInSeconds);
+        Map<Object, Object> targets = new HashMap<>();
+        targets.put(PRIMARY, primary);
+        replicas.forEach((name, dataSource) -> {
+            targets.put(name, dataSource);
+            this.replicas.add(new Replica(name, dataSource, lagQuery));
+        });
+        setTargetDataSources(targets);
+        setDefaultTargetDataSource(primary);
+        setLenientFallback(false);
+        afterPropertiesSet();
+    }
+
+    @Override
+    protected Object determineCurrentLookupKey() {
+        Integer maxLag = DataSourceRouting.getMaxLagInSeconds();
+        if (maxLag == null || replicas.isEmpty()) {
+            return PRIMARY;
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.getLagInSeconds(lagCheckInMillis) <= maxLag) {
+                return replica.getName();
+            }
+        }
+        return PRIMARY;
+    }
+
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    public List<String> getReplicaNames() {
+        List<String> names = new ArrayList<>();
+        replicas.forEach(replica -> names.add(replica.getName()));
+        return Collections.unmodifiableList(names);
+    }
+
+    @Override
+    public void close() {
+        close(primary);
+        replicas.forEach(replica -> close(replica.getDataSource()));
+    }
+
+    private void close(DataSource dataSource) {
+        if (dataSource instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) dataSource).close();
+            } catch (Exception e) {
+                LOGGER.warn("Could not close data source {}.", dataSource, e);
+            }
+        }
+    }
+
+    private static final class Replica {
+
+        private final String name;
+
+        private final DataSource dataSource;
+
+        private final String lagQuery;
+
+        private final AtomicBoolean probing = new AtomicBoolean();
+
+        // unknown until the first probe, reads use the primary database meanwhile
+        private volatile double lagInSeconds = Double.POSITIVE_INFINITY;
+
+        private volatile long checkedAt;
+
+        Replica(String name, DataSource dataSource, String lagQuery) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.lagQuery = lagQuery == null || lagQuery.trim().isEmpty() ? null : lagQuery;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        DataSource getDataSource() {
+            return dataSource;
+        }
+
+        double getLagInSeconds(long maxAgeInMillis) {
+            long now = System.currentTimeMillis();
+            // one thread probes, the others use the last known lag
+            if ((checkedAt == 0 || now - checkedAt >= maxAgeInMillis) && probing.compareAndSet(false, true)) {
+                try {
+                    lagInSeconds = probe();
+                    checkedAt = now;
+                } finally {
+                    probing.set(false);
+                }
+            }
+            return lagInSeconds;
+        }
+
+        private double probe() {
+            try {
+                JdbcTemplate template = new JdbcTemplate(dataSource);
+                if (lagQuery == null) {
+                    Boolean valid = template.execute((ConnectionCallback<Boolean>) c -> c.isValid(1));
+                    return Boolean.TRUE.equals(valid) ? 0 : Double.POSITIVE_INFINITY;
+                }
+                Double lag = template.queryForObject(lagQuery, Double.class);
+                return lag == null ? 0 : Math.max(0, lag);
+            } catch (DataAccessException e) {
+                LOGGER.warn("Could not probe read replica '{}', using the primary database: {}", name,
+                        e.getMessage());
+                return Double.POSITIVE_INFINITY;
+            }
+        }
+
+    }
+
+}
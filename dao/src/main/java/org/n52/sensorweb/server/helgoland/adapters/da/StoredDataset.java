@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.da;
+
+import java.util.Date;
+
+/**
+ * Projection of a stored dataset holding what is needed to reconcile it with a new harvest, without loading the
+ * dataset entity and its parameters.
+ */
+public class StoredDataset {
+
+    private final Long id;
+
+    private final DatasetKey key;
+
+    private final Date firstValueAt;
+
+    private final Date lastValueAt;
+
+    private final boolean deleted;
+
+    private final boolean published;
+
+    public StoredDataset(Long id, DatasetKey key, Date firstValueAt, Date lastValueAt, boolean deleted,
+            boolean published) {
+        this.id = id;
+        this.key = key;
+        this.firstValueAt = firstValueAt;
+        this.lastValueAt = lastValueAt;
+        this.deleted = deleted;
+        this.published = published;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public DatasetKey getKey() {
+        return key;
+    }
+
+    public Date getFirstValueAt() {
+        return firstValueAt;
+    }
+
+    public Date getLastValueAt() {
+        return lastValueAt;
+    }
+
+    /**
+     * @return if the dataset is hidden, because it was missing upstream
+     */
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * @return if the dataset is visible, staged datasets are not published until their harvest completes
+     */
+    public boolean isPublished() {
+        return published;
+    }
+
+    /**
+     * @param time
+     *            the sampling time of a harvested value
+     * @return if the value is older than the first stored value
+     */
+    public boolean isBeforeFirst(Date time) {
+        return firstValueAt == null || time != null && firstValueAt.after(time);
+    }
+
+    /**
+     * @param time
+     *            the sampling time of a harvested value
+     * @return if the value is newer than the last stored value
+     */
+    public boolean isAfterLast(Date time) {
+        return lastValueAt == null || time != null && lastValueAt.before(time);
+    }
+
+}
@@ -32,16 +32,26 @@ import org.apache.http.HttpResponse;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 import org.n52.io.task.ScheduledJob;
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
 import org.n52.sensorweb.server.helgoland.adapters.connector.AbstractConnector;
 import org.n52.sensorweb.server.helgoland.adapters.connector.AbstractSosConnector;
 import org.n52.sensorweb.server.helgoland.adapters.connector.ConnectorRequestFailedException;
 import org.n52.sensorweb.server.helgoland.adapters.connector.SensorThingsConnector;
+import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.DatasetConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCancelledException;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCheckpoint;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
 import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.da.DatasetKey;
 import org.n52.sensorweb.server.helgoland.adapters.da.InsertRepository;
+import org.n52.sensorweb.server.helgoland.adapters.da.ParameterCache;
+import org.n52.sensorweb.server.helgoland.adapters.da.StoredDataset;
+import org.n52.sensorweb.server.helgoland.adapters.web.HttpClient;
 import org.n52.sensorweb.server.helgoland.adapters.web.SimpleHttpClient;
 import org.n52.series.db.beans.CategoryEntity;
+import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
 import org.n52.series.db.beans.DescribableEntity;
 import org.n52.series.db.beans.FeatureEntity;
@@ -55,7 +65,7 @@ import org.n52.svalbard.decode.DecoderRepository;
 import org.n52.svalbard.decode.exception.DecodingException;
 import org.n52.svalbard.util.CodingHelper;
 import org.quartz.DisallowConcurrentExecution;
-import org.quartz.Job;
+import org.quartz.InterruptableJob;
 import org.quartz.JobBuilder;
 import org.quartz.JobDataMap;
 import org.quartz.JobDetail;
@@ -63,25 +73,42 @@ import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
 import org.quartz.JobKey;
 import org.quartz.PersistJobDataAfterExecution;
+import org.quartz.SchedulerException;
+import org.quartz.TriggerKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.beans.factory.annotation.Value;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
 
 @SuppressWarnings("SpringJavaAutowiredMembersInspection")
 @PersistJobDataAfterExecution
 @DisallowConcurrentExecution
-public class DataSourceHarvesterJob extends ScheduledJob implements Job {
+public class DataSourceHarvesterJob extends ScheduledJob implements InterruptableJob {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceHarvesterJob.class);
 
-    private static final String JOB_CONFIG = "config";
+    /**
+     * the name of the harvested data source
+     */
+    static final String JOB_ITEM_NAME = "itemName";
+
+    /**
+     * the adaptive harvest interval in seconds
+     */
+    static final String JOB_INTERVAL = "intervalInSeconds";
 
     private DataSourceConfiguration config;
 
@@ -92,10 +119,98 @@ public class DataSourceHarvesterJob extends ScheduledJob implements Job {
     private DecoderRepository decoderRepository;
 
     @Autowired(required = false)
-    private Set<AbstractConnector> connectors;
+    private HttpClient httpClient;
+
+    @Autowired
+    private HarvestCheckpointStore checkpointStore;
+
+    @Autowired
+    private ConfigurationReader configurationProvider;
+
+    @Autowired(required = false)
+    private HarvestExecutor harvestExecutor;
 
     @Autowired(required = false)
-    private Set<HarvestingListener> listeners;
+    private HarvestGovernor governor;
+
+    @Value("${harvest.streaming.enabled:false}")
+    private boolean streaming;
+
+    @Value("${harvest.streaming.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${harvest.budget.default-seconds:0}")
+    private int defaultBudgetInSeconds;
+
+    @Value("${harvest.staging.enabled:false}")
+    private boolean staging;
+
+    @Autowired(required = false)
+    private Set<AbstractConnector> connectors;
+
+    @Autowired
+    private HarvestEventBus eventBus;
+
+    @Autowired
+    private HarvestStateStore stateStore;
+
+    /**
+     * ids of the datasets of the service before this execution persisted anything
+     */
+    private Set<Long> knownDatasetIds;
+
+    /**
+     * the datasets of the service before this execution persisted anything, by their parameters
+     */
+    private Map<DatasetKey, StoredDataset> storedDatasets;
+
+    /**
+     * ids of the datasets of the service hidden because they were missing in earlier harvests
+     */
+    private Set<Long> hiddenDatasetIds;
+
+    /**
+     * ids of the datasets of the service staged by an earlier, incomplete harvest
+     */
+    private Set<Long> unpublishedDatasetIds;
+
+    /**
+     * ids of the datasets staged by this execution, published when the harvest completes
+     */
+    private final Set<Long> stagedDatasetIds = new HashSet<>();
+
+    /**
+     * new values of published datasets, inserted together with the staged datasets when the harvest completes
+     */
+    private final Map<DatasetEntity, List<DataEntity<?>>> stagedValues = new LinkedHashMap<>();
+
+    /**
+     * ids of the datasets persisted by this execution
+     */
+    private final Set<Long> harvestedDatasetIds = new HashSet<>();
+
+    /**
+     * ids of the stored datasets harvested by this execution without new values, not written again
+     */
+    private final Set<Long> unchangedDatasetIds = new HashSet<>();
+
+    /**
+     * ids of the datasets hidden or deleted by this execution, without those hidden by earlier harvests
+     */
+    private final Set<Long> removedDatasetIds = new HashSet<>();
+
+    /**
+     * ids of the parameters persisted by this execution, shared by all chunks
+     */
+    private final ParameterCache parameterCache = new ParameterCache();
+
+    private volatile HarvestContext runningContext;
+
+    private volatile Thread executingThread;
+
+    private volatile boolean interrupted;
+
+    private HarvestSummary summary;
 
     public DataSourceHarvesterJob() {
     }
@@ -110,74 +225,244 @@ public class DataSourceHarvesterJob extends ScheduledJob implements Job {
 
     @Override
     public JobDetail createJobDetails() {
+        // only the name is stored, a clustered job store has to serialize the job data
         JobDataMap dataMap = new JobDataMap();
-        dataMap.put(JOB_CONFIG, config);
+        dataMap.put(JOB_ITEM_NAME, config.getItemName());
         return JobBuilder.newJob(DataSourceHarvesterJob.class).withIdentity(getJobName()).usingJobData(dataMap)
-                .build();
+                .requestRecovery(true).build();
     }
 
-    private DataSourceConfiguration recreateConfig(JobDataMap jobDataMap) {
-        return (DataSourceConfiguration) jobDataMap.get(JOB_CONFIG);
+    private Optional<DataSourceConfiguration> recreateConfig(JobDataMap jobDataMap) {
+        return configurationProvider.getDataSource(jobDataMap.getString(JOB_ITEM_NAME));
     }
 
     @Override
     protected void executeInternal(JobExecutionContext context) throws JobExecutionException {
         JobKey key = context.getJobDetail().getKey();
+        Optional<DataSourceConfiguration> config = recreateConfig(context.getJobDetail().getJobDataMap());
+        if (!config.isPresent()) {
+            LOGGER.warn("{} is not configured anymore. Skip execution.", key);
+            return;
+        }
+        DataSourceConfiguration dataSource = config.get();
+        executingThread = Thread.currentThread();
+        try {
+            if (harvestExecutor == null || HarvestAdmissionListener.isAdmitted(context)) {
+                // admitted harvests release their slot when the trigger completes
+                harvest(key, dataSource);
+            } else {
+                // only without a HarvestAdmissionListener, e.g. in a scheduler of its own
+                DataSourceJobConfiguration job = Optional.ofNullable(dataSource.getJob())
+                        .orElseGet(DataSourceJobConfiguration::new);
+                harvestExecutor.execute(dataSource.getItemName(), job.getPriority(), job.getWeight(),
+                        () -> harvest(key, dataSource));
+            }
+        } catch (InterruptedException e) {
+            LOGGER.info("{} was interrupted while waiting for a harvest slot.", key);
+            if (!interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } finally {
+            executingThread = null;
+        }
+        adaptInterval(context, dataSource);
+    }
+
+    /**
+     * Reschedules an adaptive harvest, shortening the interval if the harvest changed the source and extending it
+     * otherwise. Failed and cancelled harvests keep the interval.
+     */
+    private void adaptInterval(JobExecutionContext context, DataSourceConfiguration dataSource) {
+        HarvestTriggerFactory triggerFactory = new HarvestTriggerFactory();
+        if (summary == null || !triggerFactory.isAdaptive(dataSource)) {
+            return;
+        }
+        JobDataMap dataMap = context.getJobDetail().getJobDataMap();
+        int interval = dataMap.containsKey(JOB_INTERVAL) ? dataMap.getInt(JOB_INTERVAL)
+                : triggerFactory.getInitialInterval(dataSource);
+        int next = HarvestTriggerFactory.nextInterval(dataSource.getJob(), interval, summary.hasChanges());
+        dataMap.put(JOB_INTERVAL, next);
+        if (next != interval) {
+            JobKey key = context.getJobDetail().getKey();
+            try {
+                context.getScheduler().rescheduleJob(TriggerKey.triggerKey(key.getName(), key.getGroup()),
+                        triggerFactory.createAdaptiveTrigger(dataSource, key, next));
+            } catch (SchedulerException e) {
+                LOGGER.warn("Could not adapt the harvest interval of {}.", key, e);
+            }
+        }
+    }
+
+    /**
+     * Cancels the harvest at the next safe point of the connector, or stops waiting for a harvest slot.
+     */
+    @Override
+    public void interrupt() {
+        interrupted = true;
+        HarvestContext current = runningContext;
+        if (current != null) {
+            current.cancel("harvest interrupted");
+        } else {
+            Thread thread = executingThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private int getBudgetInSeconds(DataSourceConfiguration dataSource) {
+        return Optional.ofNullable(dataSource.getJob()).map(DataSourceJobConfiguration::getBudgetInSeconds)
+                .orElse(defaultBudgetInSeconds);
+    }
+
+    private void harvest(JobKey key, DataSourceConfiguration dataSource) throws JobExecutionException {
         LOGGER.info("{} execution starts.", key);
 
-        DataSourceConfiguration dataSource = recreateConfig(context.getJobDetail().getJobDataMap());
+        HarvestCheckpoint checkpoint = readCheckpoint(dataSource);
+        HarvestContext context =
+                new HarvestContext(dataSource, checkpoint, streaming ? chunkSize : 0, this::persistChunk);
+        context.setBudget(getBudgetInSeconds(dataSource));
+        context.setThrottle(governor);
+        runningContext = context;
+        if (interrupted) {
+            context.cancel("harvest interrupted");
+        }
 
         try {
-            ServiceConstellation result = determineConstellation(dataSource);
+            GetCapabilitiesResponse capabilities = isSos(dataSource) ? getCapabilities(dataSource) : null;
+            ServiceConstellation result = determineConstellation(context, capabilities);
             if (result == null) {
                 LOGGER.warn("No connector found for {}", dataSource);
             } else {
-                saveConstellation(result);
-                if (listeners != null) {
-                    for (HarvestingListener listener : listeners) {
-                        try {
-                            listener.onResult(result);
-                        } catch (Throwable t) {
-                            LOGGER.warn("error executing listener " + listener, t);
-                        }
-                    }
-                }
+                ServiceEntity service = insertRepository.insertService(result.getService());
+                summary = saveConstellation(dataSource, result, service, checkpoint);
+                checkpointStore.delete(dataSource.getItemName());
+                recordSuccess(dataSource);
+                LOGGER.info("{} harvested: {}", key, summary);
+                eventBus.publish(new HarvestEvent(dataSource.getItemName(), service.getId(), summary));
             }
 
             LOGGER.info("{} execution ends.", key);
+        } catch (HarvestCancelledException ex) {
+            LOGGER.warn("{} was cancelled: {}. Keeping the datasets harvested so far.", key, ex.getMessage());
+            persistPartialConstellation(dataSource, ex.getPartialConstellation(), checkpoint);
         } catch (IOException | DecodingException | ConnectorRequestFailedException ex) {
             throw new JobExecutionException(ex);
         }
 
     }
 
-    private ServiceConstellation determineConstellation(DataSourceConfiguration dataSource)
-            throws IOException, DecodingException {
+    private void recordSuccess(DataSourceConfiguration dataSource) {
+        try {
+            stateStore.recordSuccess(dataSource, new Date());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not record the successful harvest of '{}'.", dataSource.getItemName(), e);
+        }
+    }
+
+    private HarvestCheckpoint readCheckpoint(DataSourceConfiguration dataSource) {
+        if (!checkpointStore.isEnabled()) {
+            // streamed harvests keep their progress in memory only
+            return streaming ? createCheckpoint(dataSource) : null;
+        }
+        Optional<HarvestCheckpoint> checkpoint = checkpointStore.read(dataSource);
+        checkpoint.ifPresent(c -> LOGGER.info("Resume harvesting '{}' from checkpoint of {}: {} offerings and {} "
+                + "datasets already harvested.", c.getItemName(), c.getUpdated(), c.getCompletedOfferings().size(),
+                c.getDatasetIds().size()));
+        return checkpoint.orElseGet(() -> createCheckpoint(dataSource));
+    }
+
+    private HarvestCheckpoint createCheckpoint(DataSourceConfiguration dataSource) {
+        HarvestCheckpoint checkpoint = new HarvestCheckpoint(dataSource.getItemName());
+        checkpoint.setConfigHash(dataSource.getConfigHash());
+        return checkpoint;
+    }
+
+    /**
+     * Persists the datasets of a cancelled harvest. Datasets missing in the partial result are kept, and the
+     * checkpoint is kept so the next run resumes where this one stopped. The staged values of published datasets
+     * are inserted as well, as the resumed harvest skips the offerings completed so far.
+     */
+    private void persistPartialConstellation(DataSourceConfiguration dataSource, ServiceConstellation constellation,
+            HarvestCheckpoint checkpoint) {
+        if (constellation != null && constellation.getService() != null) {
+            persistChunk(checkpoint != null ? checkpoint : createCheckpoint(dataSource), constellation);
+        }
+        if (!stagedValues.isEmpty()) {
+            LOGGER.debug("Insert the staged values of {} published datasets of '{}'", stagedValues.size(),
+                    dataSource.getItemName());
+            insertRepository.insertData(stagedValues);
+            stagedValues.clear();
+        }
+    }
+
+    private void persistChunk(HarvestCheckpoint checkpoint, ServiceConstellation constellation) {
+        if (!constellation.getDatasets().isEmpty()) {
+            LOGGER.debug("Persist chunk of {} datasets of '{}'", constellation.getDatasets().size(),
+                    checkpoint.getItemName());
+            ServiceEntity service = insertRepository.insertService(constellation.getService());
+            initStoredDatasets(service);
+            for (Long id : saveDatasets(constellation, service)) {
+                checkpoint.addDatasetId(id);
+                harvestedDatasetIds.add(id);
+            }
+        }
+        constellation.release();
+        checkpointStore.write(checkpoint);
+    }
+
+    private void initStoredDatasets(ServiceEntity service) {
+        if (storedDatasets == null) {
+            storedDatasets = new HashMap<>();
+            knownDatasetIds = new HashSet<>();
+            hiddenDatasetIds = new HashSet<>();
+            unpublishedDatasetIds = new HashSet<>();
+            for (StoredDataset stored : insertRepository.getStoredDatasets(service)) {
+                // duplicates are not reconciled and removed as stale datasets
+                storedDatasets.putIfAbsent(stored.getKey(), stored);
+                knownDatasetIds.add(stored.getId());
+                if (stored.isDeleted()) {
+                    hiddenDatasetIds.add(stored.getId());
+                }
+                if (!stored.isPublished()) {
+                    unpublishedDatasetIds.add(stored.getId());
+                }
+            }
+        }
+    }
+
+    private boolean isSos(DataSourceConfiguration dataSource) {
+        return "SOS".equalsIgnoreCase(dataSource.getType());
+    }
+
+    private ServiceConstellation determineConstellation(HarvestContext harvestContext,
+            GetCapabilitiesResponse capabilities) {
+        DataSourceConfiguration dataSource = harvestContext.getConfig();
         if (dataSource.getType() == null) {
             return null;
         }
-        if (dataSource.getType().equalsIgnoreCase("SOS")) {
-            GetCapabilitiesResponse capabilities = getCapabilities(dataSource);
-            return determineSOSConstellation(dataSource, capabilities);
+        if (isSos(dataSource)) {
+            return determineSOSConstellation(harvestContext, capabilities);
         }
         if (dataSource.getType().equalsIgnoreCase("SensorThings")) {
-            return determineSensorThingsConstellation(dataSource);
+            return determineSensorThingsConstellation(harvestContext);
         }
         return null;
     }
 
-    private ServiceConstellation determineSOSConstellation(DataSourceConfiguration dataSource,
+    private ServiceConstellation determineSOSConstellation(HarvestContext harvestContext,
             GetCapabilitiesResponse capabilities) {
         return this.connectors.stream().filter(connector -> connector instanceof AbstractSosConnector)
                 .map(connector -> (AbstractSosConnector) connector)
-                .filter(connector -> connector.matches(dataSource, capabilities))
-                .map(connector -> connector.getConstellation(dataSource, capabilities)).findFirst().orElse(null);
+                .filter(connector -> connector.matches(harvestContext.getConfig(), capabilities))
+                .map(connector -> connector.getConstellation(harvestContext, capabilities)).findFirst()
+                .orElse(null);
     }
 
-    private ServiceConstellation determineSensorThingsConstellation(DataSourceConfiguration dataSource) {
+    private ServiceConstellation determineSensorThingsConstellation(HarvestContext harvestContext) {
         return this.connectors.stream().filter(connector -> connector instanceof SensorThingsConnector)
                 .map(connector -> (SensorThingsConnector) connector)
-                .map(connector -> connector.getConstellation(dataSource)).findFirst().orElse(null);
+                .map(connector -> connector.getConstellation(harvestContext)).findFirst().orElse(null);
     }
 
     public void init(DataSourceConfiguration initConfig) {
@@ -191,58 +476,213 @@ public class DataSourceHarvesterJob extends ScheduledJob implements Job {
         }
     }
 
-    @Transactional(rollbackFor = Exception.class)
-    protected void saveConstellation(ServiceConstellation constellation) {
-        // serviceEntity
-        ServiceEntity service = insertRepository.insertService(constellation.getService());
-        Set<Long> datasetIds = insertRepository.getIdsForService(service);
+    /**
+     * Persists the harvested constellation and sweeps the datasets missing in it. The job is created by the job
+     * factory for each execution, only the resolved data source knows what is harvested.
+     */
+    private HarvestSummary saveConstellation(DataSourceConfiguration dataSource, ServiceConstellation constellation,
+            ServiceEntity service, HarvestCheckpoint checkpoint) {
+        initStoredDatasets(service);
+        Set<Long> datasetIds = new HashSet<>(knownDatasetIds);
         int datasetCount = datasetIds.size();
+        Set<Long> seenDatasetIds = new HashSet<>();
+        if (checkpoint != null) {
+            // datasets persisted with a chunk are still part of the service
+            seenDatasetIds.addAll(checkpoint.getDatasetIds());
+        }
 
         // save all constellations
-        constellation.getDatasets().forEach(dataset -> {
-            ProcedureEntity procedure = constellation.getProcedures().get(dataset.getProcedure());
-            CategoryEntity category = new CategoryEntity();
-            category.setId(1L);
-            category.setIdentifier("DEFAULT_PROXY_CATEGORY");
-            FeatureEntity feature = constellation.getFeatures().get(dataset.getFeature());
-            OfferingEntity offering = constellation.getOfferings().get(dataset.getOffering());
-            PhenomenonEntity phenomenon = constellation.getPhenomena().get(dataset.getPhenomenon());
-            PlatformEntity platform = constellation.getPlatforms().get(dataset.getPlatform());
-
-            List<DescribableEntity> entities =
-                    Arrays.asList(procedure, category, feature, offering, phenomenon, platform);
-            if (entities.stream().allMatch(Objects::nonNull)) {
-                entities.stream().forEach(x -> x.setService(service));
-                DatasetEntity ds = insertRepository.insertDataset(dataset.createDatasetEntity(procedure, category,
-                        feature, offering, phenomenon, platform, service));
-                if (ds != null) {
-                    datasetIds.remove(ds.getId());
-
-                    dataset.getFirst().ifPresent(data -> insertRepository.insertData(ds, data));
-                    dataset.getLatest().ifPresent(data -> insertRepository.insertData(ds, data));
-                    LOGGER.info("Added dataset: {}", dataset);
-                } else {
-                    LOGGER.warn("Can't save dataset: {}", dataset);
+        harvestedDatasetIds.addAll(saveDatasets(constellation, service));
+        seenDatasetIds.addAll(harvestedDatasetIds);
+        datasetIds.removeAll(seenDatasetIds);
+
+        String itemName = dataSource.getItemName();
+        Set<Long> expired = sweepDatasets(itemName, service, seenDatasetIds, datasetIds);
+        insertRepository.cleanUp(service, expired,
+                datasetCount > 0 && expired.size() == datasetCount && harvestedDatasetIds.isEmpty());
+        // kept until the datasets are gone, a failed clean up is retried by the next harvest
+        stateStore.removeStaleDatasets(expired);
+        insertRepository.evictCachedParameters();
+
+        int added = (int) harvestedDatasetIds.stream().filter(id -> !knownDatasetIds.contains(id)).count();
+        int updated = (int) harvestedDatasetIds.stream()
+                .filter(id -> knownDatasetIds.contains(id) && !unchangedDatasetIds.contains(id)).count();
+        return new HarvestSummary(added, updated, removedDatasetIds.size());
+    }
+
+    /**
+     * Starts the next harvest generation of the data source. Datasets missing in this harvest are hidden instead of
+     * deleted, so flapping upstream datasets keep their ids and values, and hidden datasets harvested again are shown
+     * again. Staged datasets are published, staged values inserted and the hidden datasets recorded in the same
+     * transaction.
+     *
+     * @return the ids of the datasets missing for more generations than retained, to be deleted
+     */
+    private Set<Long> sweepDatasets(String itemName, ServiceEntity service, Set<Long> seenDatasetIds,
+            Set<Long> missingDatasetIds) {
+        long generation = stateStore.nextGeneration(itemName);
+        Map<Long, Long> stale = stateStore.getStaleDatasets(itemName);
+
+        Set<Long> reappeared = new HashSet<>(hiddenDatasetIds);
+        reappeared.addAll(stale.keySet());
+        reappeared.retainAll(seenDatasetIds);
+
+        Set<Long> published = new HashSet<>(unpublishedDatasetIds);
+        published.retainAll(seenDatasetIds);
+        published.addAll(stagedDatasetIds);
+
+        Set<Long> missing = new HashSet<>(missingDatasetIds);
+        missing.removeAll(stale.keySet());
+        missing.forEach(id -> stale.put(id, generation - 1));
+
+        Set<Long> expired = new HashSet<>();
+        Set<Long> released = new HashSet<>(reappeared);
+        stale.forEach((id, lastSeen) -> {
+            if (!knownDatasetIds.contains(id)) {
+                // removed otherwise meanwhile
+                released.add(id);
+            } else if (missingDatasetIds.contains(id) && stateStore.isExpired(lastSeen, generation)) {
+                expired.add(id);
+            }
+        });
+        insertRepository.switchOver(service, stagedValues, published, reappeared, missing, () -> {
+            stateStore.addStaleDatasets(itemName, missing, generation - 1);
+            stateStore.removeStaleDatasets(released);
+        });
+        // datasets hidden by earlier generations and retained are not removed again
+        removedDatasetIds.addAll(missing);
+        removedDatasetIds.addAll(expired);
+        LOGGER.debug("Harvest generation {} of '{}': {} datasets hidden, {} shown again, {} expired.", generation,
+                itemName, missing.size(), reappeared.size(), expired.size());
+        return expired;
+    }
+
+    /**
+     * Persists the datasets of the constellation in one batch, followed by their first and latest values. Datasets
+     * already stored without newer values are not written again. With staging, the values of published datasets
+     * are kept until the harvest completes.
+     *
+     * @return the ids of the harvested datasets, including the unchanged ones
+     */
+    private Set<Long> saveDatasets(ServiceConstellation constellation, ServiceEntity service) {
+        Set<Long> saved = new HashSet<>();
+        int unchanged = 0;
+        List<DatasetConstellation> datasets = new ArrayList<>();
+        List<DatasetEntity> entities = new ArrayList<>();
+        for (DatasetConstellation dataset : constellation.getDatasets()) {
+            StoredDataset stored = storedDatasets.get(getKey(dataset));
+            if (stored != null && !hasNewValues(stored, dataset)) {
+                unchanged++;
+                saved.add(stored.getId());
+                unchangedDatasetIds.add(stored.getId());
+                continue;
+            }
+            DatasetEntity entity = createDatasetEntity(constellation, service, dataset);
+            if (entity != null && staging && stored == null) {
+                // new datasets are not visible until the harvest completes
+                entity.setPublished(false);
+            }
+            if (entity != null) {
+                datasets.add(dataset);
+                entities.add(entity);
+            }
+        }
+        List<DatasetEntity> inserted =
+                entities.isEmpty() ? entities : insertRepository.insertDatasets(entities, parameterCache);
+        Map<DatasetEntity, List<DataEntity<?>>> values = new LinkedHashMap<>();
+        for (int i = 0; i < inserted.size(); i++) {
+            DatasetConstellation dataset = datasets.get(i);
+            DatasetEntity ds = inserted.get(i);
+            if (ds != null) {
+                // only store values not known yet, harvests run repeatedly
+                List<DataEntity<?>> data = new ArrayList<>(2);
+                dataset.getFirst().filter(first -> isBeforeFirst(ds, first)).ifPresent(data::add);
+                dataset.getLatest().filter(latest -> isAfterLast(ds, latest))
+                        .filter(latest -> data.stream().noneMatch(first -> isSameTime(first, latest)))
+                        .ifPresent(data::add);
+                if (!data.isEmpty() && staging && ds.isPublished()) {
+                    stagedValues.put(ds, data);
+                } else if (!data.isEmpty()) {
+                    values.put(ds, data);
+                }
+                LOGGER.debug("Added dataset: {}", dataset);
+                saved.add(ds.getId());
+                if (!ds.isPublished()) {
+                    stagedDatasetIds.add(ds.getId());
                 }
             } else {
-                LOGGER.warn("Can't add dataset: {}", dataset);
+                LOGGER.warn("Can't save dataset: {}", dataset);
             }
-        });
+        }
+        if (!values.isEmpty()) {
+            insertRepository.insertData(values);
+        }
+        LOGGER.info("Saved {} datasets of '{}', {} of them unchanged", saved.size(), service.getName(),
+                unchanged);
+        return saved;
+    }
+
+    private DatasetKey getKey(DatasetConstellation dataset) {
+        return new DatasetKey(dataset.getProcedure(), dataset.getOffering(), dataset.getPhenomenon(),
+                dataset.getFeature(), dataset.getPlatform());
+    }
+
+    private boolean hasNewValues(StoredDataset stored, DatasetConstellation dataset) {
+        return dataset.getFirst().filter(first -> stored.isBeforeFirst(first.getSamplingTimeStart())).isPresent()
+                || dataset.getLatest().filter(latest -> stored.isAfterLast(latest.getSamplingTimeEnd())).isPresent();
+    }
+
+    private DatasetEntity createDatasetEntity(ServiceConstellation constellation, ServiceEntity service,
+            DatasetConstellation dataset) {
+        ProcedureEntity procedure = constellation.getProcedures().get(dataset.getProcedure());
+        CategoryEntity category = new CategoryEntity();
+        category.setId(1L);
+        category.setIdentifier("DEFAULT_PROXY_CATEGORY");
+        FeatureEntity feature = constellation.getFeatures().get(dataset.getFeature());
+        OfferingEntity offering = constellation.getOfferings().get(dataset.getOffering());
+        PhenomenonEntity phenomenon = constellation.getPhenomena().get(dataset.getPhenomenon());
+        PlatformEntity platform = constellation.getPlatforms().get(dataset.getPlatform());
+
+        List<DescribableEntity> entities = Arrays.asList(procedure, category, feature, offering, phenomenon, platform);
+        if (entities.stream().allMatch(Objects::nonNull)) {
+            entities.stream().forEach(x -> x.setService(service));
+            return dataset.createDatasetEntity(procedure, category, feature, offering, phenomenon, platform, service);
+        } else {
+            LOGGER.warn("Can't add dataset: {}", dataset);
+            return null;
+        }
+    }
+
+    private boolean isBeforeFirst(DatasetEntity dataset, DataEntity<?> data) {
+        return dataset.getFirstObservation() == null || !dataset.isSetFirstValueAt()
+                || dataset.getFirstValueAt().after(data.getSamplingTimeStart());
+    }
+
+    /**
+     * @return if both values were observed at the same time, e.g. the first and latest value of a dataset with a
+     *         single value
+     */
+    private boolean isSameTime(DataEntity<?> first, DataEntity<?> latest) {
+        return first == latest || Objects.equals(first.getSamplingTimeStart(), latest.getSamplingTimeStart())
+                && Objects.equals(first.getSamplingTimeEnd(), latest.getSamplingTimeEnd());
+    }
 
-        insertRepository.cleanUp(service, datasetIds, datasetCount > 0 && datasetIds.size() == datasetCount);
+    private boolean isAfterLast(DatasetEntity dataset, DataEntity<?> data) {
+        return dataset.getLastObservation() == null || !dataset.isSetLastValueAt()
+                || dataset.getLastValueAt().before(data.getSamplingTimeEnd());
     }
 
     private GetCapabilitiesResponse getCapabilities(DataSourceConfiguration dataSource)
             throws IOException, DecodingException {
         try {
-            SimpleHttpClient simpleHttpClient = new SimpleHttpClient();
+            HttpClient client = httpClient != null ? httpClient : new SimpleHttpClient();
             String url = dataSource.getUrl();
             if (url.contains("?")) {
                 url += "&";
             } else {
                 url += "?";
             }
-            HttpResponse response = simpleHttpClient.executeGet(url + "service=SOS&request=GetCapabilities"
+            HttpResponse response = client.executeGet(url + "service=SOS&request=GetCapabilities"
                     + (dataSource.isDisableHumanReadableName() ? "&returnHumanReadableIdentifier=false" : ""));
             XmlObject xmlResponse = XmlObject.Factory.parse(response.getEntity().getContent());
             return (GetCapabilitiesResponse) decoderRepository.getDecoder(CodingHelper.getDecoderKey(xmlResponse))
@@ -29,25 +29,32 @@
 package org.n52.sensorweb.server.helgoland.adapters.harvest;
 
 import org.n52.io.task.ScheduledJob;
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationChangeListener;
 import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourcesChange;
 import org.n52.sensorweb.server.helgoland.adapters.da.InsertRepository;
 import org.quartz.JobDetail;
+import org.quartz.JobKey;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.Trigger;
 import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 import static java.util.stream.Collectors.toSet;
 
-public class DataSourceHarvesterScheduler {
+public class DataSourceHarvesterScheduler implements ConfigurationChangeListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(DataSourceHarvesterScheduler.class);
     private ConfigurationReader configurationProvider;
@@ -55,10 +62,20 @@ public class DataSourceHarvesterScheduler {
     private int startupDelayInSeconds = 5;
     private Scheduler scheduler;
     private boolean enabled = true;
+    private final HarvestTriggerFactory triggerFactory = new HarvestTriggerFactory();
 
     @Autowired
     private InsertRepository insertRepository;
 
+    @Autowired
+    private HarvestStateStore stateStore;
+
+    @Autowired
+    private HarvestCheckpointStore checkpointStore;
+
+    @Autowired(required = false)
+    private HarvestExecutor harvestExecutor;
+
     public void init() {
         if (!enabled) {
             LOGGER.info("Job schedular disabled. No jobs will be triggered." +
@@ -71,16 +88,22 @@ public class DataSourceHarvesterScheduler {
                 .filter(t -> t.getJob().isEnabled())
                 .collect(toSet());
         insertRepository.removeNonMatchingServices(configuredServices);
+        checkpointStore.retain(configurationProvider.getDataSource().stream()
+                .map(DataSourceConfiguration::getItemName).collect(toSet()));
 
+        removeUnconfiguredJobs();
+        triggerFactory.spread(configurationProvider.getDataSource());
         configurationProvider.getDataSource().stream()
                 .peek(config -> LOGGER.info("{} {}", config.getItemName(), config.getUrl()))
-                .map(config -> {
-                    DataSourceHarvesterJob job = new DataSourceHarvesterJob();
-                    job.init(config);
-                    return job;
-                }).forEach(this::scheduleJob);
+                .map(this::createJob).forEach(job -> scheduleJob(job, true));
+        configurationProvider.addListener(this);
 
         try {
+            if (harvestExecutor != null) {
+                // waiting harvests are queued by the executor instead of blocking worker threads
+                scheduler.getListenerManager()
+                        .addTriggerListener(new HarvestAdmissionListener(harvestExecutor, configurationProvider));
+            }
             scheduler.startDelayed(startupDelayInSeconds);
             LOGGER.info("Scheduler will start jobs in {}s ...", startupDelayInSeconds);
         } catch (SchedulerException e) {
@@ -88,29 +111,164 @@ public class DataSourceHarvesterScheduler {
         }
     }
 
-    private void scheduleJob(ScheduledJob taskToSchedule) {
+    /**
+     * Applies a changed data source configuration to the affected jobs only. The data of removed sources, of
+     * disabled sources and of sources with a new URL is removed. Checkpoints of removed and changed sources are
+     * discarded. Changed sources are harvested at startup only if their data was removed. Unchanged sources are
+     * moved to their new offset if the spread of their window changed.
+     */
+    @Override
+    public synchronized void configurationChanged(DataSourcesChange change) {
+        for (DataSourceConfiguration removed : change.getRemoved()) {
+            LOGGER.info("Remove job of data source '{}'.", removed.getItemName());
+            try {
+                scheduler.deleteJob(JobKey.jobKey(removed.getItemName()));
+            } catch (SchedulerException e) {
+                LOGGER.warn("Could not remove job '{}'.", removed.getItemName(), e);
+            }
+            if (harvestExecutor != null) {
+                harvestExecutor.cancel(removed.getItemName());
+            }
+            insertRepository.removeService(removed);
+            stateStore.delete(removed.getItemName());
+            checkpointStore.delete(removed.getItemName());
+        }
+        Set<String> cleared = new HashSet<>();
+        for (DataSourceConfiguration changed : change.getChanged()) {
+            DataSourceConfiguration previous = change.getPrevious(changed.getItemName());
+            checkpointStore.delete(changed.getItemName());
+            if (!isEnabled(changed) || !previous.getUrl().equals(changed.getUrl())) {
+                insertRepository.removeService(previous);
+                stateStore.delete(previous.getItemName());
+                cleared.add(changed.getItemName());
+            }
+        }
+        Set<String> respread = triggerFactory.spread(configurationProvider.getDataSource());
+        Set<String> scheduled = new HashSet<>();
+        for (DataSourceConfiguration added : change.getAdded()) {
+            LOGGER.info("Schedule job of data source '{}'.", added.getItemName());
+            scheduleJob(createJob(added), true);
+            scheduled.add(added.getItemName());
+        }
+        for (DataSourceConfiguration changed : change.getChanged()) {
+            LOGGER.info("Reschedule job of data source '{}'.", changed.getItemName());
+            scheduleJob(createJob(changed), cleared.contains(changed.getItemName()));
+            scheduled.add(changed.getItemName());
+        }
+        configurationProvider.getDataSource().stream()
+                .filter(config -> respread.contains(config.getItemName()) && !scheduled.contains(config.getItemName()))
+                .filter(config -> isEnabled(config) && !triggerFactory.isAdaptive(config))
+                .forEach(this::respread);
+    }
+
+    /**
+     * Moves the trigger of an unchanged source to its new offset within the spread window.
+     */
+    private void respread(DataSourceConfiguration config) {
+        JobKey key = JobKey.jobKey(config.getItemName());
+        LOGGER.info("Move the harvest of '{}' to its new offset within the spread window.", config.getItemName());
+        try {
+            scheduler.rescheduleJob(TriggerKey.triggerKey(key.getName(), key.getGroup()),
+                    triggerFactory.createTrigger(config, key));
+        } catch (SchedulerException e) {
+            LOGGER.warn("Could not reschedule job '{}'.", key, e);
+        }
+    }
+
+    private boolean isEnabled(DataSourceConfiguration config) {
+        return config.getJob() != null && config.getJob().isEnabled();
+    }
+
+    private DataSourceHarvesterJob createJob(DataSourceConfiguration config) {
+        DataSourceHarvesterJob job = new DataSourceHarvesterJob();
+        job.init(config);
+        return job;
+    }
+
+    /**
+     * @param taskToSchedule
+     *            the job
+     * @param atStartup
+     *            if the job may be triggered once at startup, jobs rescheduled for a changed configuration of which
+     *            the data was kept are not
+     */
+    private void scheduleJob(DataSourceHarvesterJob taskToSchedule, boolean atStartup) {
         try {
             if (taskToSchedule.isEnabled()) {
                 JobDetail details = taskToSchedule.createJobDetails();
-                Trigger trigger = taskToSchedule.createTrigger(details.getKey());
-                scheduler.scheduleJob(details, trigger);
-                if (taskToSchedule.isTriggerAtStartup()) {
+                Integer interval = getAdaptedInterval(details.getKey());
+                if (interval != null) {
+                    details.getJobDataMap().put(DataSourceHarvesterJob.JOB_INTERVAL, interval.intValue());
+                }
+                Trigger trigger =
+                        triggerFactory.createTrigger(taskToSchedule.getConfig(), details.getKey(), interval);
+                // replace jobs another cluster node has already stored
+                scheduler.scheduleJob(details, Collections.singleton(trigger), true);
+                TriggerKey onceAtStartupKey = TriggerKey.triggerKey(details.getKey() + "_onceAtStartup");
+                if (atStartup && taskToSchedule.isTriggerAtStartup() && !scheduler.checkExists(onceAtStartupKey)
+                        && !isFresh(taskToSchedule.getConfig())) {
                     LOGGER.debug("Schedule job '{}' to run once at startup.", details.getKey());
                     Trigger onceAtStartup = TriggerBuilder.newTrigger()
-                            .withIdentity(details.getKey() + "_onceAtStartup")
+                            .withIdentity(onceAtStartupKey)
                             .forJob(details.getKey()).build();
                     scheduler.scheduleJob(onceAtStartup);
                 }
+            } else {
+                scheduler.deleteJob(JobKey.jobKey(taskToSchedule.getJobName()));
             }
         } catch (SchedulerException e) {
             LOGGER.warn("Could not schdule Job '{}'.", taskToSchedule.getJobName(), e);
         }
     }
 
+    /**
+     * @return if the source was harvested recently and its data survived the restart, so harvesting it at startup
+     *         can be skipped
+     */
+    private boolean isFresh(DataSourceConfiguration config) {
+        if (stateStore.isFresh(config) && insertRepository.hasService(config)) {
+            LOGGER.info("Skip harvesting '{}' at startup, the last harvest is still fresh.", config.getItemName());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the adaptive interval of a job stored by a previous run, only available in persistent job stores
+     */
+    private Integer getAdaptedInterval(JobKey key) throws SchedulerException {
+        JobDetail stored = scheduler.getJobDetail(key);
+        if (stored != null && stored.getJobDataMap().containsKey(DataSourceHarvesterJob.JOB_INTERVAL)) {
+            return stored.getJobDataMap().getInt(DataSourceHarvesterJob.JOB_INTERVAL);
+        }
+        return null;
+    }
+
+    /**
+     * Removes jobs of data sources which are not configured anymore. Only relevant for persistent job stores, where
+     * jobs of previous runs survive a restart.
+     */
+    private void removeUnconfiguredJobs() {
+        Set<String> configured = configurationProvider.getDataSource().stream()
+                .map(DataSourceConfiguration::getItemName)
+                .collect(toSet());
+        try {
+            for (JobKey key : scheduler.getJobKeys(GroupMatcher.jobGroupEquals(JobKey.DEFAULT_GROUP))) {
+                if (!configured.contains(key.getName())) {
+                    LOGGER.info("Remove job '{}' of a data source which is not configured anymore.", key);
+                    scheduler.deleteJob(key);
+                }
+            }
+        } catch (SchedulerException e) {
+            LOGGER.warn("Could not remove unconfigured jobs.", e);
+        }
+    }
+
     /**
      * Shuts down the task scheduler without waiting tasks to be finished.
      */
     public void shutdown() {
+        configurationProvider.removeListener(this);
         try {
             scheduler.shutdown(true);
             LOGGER.info("Shutdown scheduler");
@@ -143,6 +301,18 @@ public class DataSourceHarvesterScheduler {
         this.scheduler = scheduler;
     }
 
+    public int getMaxJitterInSeconds() {
+        return triggerFactory.getMaxJitterInSeconds();
+    }
+
+    /**
+     * @param maxJitterInSeconds
+     *            the maximum offset cron triggered harvests are shifted by, unless configured per data source
+     */
+    public void setMaxJitterInSeconds(int maxJitterInSeconds) {
+        triggerFactory.setMaxJitterInSeconds(maxJitterInSeconds);
+    }
+
     public boolean isEnabled() {
         return enabled;
     }
@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.listeners.TriggerListenerSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits harvests through the {@link HarvestExecutor} before they occupy a Quartz worker thread. A harvest without a
+ * free slot is vetoed and queued instead of blocking the thread, so other triggers do not misfire while harvests
+ * wait. Once the executor reserves a slot for the queued harvest, its job is triggered again and claims the slot.
+ * <p>
+ * The {@link HarvestExecutor} and its reservations are local to a node, so the concurrency limit applies per node of
+ * a clustered scheduler. The resumed trigger is marked with the instance id of the node holding the reservation, but
+ * the JDBC job store may hand it to any node. Another node admits it through its own executor like a new harvest,
+ * and the reserving node frees its reservation as soon as it notices the resumed trigger was fired elsewhere. A
+ * queued harvest is therefore neither lost nor admitted twice.
+ */
+public class HarvestAdmissionListener extends TriggerListenerSupport {
+
+    /**
+     * marks the execution context of an admitted harvest
+     */
+    static final String ADMITTED = HarvestAdmissionListener.class.getName() + ".admitted";
+
+    /**
+     * trigger data key holding the instance id of the node which resumed the harvest
+     */
+    static final String RESUMED_BY = HarvestAdmissionListener.class.getName() + ".resumedBy";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestAdmissionListener.class);
+
+    private final HarvestExecutor harvestExecutor;
+
+    private final ConfigurationReader configurationProvider;
+
+    /**
+     * the pending resumed triggers of the reservations of this node
+     */
+    private final Map<String, TriggerKey> resumes = new ConcurrentHashMap<>();
+
+    public HarvestAdmissionListener(HarvestExecutor harvestExecutor, ConfigurationReader configurationProvider) {
+        this.harvestExecutor = harvestExecutor;
+        this.configurationProvider = configurationProvider;
+    }
+
+    @Override
+    public String getName() {
+        return HarvestAdmissionListener.class.getSimpleName();
+    }
+
+    @Override
+    public boolean vetoJobExecution(Trigger trigger, JobExecutionContext context) {
+        if (!DataSourceHarvesterJob.class.isAssignableFrom(context.getJobDetail().getJobClass())) {
+            return false;
+        }
+        Scheduler scheduler = context.getScheduler();
+        releaseResumedElsewhere(scheduler, trigger.getKey());
+        String itemName = context.getJobDetail().getJobDataMap().getString(DataSourceHarvesterJob.JOB_ITEM_NAME);
+        Optional<DataSourceConfiguration> dataSource = configurationProvider.getDataSource(itemName);
+        if (!dataSource.isPresent()) {
+            // the job skips sources which are not configured anymore
+            return false;
+        }
+        DataSourceJobConfiguration job =
+                Optional.ofNullable(dataSource.get().getJob()).orElseGet(DataSourceJobConfiguration::new);
+        JobKey key = context.getJobDetail().getKey();
+        String resumedBy = trigger.getJobDataMap().getString(RESUMED_BY);
+        if (resumedBy != null && !resumedBy.equals(getInstanceId(scheduler))) {
+            LOGGER.debug("{} was resumed by {}, it is admitted like a new harvest.", key, resumedBy);
+        }
+        if (harvestExecutor.tryAcquire(itemName, job.getPriority(), job.getWeight(),
+                () -> resume(scheduler, itemName, key))) {
+            context.put(ADMITTED, Boolean.TRUE);
+            TriggerKey pending = resumes.remove(itemName);
+            if (pending != null && !pending.equals(trigger.getKey())) {
+                // the reserved slot was claimed by a regular trigger, the resumed one would harvest again
+                unschedule(scheduler, pending);
+            }
+            return false;
+        }
+        LOGGER.debug("{} is queued for a harvest slot.", key);
+        return true;
+    }
+
+    @Override
+    public void triggerComplete(Trigger trigger, JobExecutionContext context,
+            CompletedExecutionInstruction triggerInstructionCode) {
+        if (isAdmitted(context)) {
+            String itemName =
+                    context.getJobDetail().getJobDataMap().getString(DataSourceHarvesterJob.JOB_ITEM_NAME);
+            harvestExecutor.release(itemName, context.getJobRunTime());
+        }
+    }
+
+    static boolean isAdmitted(JobExecutionContext context) {
+        return Boolean.TRUE.equals(context.get(ADMITTED));
+    }
+
+    private void resume(Scheduler scheduler, String itemName, JobKey key) {
+        TriggerKey triggerKey = TriggerKey.triggerKey(key.getName() + "-resume-" + UUID.randomUUID(), key.getGroup());
+        resumes.put(itemName, triggerKey);
+        try {
+            LOGGER.debug("Resume {} with its reserved harvest slot.", key);
+            scheduler.scheduleJob(TriggerBuilder.newTrigger().withIdentity(triggerKey).forJob(key)
+                    .usingJobData(RESUMED_BY, scheduler.getSchedulerInstanceId()).startNow().build());
+        } catch (SchedulerException e) {
+            resumes.remove(itemName, triggerKey);
+            throw new IllegalStateException("Could not trigger " + key, e);
+        }
+    }
+
+    /**
+     * Frees the reservations whose resumed trigger was fired by another node of the cluster.
+     */
+    private void releaseResumedElsewhere(Scheduler scheduler, TriggerKey firing) {
+        resumes.forEach((itemName, triggerKey) -> {
+            if (!triggerKey.equals(firing) && isFired(scheduler, triggerKey) && resumes.remove(itemName, triggerKey)) {
+                LOGGER.debug("Harvest of '{}' was resumed by another node, freeing its reserved slot.", itemName);
+                harvestExecutor.cancel(itemName);
+            }
+        });
+    }
+
+    private boolean isFired(Scheduler scheduler, TriggerKey triggerKey) {
+        try {
+            TriggerState state = scheduler.getTriggerState(triggerKey);
+            return state == TriggerState.NONE || state == TriggerState.COMPLETE;
+        } catch (SchedulerException e) {
+            LOGGER.warn("Could not check the state of {}.", triggerKey, e);
+            return false;
+        }
+    }
+
+    private void unschedule(Scheduler scheduler, TriggerKey triggerKey) {
+        try {
+            scheduler.unscheduleJob(triggerKey);
+        } catch (SchedulerException e) {
+            LOGGER.warn("Could not unschedule {}.", triggerKey, e);
+        }
+    }
+
+    private String getInstanceId(Scheduler scheduler) {
+        try {
+            return scheduler.getSchedulerInstanceId();
+        } catch (SchedulerException e) {
+            throw new IllegalStateException("Could not get the scheduler instance id", e);
+        }
+    }
+
+}
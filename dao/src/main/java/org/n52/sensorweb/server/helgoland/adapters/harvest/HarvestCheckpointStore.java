@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCheckpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Stores {@link HarvestCheckpoint}s as JSON files, one per data source. Checkpointing is disabled as long as no
+ * directory is configured. Shared checkpoints are kept in the database of the {@link HarvestStateStore} instead, so
+ * an interrupted harvest is resumed by whichever node of a cluster runs it next. A checkpoint is only resumed by a
+ * harvest of the same data source configuration within the maximum age, outdated checkpoints are discarded.
+ */
+@Component
+public class HarvestCheckpointStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestCheckpointStore.class);
+
+    private static final String FILE_SUFFIX = ".checkpoint.json";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Value("${harvest.checkpoint.directory:}")
+    private String directory;
+
+    @Value("${harvest.checkpoint.max-age:604800}")
+    private long maxAgeInSeconds;
+
+    @Value("${harvest.checkpoint.shared:false}")
+    private boolean shared;
+
+    @Autowired(required = false)
+    private HarvestStateStore stateStore;
+
+    public boolean isEnabled() {
+        return useStateStore() || directory != null && !directory.trim().isEmpty();
+    }
+
+    private boolean useStateStore() {
+        return shared && stateStore != null;
+    }
+
+    public Optional<HarvestCheckpoint> read(String itemName) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        if (useStateStore()) {
+            try {
+                return stateStore.getCheckpoint(itemName).map(this::deserialize);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not read the shared checkpoint of '{}'. Harvesting it from scratch.", itemName, e);
+                return Optional.empty();
+            }
+        }
+        Path file = getFile(itemName);
+        if (!Files.isReadable(file)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(objectMapper.readValue(file.toFile(), HarvestCheckpoint.class));
+        } catch (IOException e) {
+            LOGGER.warn("Could not read checkpoint {}. Harvesting '{}' from scratch.", file, itemName, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Reads the checkpoint of a data source if it can be resumed, i.e. if it was written for the current
+     * configuration of the data source and is not older than the maximum age. Other checkpoints are deleted.
+     *
+     * @param config
+     *            the data source
+     * @return the checkpoint to resume
+     */
+    public Optional<HarvestCheckpoint> read(DataSourceConfiguration config) {
+        Optional<HarvestCheckpoint> checkpoint = read(config.getItemName());
+        if (checkpoint.isPresent() && !isResumable(checkpoint.get(), config)) {
+            LOGGER.info("Discard checkpoint of '{}' updated at {}, the configuration changed or it is too old.",
+                    config.getItemName(), checkpoint.get().getUpdated());
+            delete(config.getItemName());
+            return Optional.empty();
+        }
+        return checkpoint;
+    }
+
+    private boolean isResumable(HarvestCheckpoint checkpoint, DataSourceConfiguration config) {
+        if (!Objects.equals(checkpoint.getConfigHash(), config.getConfigHash())) {
+            return false;
+        }
+        Date updated = checkpoint.getUpdated();
+        return maxAgeInSeconds <= 0 || updated != null
+                && updated.getTime() + TimeUnit.SECONDS.toMillis(maxAgeInSeconds) > System.currentTimeMillis();
+    }
+
+    private HarvestCheckpoint deserialize(String checkpoint) {
+        try {
+            return objectMapper.readValue(checkpoint, HarvestCheckpoint.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("Invalid checkpoint", e);
+        }
+    }
+
+    public void write(HarvestCheckpoint checkpoint) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (useStateStore()) {
+            try {
+                stateStore.saveCheckpoint(checkpoint.getItemName(), objectMapper.writeValueAsString(checkpoint));
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Could not write the shared checkpoint of '{}'.", checkpoint.getItemName(), e);
+            }
+            return;
+        }
+        Path file = getFile(checkpoint.getItemName());
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, objectMapper.writeValueAsString(checkpoint).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Could not write checkpoint {}.", file, e);
+        }
+    }
+
+    public void delete(String itemName) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            if (useStateStore()) {
+                stateStore.deleteCheckpoint(itemName);
+            } else {
+                Files.deleteIfExists(getFile(itemName));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not delete checkpoint of '{}'.", itemName, e);
+        }
+    }
+
+    /**
+     * Deletes the checkpoints of all data sources not given, e.g. of sources removed while the server was down.
+     *
+     * @param itemNames
+     *            the names of the data sources to keep the checkpoints of
+     */
+    public void retain(Collection<String> itemNames) {
+        if (useStateStore()) {
+            stateStore.getCheckpointItemNames().stream().filter(itemName -> !itemNames.contains(itemName))
+                    .peek(itemName -> LOGGER.info("Delete checkpoint of '{}', it is not configured anymore.",
+                            itemName))
+                    .forEach(stateStore::deleteCheckpoint);
+            return;
+        }
+        if (!isEnabled() || !Files.isDirectory(Paths.get(directory))) {
+            return;
+        }
+        Set<Path> retained = itemNames.stream().map(this::getFile).collect(toSet());
+        try (Stream<Path> files = Files.list(Paths.get(directory))) {
+            files.filter(file -> file.getFileName().toString().endsWith(FILE_SUFFIX))
+                    .filter(file -> !retained.contains(file)).forEach(file -> {
+                        try {
+                            LOGGER.info("Delete checkpoint {} of a data source not configured anymore.", file);
+                            Files.delete(file);
+                        } catch (IOException e) {
+                            LOGGER.warn("Could not delete checkpoint {}.", file, e);
+                        }
+                    });
+        } catch (IOException e) {
+            LOGGER.warn("Could not list the checkpoints in {}.", directory, e);
+        }
+    }
+
+    private Path getFile(String itemName) {
+        return Paths.get(directory, itemName.replaceAll("[^A-Za-z0-9._-]", "_") + FILE_SUFFIX);
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public void setDirectory(String directory) {
+        this.directory = directory;
+    }
+
+    public long getMaxAgeInSeconds() {
+        return maxAgeInSeconds;
+    }
+
+    public void setMaxAgeInSeconds(long maxAgeInSeconds) {
+        this.maxAgeInSeconds = maxAgeInSeconds;
+    }
+
+    public boolean isShared() {
+        return shared;
+    }
+
+    public void setShared(boolean shared) {
+        this.shared = shared;
+    }
+
+    public HarvestStateStore getStateStore() {
+        return stateStore;
+    }
+
+    public void setStateStore(HarvestStateStore stateStore) {
+        this.stateStore = stateStore;
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.util.Objects;
+
+/**
+ * Result of a finished harvest as passed to {@link HarvestingListener}s: the harvested source, the id of the persisted
+ * service and a summary of the changes. Events wait in the queues of the listeners, so they do not hold the harvested
+ * entities; listeners needing the service, its capabilities or its datasets load them.
+ */
+public class HarvestEvent {
+
+    private final String itemName;
+
+    private final long serviceId;
+
+    private final HarvestSummary summary;
+
+    public HarvestEvent(String itemName, long serviceId, HarvestSummary summary) {
+        this.itemName = Objects.requireNonNull(itemName);
+        this.serviceId = serviceId;
+        this.summary = Objects.requireNonNull(summary);
+    }
+
+    public String getItemName() {
+        return itemName;
+    }
+
+    public long getServiceId() {
+        return serviceId;
+    }
+
+    public HarvestSummary getSummary() {
+        return summary;
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static java.util.stream.Collectors.toList;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Delivers {@link HarvestEvent}s to the {@link HarvestingListener}s asynchronously. Every listener has its own worker
+ * thread and bounded queue, so a slow or failing listener neither delays harvests nor other listeners. If the queue of
+ * a listener is full, the event is dropped for that listener.
+ */
+@Component
+public class HarvestEventBus implements DisposableBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestEventBus.class);
+
+    private static final long SHUTDOWN_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+    private final List<Worker> workers;
+
+    @Autowired
+    public HarvestEventBus(ObjectProvider<HarvestingListener> listeners,
+            @Value("${harvest.events.queue-capacity:100}") int queueCapacity) {
+        this.workers = listeners.orderedStream().map(listener -> new Worker(listener, queueCapacity))
+                .collect(toList());
+        this.workers.forEach(Worker::start);
+    }
+
+    /**
+     * Queues the event for every listener without waiting for full queues.
+     *
+     * @param event
+     *            the event
+     */
+    public void publish(HarvestEvent event) {
+        for (Worker worker : workers) {
+            if (!worker.queue.offer(event)) {
+                LOGGER.warn("Event queue of {} is full. Dropped the event of '{}'.", worker.listener,
+                        event.getItemName());
+            }
+        }
+    }
+
+    public int getQueueLength() {
+        return workers.stream().mapToInt(worker -> worker.queue.size()).sum();
+    }
+
+    @Override
+    public void destroy() {
+        workers.forEach(Thread::interrupt);
+        for (Worker worker : workers) {
+            try {
+                worker.join(SHUTDOWN_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!worker.queue.isEmpty()) {
+                LOGGER.info("Discarded {} pending events of {}", worker.queue.size(), worker.listener);
+            }
+        }
+    }
+
+    private static final class Worker extends Thread {
+
+        private final HarvestingListener listener;
+
+        private final BlockingQueue<HarvestEvent> queue;
+
+        Worker(HarvestingListener listener, int queueCapacity) {
+            super("harvest-events-" + listener.getClass().getSimpleName());
+            setDaemon(true);
+            this.listener = listener;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                HarvestEvent event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    listener.onResult(event);
+                } catch (Throwable t) {
+                    LOGGER.warn("error executing listener " + listener, t);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.HarvestPriority;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits harvests of all data sources through a single queue with a global concurrency limit.
+ * <p>
+ * Waiting harvests are ordered by their {@link HarvestPriority} first. Within a priority class the queue applies
+ * weighted fair queuing: every harvest gets a virtual start tag which is advanced by the expected duration of the
+ * source divided by its weight. Sources with long running harvests therefore cannot crowd out small sources, while a
+ * source with a higher weight gets a proportionally larger share of the harvest slots.
+ * <p>
+ * Scheduled harvests are admitted by {@link #tryAcquire(String, HarvestPriority, double, Runnable)}, which never
+ * blocks: a harvest without a free slot is queued and resumed once a slot is reserved for it, see
+ * {@link HarvestAdmissionListener}.
+ * <p>
+ * The queue and its limit are local to the JVM. Every node of a clustered scheduler admits the harvests it fires
+ * through its own executor, so the limit applies per node.
+ */
+public class HarvestExecutor implements HarvestExecutorMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestExecutor.class);
+
+    /**
+     * Smoothing factor of the expected harvest duration.
+     */
+    private static final double ALPHA = 0.3;
+
+    /**
+     * Time after which a reserved slot is freed again if the resumed harvest did not claim it.
+     */
+    private static final long RESERVATION_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private final Condition changed = lock.newCondition();
+
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>();
+
+    private final Map<String, SourceState> sources = new HashMap<>();
+
+    private int maxConcurrentHarvests = 2;
+
+    private int running;
+
+    private double virtualTime;
+
+    private long sequence;
+
+    /**
+     * Runs the harvest as soon as it is admitted by the queue. The calling thread is blocked while waiting.
+     *
+     * @param <E>
+     *            the exception type thrown by the harvest
+     * @param source
+     *            the name of the data source
+     * @param priority
+     *            the priority class
+     * @param weight
+     *            the weight of the source within its priority class
+     * @param harvest
+     *            the harvest to run
+     * @throws E
+     *             if the harvest fails
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    public <E extends Exception> void execute(String source, HarvestPriority priority, double weight,
+            Harvest<E> harvest) throws E, InterruptedException {
+        Ticket ticket = acquire(source, priority, weight);
+        long start = System.nanoTime();
+        try {
+            harvest.run();
+        } finally {
+            release(ticket.state, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Admits the harvest if a slot is free and no other harvest is queued before it, without blocking. Otherwise the
+     * harvest is queued and {@code resume} is called once a slot is reserved for it; the next call for the source
+     * claims the reserved slot then. Further calls for a source which is already queued are rejected, so missed
+     * executions of a source collapse into one.
+     *
+     * @param source
+     *            the name of the data source
+     * @param priority
+     *            the priority class
+     * @param weight
+     *            the weight of the source within its priority class
+     * @param resume
+     *            called without holding any lock once a slot is reserved for the queued harvest
+     * @return if the harvest is admitted, it has to be {@link #release(String, long) released} when finished
+     */
+    public boolean tryAcquire(String source, HarvestPriority priority, double weight, Runnable resume) {
+        List<Ticket> reserved;
+        boolean admitted;
+        lock.lock();
+        try {
+            SourceState state = sources.computeIfAbsent(source, SourceState::new);
+            if (state.reserved != null) {
+                state.reserved = null;
+                LOGGER.debug("Harvest of '{}' claims its reserved slot.", source);
+                return true;
+            }
+            if (state.queued != null) {
+                LOGGER.debug("Harvest of '{}' is already queued.", source);
+                return false;
+            }
+            Ticket ticket = enqueue(state, priority, weight, resume);
+            reserved = dispatch();
+            admitted = reserved.remove(ticket);
+            if (admitted) {
+                // admitted right away, the slot is claimed without resuming
+                state.reserved = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+        return admitted;
+    }
+
+    /**
+     * Releases the slot of a harvest admitted by {@link #tryAcquire(String, HarvestPriority, double, Runnable)}.
+     *
+     * @param source
+     *            the name of the data source
+     * @param durationMillis
+     *            the duration of the harvest
+     */
+    public void release(String source, long durationMillis) {
+        SourceState state;
+        lock.lock();
+        try {
+            state = sources.get(source);
+        } finally {
+            lock.unlock();
+        }
+        if (state != null) {
+            release(state, durationMillis);
+        }
+    }
+
+    /**
+     * Removes the queued harvest of a source and frees its reserved slot, e.g. when the source is removed or its
+     * harvest was resumed by another node. A running harvest of the source keeps its slot until it is released.
+     *
+     * @param source
+     *            the name of the data source
+     */
+    public void cancel(String source) {
+        List<Ticket> reserved;
+        lock.lock();
+        try {
+            SourceState state = sources.get(source);
+            if (state == null) {
+                return;
+            }
+            if (state.queued != null) {
+                queue.remove(state.queued);
+                state.queued = null;
+            }
+            if (state.reserved != null) {
+                state.reserved = null;
+                running--;
+            }
+            reserved = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+    }
+
+    private Ticket acquire(String source, HarvestPriority priority, double weight) throws InterruptedException {
+        List<Ticket> reserved;
+        Ticket ticket;
+        lock.lock();
+        try {
+            ticket = enqueue(sources.computeIfAbsent(source, SourceState::new), priority, weight, null);
+            reserved = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+        InterruptedException interruption;
+        lock.lock();
+        try {
+            while (!ticket.admitted) {
+                changed.await();
+            }
+            return ticket;
+        } catch (InterruptedException e) {
+            if (ticket.admitted) {
+                running--;
+            } else {
+                queue.remove(ticket);
+            }
+            reserved = dispatch();
+            interruption = e;
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+        throw interruption;
+    }
+
+    private Ticket enqueue(SourceState state, HarvestPriority priority, double weight, Runnable resume) {
+        double startTag = Math.max(virtualTime, state.lastFinishTag);
+        double finishTag = startTag + state.expectedDurationSeconds / (weight > 0 ? weight : 1d);
+        state.lastFinishTag = finishTag;
+        Ticket ticket = new Ticket(state, priority == null ? HarvestPriority.NORMAL : priority, startTag,
+                sequence++, resume);
+        if (resume != null) {
+            state.queued = ticket;
+        }
+        queue.add(ticket);
+        return ticket;
+    }
+
+    /**
+     * Admits the queued harvests in order while slots are free. Has to be called while holding the lock.
+     *
+     * @return the admitted tickets to resume
+     */
+    private List<Ticket> dispatch() {
+        expireReservations();
+        List<Ticket> reserved = new ArrayList<>();
+        while (running < maxConcurrentHarvests && !queue.isEmpty()) {
+            Ticket ticket = queue.poll();
+            running++;
+            ticket.admitted = true;
+            virtualTime = Math.max(virtualTime, ticket.startTag);
+            long waitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - ticket.enqueued);
+            ticket.state.statistics.recordWait(waitMillis);
+            LOGGER.info("Harvest of '{}' admitted after waiting {}ms ({} running, {} queued).",
+                    ticket.state.statistics.getSource(), waitMillis, running, queue.size());
+            if (ticket.resume != null) {
+                ticket.state.queued = null;
+                ticket.state.reserved = ticket;
+                ticket.reservedAt = System.nanoTime();
+                reserved.add(ticket);
+            }
+        }
+        changed.signalAll();
+        return reserved;
+    }
+
+    private void expireReservations() {
+        long now = System.nanoTime();
+        for (SourceState state : sources.values()) {
+            Ticket ticket = state.reserved;
+            if (ticket != null
+                    && TimeUnit.NANOSECONDS.toMillis(now - ticket.reservedAt) > RESERVATION_TIMEOUT_MILLIS) {
+                LOGGER.warn("Harvest of '{}' did not claim its reserved slot, freeing it.",
+                        state.statistics.getSource());
+                state.reserved = null;
+                running--;
+            }
+        }
+    }
+
+    private void resume(List<Ticket> reserved) {
+        for (Ticket ticket : reserved) {
+            try {
+                ticket.resume.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Could not resume the harvest of '{}'.", ticket.state.statistics.getSource(), e);
+                lock.lock();
+                try {
+                    if (ticket.state.reserved == ticket) {
+                        ticket.state.reserved = null;
+                        running--;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void release(SourceState state, long durationMillis) {
+        List<Ticket> reserved;
+        lock.lock();
+        try {
+            running--;
+            double seconds = Math.max(1d, durationMillis / 1000d);
+            state.expectedDurationSeconds = state.statistics.getHarvests() <= 1 ? seconds
+                    : ALPHA * seconds + (1 - ALPHA) * state.expectedDurationSeconds;
+            state.statistics.recordDuration(durationMillis);
+            reserved = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+    }
+
+    /**
+     * @return a snapshot of the queue wait times per data source
+     */
+    @Override
+    public Map<String, HarvestQueueStatistics> getStatistics() {
+        lock.lock();
+        try {
+            Map<String, HarvestQueueStatistics> statistics = new LinkedHashMap<>();
+            sources.forEach((source, state) -> statistics.put(source, state.statistics.copy()));
+            return Collections.unmodifiableMap(statistics);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getQueueLength() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getRunningHarvests() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int getMaxConcurrentHarvests() {
+        return maxConcurrentHarvests;
+    }
+
+    @Override
+    public void setMaxConcurrentHarvests(int maxConcurrentHarvests) {
+        if (maxConcurrentHarvests < 1) {
+            throw new IllegalArgumentException("maxConcurrentHarvests has to be at least 1");
+        }
+        List<Ticket> reserved;
+        lock.lock();
+        try {
+            this.maxConcurrentHarvests = maxConcurrentHarvests;
+            reserved = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        resume(reserved);
+    }
+
+    @FunctionalInterface
+    public interface Harvest<E extends Exception> {
+
+        void run() throws E;
+
+    }
+
+    private static final class SourceState {
+
+        private final HarvestQueueStatistics statistics;
+
+        private double lastFinishTag;
+
+        private double expectedDurationSeconds = 1d;
+
+        /**
+         * the queued ticket of a harvest admitted without blocking
+         */
+        private Ticket queued;
+
+        /**
+         * the ticket a slot is reserved for until the resumed harvest claims it
+         */
+        private Ticket reserved;
+
+        SourceState(String source) {
+            this.statistics = new HarvestQueueStatistics(source);
+        }
+
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+
+        private final SourceState state;
+
+        private final HarvestPriority priority;
+
+        private final double startTag;
+
+        private final long sequence;
+
+        private final Runnable resume;
+
+        private final long enqueued = System.nanoTime();
+
+        private boolean admitted;
+
+        private long reservedAt;
+
+        Ticket(SourceState state, HarvestPriority priority, double startTag, long sequence, Runnable resume) {
+            this.state = state;
+            this.priority = priority;
+            this.startTag = startTag;
+            this.sequence = sequence;
+            this.resume = resume;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            int result = priority.compareTo(other.priority);
+            if (result == 0) {
+                result = Double.compare(startTag, other.startTag);
+            }
+            return result == 0 ? Long.compare(sequence, other.sequence) : result;
+        }
+
+    }
+
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pauses running harvests at their safe points while the server is under load, so background harvests yield to API
+ * requests. The load is derived from
+ * <ul>
+ * <li>the moving average of the API response times reported by {@link #recordApiRequest(long)},</li>
+ * <li>the saturation of the database connection pools (Hikari pools registering their MBeans) and</li>
+ * <li>the heap usage after the last garbage collection.</li>
+ * </ul>
+ * Harvests continue as soon as all values are below their thresholds again, or at the latest after the maximum
+ * pause, so a permanently loaded server still harvests.
+ */
+public class HarvestGovernor implements HarvestContext.Throttle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestGovernor.class);
+
+    private static final String HIKARI_POOLS = "com.zaxxer.hikari:type=Pool (*)";
+
+    private static final String HIKARI_POOL_CONFIG = "com.zaxxer.hikari:type=PoolConfig (%s)";
+
+    /**
+     * weight of the latest API response time in the moving average
+     */
+    private static final double SMOOTHING = 0.2;
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private boolean enabled = true;
+
+    private long apiLatencyThreshold = 1000L;
+
+    private long apiIdleTime = 60000L;
+
+    private double poolUsageThreshold = 0.8d;
+
+    private double heapUsageThreshold = 0.9d;
+
+    private long checkInterval = 1000L;
+
+    private int maxPauseInSeconds = 300;
+
+    private double apiLatency;
+
+    private long lastApiRequest;
+
+    /**
+     * @param millis
+     *            the time an API request took
+     */
+    public synchronized void recordApiRequest(long millis) {
+        long now = System.currentTimeMillis();
+        // start over after idle phases, a slow request long ago says nothing about the current load
+        apiLatency = now - lastApiRequest > apiIdleTime ? millis : SMOOTHING * millis + (1 - SMOOTHING) * apiLatency;
+        lastApiRequest = now;
+    }
+
+    /**
+     * @return the moving average of the API response times in milliseconds, {@code 0} if there were no recent
+     *         requests
+     */
+    public synchronized double getApiLatency() {
+        return System.currentTimeMillis() - lastApiRequest > apiIdleTime ? 0d : apiLatency;
+    }
+
+    /**
+     * @return the reason harvests should pause, or nothing if the server has capacity left
+     */
+    public Optional<String> getOverload() {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        double latency = getApiLatency();
+        if (latency > apiLatencyThreshold) {
+            return Optional.of(String.format("API latency %.0fms", latency));
+        }
+        double poolUsage = getPoolUsage();
+        if (poolUsage >= poolUsageThreshold) {
+            return Optional.of(String.format("database pool usage %.0f%%", poolUsage * 100));
+        }
+        double heapUsage = getHeapUsage();
+        if (heapUsage >= heapUsageThreshold) {
+            return Optional.of(String.format("heap usage %.0f%%", heapUsage * 100));
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public void await(HarvestContext context) throws InterruptedException {
+        Optional<String> overload = getOverload();
+        if (!overload.isPresent()) {
+            return;
+        }
+        String itemName = context.getConfig().getItemName();
+        LOGGER.info("Pausing harvest of '{}' due to {}.", itemName, overload.get());
+        long start = System.currentTimeMillis();
+        long end = start + TimeUnit.SECONDS.toMillis(maxPauseInSeconds);
+        while (overload.isPresent() && !context.isCancelled() && System.currentTimeMillis() < end) {
+            Thread.sleep(checkInterval);
+            overload = getOverload();
+        }
+        if (overload.isPresent() && !context.isCancelled()) {
+            LOGGER.info("Resuming harvest of '{}' after the maximum pause of {}s despite {}.", itemName,
+                    maxPauseInSeconds, overload.get());
+        } else {
+            LOGGER.info("Resuming harvest of '{}' after {}ms.", itemName, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * @return the highest share of used connections of all connection pools, {@code 1} if threads wait for a
+     *         connection
+     */
+    protected double getPoolUsage() {
+        double usage = 0d;
+        try {
+            Set<ObjectName> pools = mbeanServer.queryNames(new ObjectName(HIKARI_POOLS), null);
+            for (ObjectName pool : pools) {
+                if (((Number) mbeanServer.getAttribute(pool, "ThreadsAwaitingConnection")).intValue() > 0) {
+                    return 1d;
+                }
+                int active = ((Number) mbeanServer.getAttribute(pool, "ActiveConnections")).intValue();
+                int max = getMaximumPoolSize(pool);
+                if (max > 0) {
+                    usage = Math.max(usage, (double) active / max);
+                }
+            }
+        } catch (JMException | RuntimeException e) {
+            LOGGER.debug("Could not determine the connection pool usage.", e);
+        }
+        return usage;
+    }
+
+    private int getMaximumPoolSize(ObjectName pool) throws JMException {
+        String poolName = pool.getKeyProperty("type").replaceFirst("^Pool \\((.*)\\)$", "$1");
+        ObjectName config = new ObjectName(String.format(HIKARI_POOL_CONFIG, poolName));
+        if (!mbeanServer.isRegistered(config)) {
+            return ((Number) mbeanServer.getAttribute(pool, "TotalConnections")).intValue();
+        }
+        return ((Number) mbeanServer.getAttribute(config, "MaximumPoolSize")).intValue();
+    }
+
+    /**
+     * @return the share of the maximum heap which is used after the last garbage collection
+     */
+    protected double getHeapUsage() {
+        long used = 0L;
+        long max = 0L;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null && usage.getMax() > 0) {
+                used += usage.getUsed();
+                max += usage.getMax();
+            }
+        }
+        return max > 0 ? (double) used / max : 0d;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public long getApiLatencyThreshold() {
+        return apiLatencyThreshold;
+    }
+
+    /**
+     * @param apiLatencyThreshold
+     *            the average API response time in milliseconds above which harvests pause
+     */
+    public void setApiLatencyThreshold(long apiLatencyThreshold) {
+        this.apiLatencyThreshold = apiLatencyThreshold;
+    }
+
+    public long getApiIdleTime() {
+        return apiIdleTime;
+    }
+
+    /**
+     * @param apiIdleTime
+     *            the time in milliseconds without API requests after which the average response time is reset
+     */
+    public void setApiIdleTime(long apiIdleTime) {
+        this.apiIdleTime = apiIdleTime;
+    }
+
+    public double getPoolUsageThreshold() {
+        return poolUsageThreshold;
+    }
+
+    public void setPoolUsageThreshold(double poolUsageThreshold) {
+        this.poolUsageThreshold = poolUsageThreshold;
+    }
+
+    public double getHeapUsageThreshold() {
+        return heapUsageThreshold;
+    }
+
+    public void setHeapUsageThreshold(double heapUsageThreshold) {
+        this.heapUsageThreshold = heapUsageThreshold;
+    }
+
+    public long getCheckInterval() {
+        return checkInterval;
+    }
+
+    /**
+     * @param checkInterval
+     *            the interval in milliseconds in which a paused harvest checks the load again
+     */
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    public int getMaxPauseInSeconds() {
+        return maxPauseInSeconds;
+    }
+
+    /**
+     * @param maxPauseInSeconds
+     *            the longest a harvest pauses at a single safe point
+     */
+    public void setMaxPauseInSeconds(int maxPauseInSeconds) {
+        this.maxPauseInSeconds = maxPauseInSeconds;
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+/**
+ * Queue wait times of the harvests of a single data source.
+ */
+public class HarvestQueueStatistics {
+
+    private final String source;
+    private long harvests;
+    private long lastWaitMillis;
+    private long maxWaitMillis;
+    private long totalWaitMillis;
+    private long lastDurationMillis;
+
+    HarvestQueueStatistics(String source) {
+        this.source = source;
+    }
+
+    private HarvestQueueStatistics(HarvestQueueStatistics other) {
+        this.source = other.source;
+        this.harvests = other.harvests;
+        this.lastWaitMillis = other.lastWaitMillis;
+        this.maxWaitMillis = other.maxWaitMillis;
+        this.totalWaitMillis = other.totalWaitMillis;
+        this.lastDurationMillis = other.lastDurationMillis;
+    }
+
+    void recordWait(long waitMillis) {
+        harvests++;
+        lastWaitMillis = waitMillis;
+        maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+        totalWaitMillis += waitMillis;
+    }
+
+    void recordDuration(long durationMillis) {
+        lastDurationMillis = durationMillis;
+    }
+
+    HarvestQueueStatistics copy() {
+        return new HarvestQueueStatistics(this);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getHarvests() {
+        return harvests;
+    }
+
+    public long getLastWaitMillis() {
+        return lastWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public long getAverageWaitMillis() {
+        return harvests == 0 ? 0 : totalWaitMillis / harvests;
+    }
+
+    public long getLastDurationMillis() {
+        return lastDurationMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d harvests, wait last=%dms, avg=%dms, max=%dms", source, harvests,
+                lastWaitMillis, getAverageWaitMillis(), maxWaitMillis);
+    }
+
+}
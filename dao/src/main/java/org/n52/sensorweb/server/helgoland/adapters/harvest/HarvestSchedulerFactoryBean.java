@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.scheduling.quartz.SchedulerFactoryBean;
+
+/**
+ * {@link SchedulerFactoryBean} which optionally runs the harvest scheduler in clustered mode. A clustered scheduler
+ * keeps its jobs and triggers in the Quartz JDBC job store of the given data source. All nodes sharing the scheduler
+ * name acquire triggers from the same tables, so every harvest is executed by exactly one node and jobs of a failed
+ * node are recovered by the remaining ones.
+ */
+public class HarvestSchedulerFactoryBean extends SchedulerFactoryBean {
+
+    private static final String TABLE_PREFIX = "QRTZ_";
+
+    private static final String SCHEMA_LOCATION = "org/quartz/impl/jdbcjobstore/tables_%s.sql";
+
+    private boolean clustered;
+
+    private DataSource clusterDataSource;
+
+    private String instanceId = "AUTO";
+
+    private long clusterCheckinInterval = 15000L;
+
+    private boolean initializeSchema = true;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (clustered) {
+            if (clusterDataSource == null) {
+                throw new IllegalStateException("A clustered harvest scheduler requires a data source.");
+            }
+            String platform = getPlatform(clusterDataSource);
+            if (initializeSchema) {
+                initializeSchema(clusterDataSource, platform);
+            }
+            Properties properties = new Properties();
+            properties.setProperty("org.quartz.scheduler.instanceId", instanceId);
+            properties.setProperty("org.quartz.jobStore.isClustered", Boolean.TRUE.toString());
+            properties.setProperty("org.quartz.jobStore.clusterCheckinInterval",
+                    Long.toString(clusterCheckinInterval));
+            properties.setProperty("org.quartz.jobStore.tablePrefix", TABLE_PREFIX);
+            properties.setProperty("org.quartz.jobStore.driverDelegateClass", "postgres".equals(platform)
+                    ? "org.quartz.impl.jdbcjobstore.PostgreSQLDelegate"
+                    : "org.quartz.impl.jdbcjobstore.StdJDBCDelegate");
+            setQuartzProperties(properties);
+            setDataSource(clusterDataSource);
+            setTransactionManager(new DataSourceTransactionManager(clusterDataSource));
+        }
+        super.afterPropertiesSet();
+    }
+
+    private String getPlatform(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ROOT);
+            return product.contains("postgres") ? "postgres" : product.contains("h2") ? "h2" : product;
+        }
+    }
+
+    private void initializeSchema(DataSource dataSource, String platform) throws SQLException {
+        if (hasSchema(dataSource)) {
+            return;
+        }
+        ClassPathResource script = new ClassPathResource(String.format(SCHEMA_LOCATION, platform));
+        if (!script.exists()) {
+            throw new IllegalStateException(String.format("No Quartz schema found for %s. Create the tables "
+                    + "manually and disable initializeSchema.", platform));
+        }
+        logger.info("Creating Quartz job store tables from " + script);
+        ResourceDatabasePopulator populator = new ResourceDatabasePopulator(script);
+        populator.setCommentPrefixes("#", "--");
+        populator.setContinueOnError(false);
+        populator.execute(dataSource);
+    }
+
+    private boolean hasSchema(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String table : new String[] { TABLE_PREFIX + "LOCKS", (TABLE_PREFIX + "LOCKS").toLowerCase() }) {
+                try (ResultSet tables = metaData.getTables(null, null, table, null)) {
+                    if (tables.next()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    public boolean isClustered() {
+        return clustered;
+    }
+
+    public void setClustered(boolean clustered) {
+        this.clustered = clustered;
+    }
+
+    public DataSource getClusterDataSource() {
+        return clusterDataSource;
+    }
+
+    public void setClusterDataSource(DataSource clusterDataSource) {
+        this.clusterDataSource = clusterDataSource;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * @param instanceId
+     *            the unique id of this node within the cluster, {@code AUTO} to generate one
+     */
+    public void setInstanceId(String instanceId) {
+        this.instanceId = instanceId;
+    }
+
+    public long getClusterCheckinInterval() {
+        return clusterCheckinInterval;
+    }
+
+    /**
+     * @param clusterCheckinInterval
+     *            the interval in milliseconds in which nodes check in. Jobs of nodes missing their check in are
+     *            recovered by other nodes.
+     */
+    public void setClusterCheckinInterval(long clusterCheckinInterval) {
+        this.clusterCheckinInterval = clusterCheckinInterval;
+    }
+
+    public boolean isInitializeSchema() {
+        return initializeSchema;
+    }
+
+    public void setInitializeSchema(boolean initializeSchema) {
+        this.initializeSchema = initializeSchema;
+    }
+
+}
@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static java.util.stream.Collectors.toList;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.sql.DataSource;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the time of the last successful harvest of each data source in the database, so a restart with a persistent
+ * schema does not have to harvest sources again which are still fresh. It also counts the harvest generations of
+ * each source, remembers the datasets hidden because they were missing upstream and optionally keeps the harvest
+ * checkpoints, so any node of a cluster can resume an interrupted harvest. The tables are created and
+ * updated by the versioned scripts {@code db/harvest/V<version>__<description>.sql} on first use. Nodes sharing the
+ * database take turns migrating via a lock row in {@code harvest_schema_lock}.
+ * <p>
+ * Only the harvest tables are versioned. The harvested entities are still created by hbm2ddl, so the harvest state
+ * is only kept across restarts with a persistent schema ({@code update} or {@code validate}) and discarded on
+ * startup otherwise.
+ */
+@Component
+public class HarvestStateStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestStateStore.class);
+
+    private static final String VERSION_TABLE = "harvest_schema_version";
+
+    private static final String LOCK_TABLE = "harvest_schema_lock";
+
+    /**
+     * Time after which a migration lock is considered abandoned by a failed node.
+     */
+    private static final long LOCK_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long LOCK_RETRY_MILLIS = 500;
+
+    private static final String MIGRATIONS = "classpath*:db/harvest/V*__*.sql";
+
+    private static final Pattern MIGRATION_NAME = Pattern.compile("V(\\d+)__(.+)\\.sql");
+
+    private static final String[] STATE_TABLES = { "harvest_state", "harvest_generation", "harvest_stale_dataset",
+        "harvest_checkpoint" };
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${harvest.startup.freshness-seconds:0}")
+    private int defaultFreshnessInSeconds;
+
+    @Value("${harvest.sweep.retained-generations:3}")
+    private int retainedGenerations;
+
+    @Value("${spring.jpa.properties.hibernate.hbm2ddl.auto:${spring.jpa.hibernate.ddl-auto:}}")
+    private String schemaAction;
+
+    private volatile JdbcTemplate jdbcTemplate;
+
+    private final String lockOwner = UUID.randomUUID().toString();
+
+    /**
+     * @param itemName
+     *            the name of the data source
+     * @return the time of the last successful harvest of the data source
+     */
+    public Optional<Date> getLastSuccess(String itemName) {
+        List<Timestamp> result = getJdbcTemplate().queryForList(
+                "SELECT last_success FROM harvest_state WHERE item_name = ?", Timestamp.class, itemName);
+        return result.stream().findFirst().map(timestamp -> new Date(timestamp.getTime()));
+    }
+
+    public void recordSuccess(DataSourceConfiguration config, Date time) {
+        Timestamp timestamp = new Timestamp(time.getTime());
+        JdbcTemplate template = getJdbcTemplate();
+        if (template.update("UPDATE harvest_state SET url = ?, last_success = ? WHERE item_name = ?",
+                config.getUrl(), timestamp, config.getItemName()) == 0) {
+            template.update("INSERT INTO harvest_state (item_name, url, last_success) VALUES (?, ?, ?)",
+                    config.getItemName(), config.getUrl(), timestamp);
+        }
+    }
+
+    public void delete(String itemName) {
+        JdbcTemplate template = getJdbcTemplate();
+        template.update("DELETE FROM harvest_state WHERE item_name = ?", itemName);
+        template.update("DELETE FROM harvest_generation WHERE item_name = ?", itemName);
+        template.update("DELETE FROM harvest_stale_dataset WHERE item_name = ?", itemName);
+    }
+
+    /**
+     * @param itemName
+     *            the name of the data source
+     * @return the serialized checkpoint of the data source
+     */
+    public Optional<String> getCheckpoint(String itemName) {
+        return getJdbcTemplate().queryForList("SELECT checkpoint FROM harvest_checkpoint WHERE item_name = ?",
+                String.class, itemName).stream().findFirst();
+    }
+
+    public void saveCheckpoint(String itemName, String checkpoint) {
+        Timestamp updated = new Timestamp(System.currentTimeMillis());
+        JdbcTemplate template = getJdbcTemplate();
+        if (template.update("UPDATE harvest_checkpoint SET checkpoint = ?, updated = ? WHERE item_name = ?",
+                checkpoint, updated, itemName) == 0) {
+            template.update("INSERT INTO harvest_checkpoint (item_name, checkpoint, updated) VALUES (?, ?, ?)",
+                    itemName, checkpoint, updated);
+        }
+    }
+
+    public void deleteCheckpoint(String itemName) {
+        getJdbcTemplate().update("DELETE FROM harvest_checkpoint WHERE item_name = ?", itemName);
+    }
+
+    /**
+     * @return the names of the data sources with a checkpoint
+     */
+    public List<String> getCheckpointItemNames() {
+        return getJdbcTemplate().queryForList("SELECT item_name FROM harvest_checkpoint", String.class);
+    }
+
+    /**
+     * Starts the next harvest generation of a data source.
+     *
+     * @param itemName
+     *            the name of the data source
+     * @return the number of the new generation, starting with 1
+     */
+    public long nextGeneration(String itemName) {
+        JdbcTemplate template = getJdbcTemplate();
+        if (template.update("UPDATE harvest_generation SET generation = generation + 1 WHERE item_name = ?",
+                itemName) == 0) {
+            template.update("INSERT INTO harvest_generation (item_name, generation) VALUES (?, 1)", itemName);
+        }
+        return template.queryForObject("SELECT generation FROM harvest_generation WHERE item_name = ?", Long.class,
+                itemName);
+    }
+
+    /**
+     * @param itemName
+     *            the name of the data source
+     * @return the last generation each hidden dataset of the data source was harvested in, by dataset id
+     */
+    public Map<Long, Long> getStaleDatasets(String itemName) {
+        Map<Long, Long> stale = new HashMap<>();
+        getJdbcTemplate().query("SELECT dataset_id, last_seen FROM harvest_stale_dataset WHERE item_name = ?",
+                rs -> {
+                    stale.put(rs.getLong(1), rs.getLong(2));
+                }, itemName);
+        return stale;
+    }
+
+    public void addStaleDatasets(String itemName, Collection<Long> datasetIds, long lastSeen) {
+        getJdbcTemplate().batchUpdate(
+                "INSERT INTO harvest_stale_dataset (dataset_id, item_name, last_seen) VALUES (?, ?, ?)",
+                datasetIds.stream().map(id -> new Object[] { id, itemName, lastSeen }).collect(toList()));
+    }
+
+    public void removeStaleDatasets(Collection<Long> datasetIds) {
+        getJdbcTemplate().batchUpdate("DELETE FROM harvest_stale_dataset WHERE dataset_id = ?",
+                datasetIds.stream().map(id -> new Object[] { id }).collect(toList()));
+    }
+
+    /**
+     * @param lastSeen
+     *            the last generation a dataset was harvested in
+     * @param generation
+     *            the current generation
+     * @return if the dataset was missing in more harvests than hidden datasets are retained for
+     */
+    public boolean isExpired(long lastSeen, long generation) {
+        return generation - lastSeen > retainedGenerations;
+    }
+
+    /**
+     * @param config
+     *            the data source
+     * @return if the data source was harvested successfully from its current URL within its freshness window
+     */
+    public boolean isFresh(DataSourceConfiguration config) {
+        int freshness = getFreshnessInSeconds(config);
+        if (freshness <= 0) {
+            return false;
+        }
+        try {
+            List<Map<String, Object>> rows = getJdbcTemplate().queryForList(
+                    "SELECT url, last_success FROM harvest_state WHERE item_name = ?", config.getItemName());
+            return rows.stream()
+                    .filter(row -> config.getUrl() == null || config.getUrl().equals(row.get("url")))
+                    .map(row -> (Date) row.get("last_success"))
+                    .anyMatch(lastSuccess -> lastSuccess.getTime() + freshness * 1000L > System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            LOGGER.warn("Could not read the harvest state of '{}'.", config.getItemName(), e);
+            return false;
+        }
+    }
+
+    private int getFreshnessInSeconds(DataSourceConfiguration config) {
+        return Optional.ofNullable(config.getJob()).map(DataSourceJobConfiguration::getFreshnessInSeconds)
+                .orElse(defaultFreshnessInSeconds);
+    }
+
+    private JdbcTemplate getJdbcTemplate() {
+        if (jdbcTemplate == null) {
+            synchronized (this) {
+                if (jdbcTemplate == null) {
+                    migrate();
+                    if (isSchemaRecreated()) {
+                        clear();
+                    }
+                    jdbcTemplate = new JdbcTemplate(dataSource);
+                }
+            }
+        }
+        return jdbcTemplate;
+    }
+
+    /**
+     * @return if the entity schema is created on startup, so the harvest state refers to datasets which do not exist
+     *         anymore
+     */
+    private boolean isSchemaRecreated() {
+        return "create".equalsIgnoreCase(schemaAction) || "create-drop".equalsIgnoreCase(schemaAction);
+    }
+
+    /**
+     * Discards the harvest state of all data sources. The harvest tables are not managed by hbm2ddl, but their
+     * content is only valid as long as the harvested entities are.
+     */
+    private void clear() {
+        LOGGER.info("The schema is created on startup (hbm2ddl {}), discarding the harvest state.", schemaAction);
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        for (String table : STATE_TABLES) {
+            template.update("DELETE FROM " + table);
+        }
+    }
+
+    /**
+     * Applies the scripts with a version above the installed one in ascending order while holding the migration lock.
+     */
+    private void migrate() {
+        JdbcTemplate template = new JdbcTemplate(dataSource);
+        try {
+            acquireLock(template);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Could not lock the harvest state schema.", e);
+        }
+        try {
+            if (!hasTable(VERSION_TABLE)) {
+                template.execute("CREATE TABLE " + VERSION_TABLE + " (version INTEGER NOT NULL, "
+                        + "description VARCHAR(255), installed_on TIMESTAMP NOT NULL, PRIMARY KEY (version))");
+            }
+            Integer installed = template.queryForObject("SELECT MAX(version) FROM " + VERSION_TABLE, Integer.class);
+            for (Map.Entry<Integer, Resource> migration : getMigrations().entrySet()) {
+                int version = migration.getKey();
+                if (installed == null || version > installed) {
+                    LOGGER.info("Migrating harvest state schema to version {}: {}", version, migration.getValue());
+                    new ResourceDatabasePopulator(migration.getValue()).execute(dataSource);
+                    template.update("INSERT INTO " + VERSION_TABLE
+                            + " (version, description, installed_on) VALUES (?, ?, ?)", version,
+                            migration.getValue().getFilename(), new Timestamp(System.currentTimeMillis()));
+                }
+            }
+        } catch (SQLException | IOException e) {
+            throw new IllegalStateException("Could not migrate the harvest state schema.", e);
+        } finally {
+            template.update("UPDATE " + LOCK_TABLE + " SET locked_by = NULL, locked_on = NULL "
+                    + "WHERE id = 1 AND locked_by = ?", lockOwner);
+        }
+    }
+
+    /**
+     * Takes the lock row of the migrations. The lock is a row instead of a database lock, as some databases commit
+     * DDL statements implicitly and would release the lock after the first script.
+     */
+    private void acquireLock(JdbcTemplate template) throws SQLException {
+        if (!hasTable(LOCK_TABLE)) {
+            try {
+                template.execute("CREATE TABLE " + LOCK_TABLE + " (id INTEGER NOT NULL, locked_by VARCHAR(255), "
+                        + "locked_on TIMESTAMP, PRIMARY KEY (id))");
+            } catch (DataAccessException e) {
+                if (!hasTable(LOCK_TABLE)) {
+                    throw e;
+                }
+                // created by another node meanwhile
+            }
+        }
+        if (template.queryForObject("SELECT COUNT(*) FROM " + LOCK_TABLE, Integer.class) == 0) {
+            try {
+                template.update("INSERT INTO " + LOCK_TABLE + " (id) VALUES (1)");
+            } catch (DataAccessException e) {
+                // inserted by another node meanwhile
+                LOGGER.trace("Harvest schema lock row exists.", e);
+            }
+        }
+        long deadline = System.currentTimeMillis() + LOCK_TIMEOUT_MILLIS;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (template.update("UPDATE " + LOCK_TABLE + " SET locked_by = ?, locked_on = ? "
+                    + "WHERE id = 1 AND (locked_by IS NULL OR locked_on < ?)", lockOwner, new Timestamp(now),
+                    new Timestamp(now - LOCK_TIMEOUT_MILLIS)) == 1) {
+                return;
+            }
+            if (now > deadline) {
+                throw new IllegalStateException("Timed out waiting for the harvest state schema lock.");
+            }
+            LOGGER.debug("Waiting for another node to migrate the harvest state schema.");
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for the harvest state schema lock.", e);
+            }
+        }
+    }
+
+    private Map<Integer, Resource> getMigrations() throws IOException {
+        Map<Integer, Resource> migrations = new TreeMap<>();
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(MIGRATIONS)) {
+            Matcher matcher = MIGRATION_NAME.matcher(resource.getFilename());
+            if (matcher.matches()) {
+                migrations.put(Integer.valueOf(matcher.group(1)), resource);
+            }
+        }
+        return migrations;
+    }
+
+    private boolean hasTable(String table) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String name : new String[] { table, table.toUpperCase() }) {
+                try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+                    if (tables.next()) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    public DataSource getDataSource() {
+        return dataSource;
+    }
+
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public String getSchemaAction() {
+        return schemaAction;
+    }
+
+    public void setSchemaAction(String schemaAction) {
+        this.schemaAction = schemaAction;
+    }
+
+    public int getRetainedGenerations() {
+        return retainedGenerations;
+    }
+
+    public void setRetainedGenerations(int retainedGenerations) {
+        this.retainedGenerations = retainedGenerations;
+    }
+
+    public int getDefaultFreshnessInSeconds() {
+        return defaultFreshnessInSeconds;
+    }
+
+    public void setDefaultFreshnessInSeconds(int defaultFreshnessInSeconds) {
+        this.defaultFreshnessInSeconds = defaultFreshnessInSeconds;
+    }
+
+}
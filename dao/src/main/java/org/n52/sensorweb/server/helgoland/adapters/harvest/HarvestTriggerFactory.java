@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
+import org.quartz.CronScheduleBuilder;
+import org.quartz.JobKey;
+import org.quartz.SimpleScheduleBuilder;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.stream.Collectors.groupingBy;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+
+/**
+ * Creates the triggers of the harvester jobs so that sources sharing the same schedule do not fire at the same
+ * instant.
+ * <p>
+ * Cron triggered sources are shifted by a deterministic offset derived from the source name. The offset is applied to
+ * the seconds and minutes fields of the cron expression and is limited by the minute increment (or the hour if the
+ * minutes field is a fixed value). An offset crossing the hour is carried into the hours field; if the hours field
+ * does not allow this, the offset is limited to the rest of the hour so a harvest is never moved to an earlier time.
+ * Sources with a spread window are repeated once per window instead and placed at evenly distributed offsets within
+ * it.
+ * <p>
+ * Sources with a minimum and maximum interval are repeated in an adaptive interval: it is halved after each harvest
+ * which changed the source and grows by half after each harvest which did not, within the configured bounds.
+ */
+public class HarvestTriggerFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestTriggerFactory.class);
+
+    private static final Pattern INCREMENT = Pattern.compile("(\\d{1,2})(?:/(\\d{1,2}))?");
+
+    private static final Set<String> EVERY_HOUR = new HashSet<>(Arrays.asList("*", "*/1", "0/1"));
+
+    private static final Set<String> EVERY_DAY = new HashSet<>(Arrays.asList("*", "?"));
+
+    private static final int SECONDS_PER_HOUR = 3600;
+
+    private static final double INTERVAL_GROWTH = 1.5;
+
+    private final Map<String, Long> spreadOffsets = new HashMap<>();
+
+    private int maxJitterInSeconds;
+
+    /**
+     * Calculates the offsets of all sources using the spread mode. Sources with the same window length are spread
+     * evenly within the window, ordered by their name.
+     *
+     * @param configs
+     *            all configured data sources
+     * @return the names of the sources with a new offset, including sources spread for the first time
+     */
+    public Set<String> spread(Collection<DataSourceConfiguration> configs) {
+        Map<String, Long> previous = new HashMap<>(spreadOffsets);
+        spreadOffsets.clear();
+        configs.stream().filter(config -> getSpreadWindow(config) > 0)
+                .collect(groupingBy(this::getSpreadWindow)).forEach((window, sources) -> {
+                    List<String> names = sources.stream().map(DataSourceConfiguration::getItemName).distinct()
+                            .sorted(Comparator.naturalOrder()).collect(toList());
+                    for (int i = 0; i < names.size(); i++) {
+                        spreadOffsets.put(names.get(i), TimeUnit.SECONDS.toMillis(window) * i / names.size());
+                    }
+                });
+        return spreadOffsets.entrySet().stream()
+                .filter(offset -> !offset.getValue().equals(previous.get(offset.getKey()))).map(Map.Entry::getKey)
+                .collect(toSet());
+    }
+
+    public Trigger createTrigger(DataSourceConfiguration config, JobKey jobKey) {
+        return createTrigger(config, jobKey, null);
+    }
+
+    /**
+     * @param config
+     *            the data source
+     * @param jobKey
+     *            the key of the harvester job
+     * @param interval
+     *            the adaptive interval of a previous run in seconds, or {@code null}
+     * @return the trigger
+     */
+    public Trigger createTrigger(DataSourceConfiguration config, JobKey jobKey, Integer interval) {
+        if (isAdaptive(config)) {
+            return createAdaptiveTrigger(config, jobKey,
+                    interval != null ? clamp(config.getJob(), interval) : getInitialInterval(config));
+        }
+        TriggerBuilder<Trigger> builder =
+                TriggerBuilder.newTrigger().withIdentity(jobKey.getName(), jobKey.getGroup()).forJob(jobKey);
+        int window = getSpreadWindow(config);
+        if (window > 0) {
+            long windowMillis = TimeUnit.SECONDS.toMillis(window);
+            long offset = spreadOffsets.computeIfAbsent(config.getItemName(), name -> 0L);
+            long now = System.currentTimeMillis();
+            long start = now - now % windowMillis + offset;
+            if (start < now) {
+                start += windowMillis;
+            }
+            LOGGER.info("Harvest of '{}' repeats every {}s starting at {}", config.getItemName(), window,
+                    new Date(start));
+            return builder.startAt(new Date(start))
+                    .withSchedule(SimpleScheduleBuilder.repeatSecondlyForever(window)
+                            .withMisfireHandlingInstructionNextWithRemainingCount())
+                    .build();
+        }
+        String cronExpression = jitter(config.getJob().getCronExpression(), config.getItemName(), getJitter(config));
+        LOGGER.info("Harvest of '{}' scheduled with cron expression '{}'", config.getItemName(), cronExpression);
+        return builder.withSchedule(CronScheduleBuilder.cronSchedule(cronExpression)).build();
+    }
+
+    /**
+     * Creates a trigger repeating the harvest every interval, starting one interval from now.
+     *
+     * @param config
+     *            the data source
+     * @param jobKey
+     *            the key of the harvester job
+     * @param interval
+     *            the interval in seconds
+     * @return the trigger
+     */
+    public Trigger createAdaptiveTrigger(DataSourceConfiguration config, JobKey jobKey, int interval) {
+        LOGGER.info("Harvest of '{}' repeats every {}s", config.getItemName(), interval);
+        return TriggerBuilder.newTrigger().withIdentity(jobKey.getName(), jobKey.getGroup()).forJob(jobKey)
+                .startAt(new Date(System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(interval)))
+                .withSchedule(SimpleScheduleBuilder.repeatSecondlyForever(interval)
+                        .withMisfireHandlingInstructionNextWithRemainingCount())
+                .build();
+    }
+
+    public boolean isAdaptive(DataSourceConfiguration config) {
+        DataSourceJobConfiguration job = config.getJob();
+        return job != null && job.getMinIntervalInSeconds() != null && job.getMinIntervalInSeconds() > 0
+                && job.getMaxIntervalInSeconds() != null;
+    }
+
+    public int getInitialInterval(DataSourceConfiguration config) {
+        return config.getJob().getMinIntervalInSeconds();
+    }
+
+    /**
+     * @param job
+     *            the job configuration with the interval bounds
+     * @param interval
+     *            the current interval in seconds
+     * @param changed
+     *            if the last harvest changed the source
+     * @return the interval until the next harvest
+     */
+    static int nextInterval(DataSourceJobConfiguration job, int interval, boolean changed) {
+        long next = changed ? interval / 2 : Math.round(Math.ceil(interval * INTERVAL_GROWTH));
+        return clamp(job, next);
+    }
+
+    private static int clamp(DataSourceJobConfiguration job, long interval) {
+        int min = job.getMinIntervalInSeconds();
+        int max = Math.max(min, job.getMaxIntervalInSeconds());
+        return (int) Math.max(min, Math.min(max, interval));
+    }
+
+    /**
+     * Shifts the cron expression by an offset which is derived from the key and lower than the maximum jitter.
+     *
+     * @param cronExpression
+     *            the cron expression
+     * @param key
+     *            the key to derive the offset from
+     * @param maxJitter
+     *            the maximum jitter in seconds
+     * @return the shifted cron expression or the unchanged expression if it can not be shifted
+     */
+    static String jitter(String cronExpression, String key, int maxJitter) {
+        String[] fields = cronExpression.trim().split("\\s+");
+        if (maxJitter <= 0 || fields.length < 6 || !fields[0].matches("\\d{1,2}")) {
+            return cronExpression;
+        }
+        Matcher minutes = INCREMENT.matcher(fields[1]);
+        if (!minutes.matches()) {
+            return cronExpression;
+        }
+        int first = Integer.parseInt(minutes.group(1)) * 60 + Integer.parseInt(fields[0]);
+        int period = minutes.group(2) != null ? Integer.parseInt(minutes.group(2)) * 60 : SECONDS_PER_HOUR;
+        int last = first + (SECONDS_PER_HOUR - 1 - first) / period * period;
+        // fires shifted past the hour are equal to the fires of the next hour if the job runs every hour
+        boolean cyclic = EVERY_HOUR.contains(fields[2]) && first < period && SECONDS_PER_HOUR % period == 0;
+        String nextHour = !cyclic && minutes.group(2) == null ? carryHour(fields) : null;
+        int bound = Math.min(maxJitter, period);
+        if (!cyclic && nextHour == null) {
+            bound = Math.min(bound, SECONDS_PER_HOUR - last);
+        }
+        long shifted = first + offset(key, bound);
+        long minute = cyclic ? shifted / 60 % (period / 60) : shifted / 60 % 60;
+        if (nextHour != null && shifted >= SECONDS_PER_HOUR) {
+            fields[2] = nextHour;
+        }
+        fields[0] = Long.toString(shifted % 60);
+        fields[1] = minutes.group(2) != null ? minute + "/" + minutes.group(2) : Long.toString(minute);
+        return String.join(" ", fields);
+    }
+
+    /**
+     * @param fields
+     *            the fields of the cron expression
+     * @return the hours field shifted by one hour or {@code null} if the hours field can not be shifted
+     */
+    private static String carryHour(String[] fields) {
+        Matcher hours = INCREMENT.matcher(fields[2]);
+        if (!hours.matches() || Integer.parseInt(hours.group(1)) > 23) {
+            return null;
+        }
+        int start = Integer.parseInt(hours.group(1));
+        int period = hours.group(2) != null ? Integer.parseInt(hours.group(2)) : 24;
+        int next = start + 1;
+        if (start + (23 - start) / period * period == 23) {
+            // the last fire of the day moves to the next day which has to fire as well
+            boolean daily = EVERY_DAY.contains(fields[3]) && "*".equals(fields[4]) && EVERY_DAY.contains(fields[5]);
+            if (!daily || 24 % period != 0) {
+                return null;
+            }
+            next %= period;
+        }
+        return hours.group(2) != null ? next + "/" + period : Integer.toString(next);
+    }
+
+    static long offset(String key, int bound) {
+        if (bound <= 0) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(Objects.toString(key).getBytes(StandardCharsets.UTF_8));
+        return crc.getValue() % bound;
+    }
+
+    private int getJitter(DataSourceConfiguration config) {
+        Integer jitter = config.getJob().getJitterInSeconds();
+        return jitter != null ? jitter : maxJitterInSeconds;
+    }
+
+    private int getSpreadWindow(DataSourceConfiguration config) {
+        DataSourceJobConfiguration job = config.getJob();
+        return job != null && job.getSpreadWindowInSeconds() != null ? job.getSpreadWindowInSeconds() : 0;
+    }
+
+    public int getMaxJitterInSeconds() {
+        return maxJitterInSeconds;
+    }
+
+    public void setMaxJitterInSeconds(int maxJitterInSeconds) {
+        this.maxJitterInSeconds = maxJitterInSeconds;
+    }
+
+}
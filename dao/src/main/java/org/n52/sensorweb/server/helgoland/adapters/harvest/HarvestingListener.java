@@ -28,9 +28,11 @@
  */
 package org.n52.sensorweb.server.helgoland.adapters.harvest;
 
-import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
-
+/**
+ * Listener notified about finished harvests. Listeners are called asynchronously by the {@link HarvestEventBus}, one
+ * event at a time per listener.
+ */
 @FunctionalInterface
 public interface HarvestingListener {
-    void onResult(ServiceConstellation result);
+    void onResult(HarvestEvent event);
 }
@@ -28,6 +28,8 @@
  */
 package org.n52.sensorweb.server.helgoland.adapters.sensorthings;
 
+import java.util.List;
+
 import com.google.gson.annotations.SerializedName;
 
 /**
@@ -62,6 +64,9 @@ public class Datastream extends SensorThingsElement {
     @SerializedName("ObservedProperty")
     private ObservedProperty observedProperty;
 
+    @SerializedName("Observations")
+    private List<Observation> observations;
+
     /**
      * @return the unitOfMeasurement
      */
@@ -188,4 +193,18 @@ public class Datastream extends SensorThingsElement {
         this.observedProperty = observedProperty;
     }
 
+    /**
+     * @return the expanded observations
+     */
+    public List<Observation> getObservations() {
+        return observations;
+    }
+
+    /**
+     * @param observations the expanded observations to set
+     */
+    public void setObservations(List<Observation> observations) {
+        this.observations = observations;
+    }
+
 }
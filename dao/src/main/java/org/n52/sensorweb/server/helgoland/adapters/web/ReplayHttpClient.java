@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.web;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * {@link HttpClient} recording the exchanges with upstream services to a directory and replaying them byte-exact.
+ * <p>
+ * Exchanges are identified by the SHA-256 hash of the method, the URI and the request body. Each exchange is stored
+ * as {@code <hash>.properties} holding the status line, the headers and the latency of the response, and
+ * {@code <hash>.body} holding the response body. Replayed responses are delayed by the recorded latency multiplied
+ * by the {@link #setLatencyFactor(double) latency factor} plus a {@link #setFixedLatency(long) fixed latency}.
+ */
+public class ReplayHttpClient implements HttpClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplayHttpClient.class);
+
+    private static final String STATUS = "status";
+
+    private static final String REASON = "reason";
+
+    private static final String LATENCY = "latency";
+
+    private static final String METHOD = "method";
+
+    private static final String URI = "uri";
+
+    private static final String HEADER = "header.";
+
+    public enum Mode {
+        /**
+         * Sends requests to the upstream services and stores the exchanges.
+         */
+        RECORD,
+        /**
+         * Answers requests from the stored exchanges only.
+         */
+        REPLAY,
+        /**
+         * Answers requests from the stored exchanges and records missing ones.
+         */
+        REPLAY_OR_RECORD
+    }
+
+    private final HttpClient delegate;
+
+    private final Path directory;
+
+    private final Mode mode;
+
+    private double latencyFactor;
+
+    private long fixedLatency;
+
+    public ReplayHttpClient(HttpClient delegate, Path directory, Mode mode) {
+        this.delegate = delegate;
+        this.directory = directory;
+        this.mode = mode;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        LOGGER.info("{} upstream exchanges in {}", mode, directory.toAbsolutePath());
+    }
+
+    /**
+     * @param latencyFactor
+     *            the factor the recorded latency is multiplied with on replay, {@code 0} to replay without delay
+     */
+    public void setLatencyFactor(double latencyFactor) {
+        this.latencyFactor = latencyFactor;
+    }
+
+    /**
+     * @param fixedLatency
+     *            the time (in milliseconds) added to each replayed response
+     */
+    public void setFixedLatency(long fixedLatency) {
+        this.fixedLatency = fixedLatency;
+    }
+
+    @Override
+    public HttpResponse executeGet(String uri) throws IOException {
+        return executeMethod(new HttpGet(uri));
+    }
+
+    @Override
+    public HttpResponse executePost(String uri, String payloadToSend) throws IOException {
+        return executePost(uri, payloadToSend, ContentType.create("text/xml", StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public HttpResponse executePost(String uri, String payloadToSend, ContentType contentType) throws IOException {
+        return executePost(uri, new StringEntity(payloadToSend, contentType));
+    }
+
+    @Override
+    public HttpResponse executePost(String uri, HttpEntity payloadToSend) throws IOException {
+        HttpPost post = new HttpPost(uri);
+        post.setEntity(payloadToSend);
+        return executeMethod(post);
+    }
+
+    @Override
+    public HttpResponse executeMethod(HttpRequestBase method) throws IOException {
+        String key = createKey(method);
+        Path metadata = directory.resolve(key + ".properties");
+        Path body = directory.resolve(key + ".body");
+        if (mode != Mode.RECORD && Files.exists(metadata)) {
+            return replay(metadata, body);
+        }
+        if (mode == Mode.REPLAY) {
+            throw new IOException(String.format("No recorded exchange for %s %s", method.getMethod(),
+                    method.getURI()));
+        }
+        return record(method, metadata, body);
+    }
+
+    private HttpResponse record(HttpRequestBase method, Path metadata, Path body) throws IOException {
+        long start = System.nanoTime();
+        HttpResponse response = delegate.executeMethod(method);
+        byte[] content = response.getEntity() != null ? EntityUtils.toByteArray(response.getEntity()) : null;
+        long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Properties properties = new Properties();
+        properties.setProperty(METHOD, method.getMethod());
+        properties.setProperty(URI, method.getURI().toString());
+        properties.setProperty(STATUS, Integer.toString(response.getStatusLine().getStatusCode()));
+        String reason = response.getStatusLine().getReasonPhrase();
+        properties.setProperty(REASON, reason != null ? reason : "");
+        properties.setProperty(LATENCY, Long.toString(latency));
+        Header[] headers = response.getAllHeaders();
+        for (int i = 0; i < headers.length; i++) {
+            properties.setProperty(HEADER + i, headers[i].getName() + ": " + headers[i].getValue());
+        }
+        if (content != null) {
+            write(body, content);
+        }
+        Path tmp = Files.createTempFile(directory, "exchange", ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            properties.store(out, null);
+        }
+        // the metadata marks the exchange as complete, so it is written last
+        Files.move(tmp, metadata, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("Recorded {} {} as {}", method.getMethod(), method.getURI(), metadata.getFileName());
+        return createResponse(properties, content);
+    }
+
+    private HttpResponse replay(Path metadata, Path body) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(metadata)) {
+            properties.load(in);
+        }
+        byte[] content = Files.exists(body) ? Files.readAllBytes(body) : null;
+        long delay = fixedLatency + Math.round(Long.parseLong(properties.getProperty(LATENCY, "0")) * latencyFactor);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Replay interrupted", e);
+            }
+        }
+        LOGGER.debug("Replay {} {} from {}", properties.getProperty(METHOD), properties.getProperty(URI),
+                metadata.getFileName());
+        return createResponse(properties, content);
+    }
+
+    private HttpResponse createResponse(Properties properties, byte[] content) {
+        BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1,
+                Integer.parseInt(properties.getProperty(STATUS)), properties.getProperty(REASON)));
+        for (int i = 0; properties.containsKey(HEADER + i); i++) {
+            String header = properties.getProperty(HEADER + i);
+            int separator = header.indexOf(": ");
+            response.addHeader(header.substring(0, separator), header.substring(separator + 2));
+        }
+        if (content != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(content);
+            entity.setContentType(response.getFirstHeader("Content-Type"));
+            entity.setContentEncoding(response.getFirstHeader("Content-Encoding"));
+            response.setEntity(entity);
+        }
+        return response;
+    }
+
+    private String createKey(HttpRequestBase method) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(method.getMethod().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            digest.update(method.getURI().toString().getBytes(StandardCharsets.UTF_8));
+            if (method instanceof HttpEntityEnclosingRequest) {
+                HttpEntityEnclosingRequest request = (HttpEntityEnclosingRequest) method;
+                if (request.getEntity() != null) {
+                    byte[] payload = EntityUtils.toByteArray(request.getEntity());
+                    // the payload may be consumed, so it is replaced by a repeatable copy
+                    ByteArrayEntity copy = new ByteArrayEntity(payload);
+                    copy.setContentType(request.getEntity().getContentType());
+                    copy.setContentEncoding(request.getEntity().getContentEncoding());
+                    request.setEntity(copy);
+                    digest.update((byte) '\n');
+                    digest.update(payload);
+                }
+            }
+            return BaseEncoding.base16().lowerCase().encode(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(Path file, byte[] content) throws IOException {
+        Path tmp = Files.createTempFile(directory, "exchange", ".tmp");
+        Files.write(tmp, content);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,7 @@
+-- the last successful harvest of each data source
+CREATE TABLE harvest_state (
+    item_name VARCHAR(255) NOT NULL,
+    url VARCHAR(1024),
+    last_success TIMESTAMP NOT NULL,
+    PRIMARY KEY (item_name)
+);
@@ -0,0 +1,16 @@
+-- the number of completed harvests of each data source
+CREATE TABLE harvest_generation (
+    item_name VARCHAR(255) NOT NULL,
+    generation BIGINT NOT NULL,
+    PRIMARY KEY (item_name)
+);
+
+-- the datasets hidden because they were missing upstream, with the last generation they were harvested in
+CREATE TABLE harvest_stale_dataset (
+    dataset_id BIGINT NOT NULL,
+    item_name VARCHAR(255) NOT NULL,
+    last_seen BIGINT NOT NULL,
+    PRIMARY KEY (dataset_id)
+);
+
+CREATE INDEX idx_harvest_stale_dataset_item ON harvest_stale_dataset (item_name);
@@ -0,0 +1,7 @@
+-- the progress of interrupted harvests, shared by the nodes of a cluster
+CREATE TABLE harvest_checkpoint (
+    item_name VARCHAR(255) NOT NULL,
+    checkpoint TEXT NOT NULL,
+    updated TIMESTAMP NOT NULL,
+    PRIMARY KEY (item_name)
+);
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ConfigurationReaderTest {
+
+    @TempDir
+    public Path directory;
+
+    @Test
+    @DisplayName("Test reloading reports added, removed and changed data sources")
+    public void reload_diff() throws IOException {
+        Path file = directory.resolve("config-data-sources.json");
+        write(file, source("a", "http://a/service"), source("b", "http://b/service"));
+        ConfigurationReader reader = new ConfigurationReader();
+        reader.setExternalConfigFile(file.toString());
+        reader.setPollIntervalInSeconds(0);
+        reader.start();
+        List<DataSourcesChange> changes = new ArrayList<>();
+        reader.addListener(changes::add);
+        assertThat(reader.getDataSource()).extracting(DataSourceConfiguration::getItemName).containsExactly("a", "b");
+
+        // a configuration modified in memory is no change of the source
+        reader.getDataSource("a").get().setConnector("SOS2Connector");
+        write(file, source("a", "http://a/service"), source("b", "http://b/sos"), source("c", "http://c/service"));
+        assertThat(reader.reload()).isTrue();
+
+        assertThat(changes).hasSize(1);
+        DataSourcesChange change = changes.get(0);
+        assertThat(change.getAdded()).extracting(DataSourceConfiguration::getItemName).containsExactly("c");
+        assertThat(change.getChanged()).extracting(DataSourceConfiguration::getItemName).containsExactly("b");
+        assertThat(change.getPrevious("b").getUrl()).isEqualTo("http://b/service");
+        assertThat(change.getRemoved()).isEmpty();
+
+        write(file, source("c", "http://c/service"));
+        reader.reload();
+        assertThat(changes.get(1).getRemoved()).extracting(DataSourceConfiguration::getItemName)
+                .containsExactlyInAnyOrder("a", "b");
+        assertThat(reader.getDataSource("a")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test invalid files keep the previous configuration")
+    public void reload_invalid() throws IOException {
+        Path file = directory.resolve("config-data-sources.json");
+        write(file, source("a", "http://a/service"));
+        ConfigurationReader reader = new ConfigurationReader();
+        reader.setExternalConfigFile(file.toString());
+        reader.setPollIntervalInSeconds(0);
+        reader.start();
+
+        Files.write(file, "{ \"dataSources\": [".getBytes(StandardCharsets.UTF_8));
+        assertThat(reader.reload()).isFalse();
+        assertThat(reader.getDataSource("a")).isPresent();
+    }
+
+    @Test
+    @DisplayName("Test files without data sources keep the previous configuration")
+    public void reload_without_sources() throws IOException {
+        Path file = directory.resolve("config-data-sources.json");
+        write(file, source("a", "http://a/service"));
+        ConfigurationReader reader = new ConfigurationReader();
+        reader.setExternalConfigFile(file.toString());
+        reader.setPollIntervalInSeconds(0);
+        reader.start();
+        List<DataSourcesChange> changes = new ArrayList<>();
+        reader.addListener(changes::add);
+
+        for (String content : new String[] { "{}", "{ \"dataSources\": null }", "{ \"dataSources\": [] }", "" }) {
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            assertThat(reader.reload()).isFalse();
+            assertThat(reader.getDataSource("a")).isPresent();
+        }
+        assertThat(changes).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test the configuration hash changes with the configuration of the data source only")
+    public void config_hash() throws IOException {
+        Path file = directory.resolve("config-data-sources.json");
+        write(file, source("a", "http://a/service"), source("b", "http://b/service"));
+        ConfigurationReader reader = new ConfigurationReader();
+        reader.setExternalConfigFile(file.toString());
+        reader.setPollIntervalInSeconds(0);
+        reader.start();
+        String hashOfA = reader.getDataSource("a").get().getConfigHash();
+        String hashOfB = reader.getDataSource("b").get().getConfigHash();
+        assertThat(hashOfA).isNotEmpty().isNotEqualTo(hashOfB);
+
+        reader.getDataSource("a").get().setConnector("SOS2Connector");
+        write(file, source("a", "http://a/service"), source("b", "http://b/sos"));
+        reader.reload();
+
+        assertThat(reader.getDataSource("a").get().getConfigHash()).isEqualTo(hashOfA);
+        assertThat(reader.getDataSource("b").get().getConfigHash()).isNotEqualTo(hashOfB);
+    }
+
+    private void write(Path file, String... sources) throws IOException {
+        Files.write(file, ("{ \"dataSources\": [" + String.join(",", sources) + "] }")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String source(String name, String url) {
+        return "{ \"itemName\": \"" + name + "\", \"url\": \"" + url + "\", \"type\": \"SOS\", "
+                + "\"job\": { \"cronExpression\": \"0 0 0/1 * * ?\", \"enabled\": true } }";
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.connector;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URL;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.n52.janmayen.http.MediaTypes;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.db.InsertRespositoryTest;
+import org.n52.sensorweb.server.helgoland.adapters.db.ProxyTestBase;
+import org.n52.sensorweb.server.helgoland.adapters.test.SensorWebSimulator;
+import org.n52.shetland.ogc.ows.service.GetCapabilitiesResponse;
+import org.n52.shetland.ogc.sos.Sos2Constants;
+import org.n52.shetland.ogc.sos.SosCapabilities;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+@DataJpaTest
+@ExtendWith(SpringExtension.class)
+@ImportResource("classpath:artic-sea-test.xml")
+@ContextConfiguration(classes = InsertRespositoryTest.Config.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class AbstractSosConnectorTest extends ProxyTestBase {
+
+    private static final String SERVICE_URL = "http://localhost/sos/service";
+
+    private static final String KVP_URL = "http://localhost/sos/kvp";
+
+    private static final String SOAP_URL = "http://localhost/sos/soap";
+
+    private static final String POX_URL = "http://localhost/sos/pox";
+
+    private static final String DEFAULT = "default";
+
+    @Autowired
+    @Qualifier("SOS2Connector")
+    private SOS2Connector connector;
+
+    @Test
+    @DisplayName("Test the context builder takes the settings of the configuration")
+    public void context_of_configuration() {
+        DataSourceConfiguration config = createConfig(SERVICE_URL);
+        config.addGetUrls(MediaTypes.APPLICATION_KVP.toString(), KVP_URL);
+        config.setSupportsFirstLast(false);
+        config.setDisableHumanReadableName(true);
+
+        ConnectorContext.Builder builder = ConnectorContext.builder(config);
+        assertThat(builder.getUrl()).isEqualTo(SERVICE_URL);
+        assertThat(builder.hasGetUrls()).isTrue();
+        assertThat(builder.hasPostUrls()).isFalse();
+
+        ConnectorContext context = builder.addPostUrl(DEFAULT, SERVICE_URL).setSupportsGDA(true).build();
+        assertThat(context.getItemName()).isEqualTo(config.getItemName());
+        assertThat(context.getUrl()).isEqualTo(SERVICE_URL);
+        assertThat(context.getGetUrls()).containsOnlyKeys(MediaTypes.APPLICATION_KVP.toString());
+        assertThat(context.getPostUrls()).containsOnlyKeys(DEFAULT);
+        assertThat(context.isSupportsGDA()).isTrue();
+        assertThat(context.isSupportsFirstLast()).isFalse();
+        assertThat(context.isDisableHumanReadableName()).isTrue();
+        assertThat(context.getRequestCount()).isZero();
+        // the context keeps its own copy of the binding URLs
+        assertThat(config.getPostUrls()).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test the binding URLs are selected by content type")
+    public void binding_urls() throws Exception {
+        ConnectorContext context = ConnectorContext.builder(createConfig(SERVICE_URL))
+                .addGetUrl(DEFAULT, SERVICE_URL)
+                .addGetUrl(MediaTypes.APPLICATION_KVP.toString(), KVP_URL)
+                .addPostUrl(DEFAULT, SERVICE_URL)
+                .addPostUrl(MediaTypes.APPLICATION_SOAP_XML.toString(), SOAP_URL)
+                .addPostUrl(MediaTypes.APPLICATION_XML.toString(), POX_URL)
+                .build();
+
+        assertThat(connector.supportsKvp(context)).isTrue();
+        assertThat(connector.getKvpUrl(context)).isEqualTo(new URL(KVP_URL));
+        assertThat(connector.getSoapUrl(context)).isEqualTo(new URL(SOAP_URL));
+        assertThat(connector.getPoxUrl(context)).isEqualTo(new URL(POX_URL));
+    }
+
+    @Test
+    @DisplayName("Test the default binding URLs are selected without content types")
+    public void default_binding_urls() throws Exception {
+        ConnectorContext context = ConnectorContext.builder(createConfig(SERVICE_URL))
+                .addGetUrl(DEFAULT, SERVICE_URL)
+                .addPostUrl(DEFAULT, SERVICE_URL)
+                .build();
+
+        assertThat(connector.supportsKvp(context)).isTrue();
+        assertThat(connector.getKvpUrl(context)).isEqualTo(new URL(SERVICE_URL));
+        assertThat(connector.getSoapUrl(context)).isEqualTo(new URL(SERVICE_URL));
+        assertThat(connector.getPoxUrl(context)).isEqualTo(new URL(SERVICE_URL));
+    }
+
+    @Test
+    @DisplayName("Test KVP is not supported without GET URLs")
+    public void post_only() {
+        ConnectorContext context = ConnectorContext.builder(createConfig(SERVICE_URL))
+                .addPostUrl(MediaTypes.APPLICATION_XML.toString(), POX_URL)
+                .build();
+
+        assertThat(connector.supportsKvp(context)).isFalse();
+    }
+
+    @Test
+    @DisplayName("Test the context of a service is created from its capabilities")
+    public void context_of_capabilities() throws Exception {
+        try (SensorWebSimulator simulator = SensorWebSimulator.withDatasets(2, 1).start()) {
+            DataSourceConfiguration config = createConfig(simulator.getSosUrl());
+            SosCapabilities capabilities = (SosCapabilities) connector.getCapabilities(config).getCapabilities();
+
+            ConnectorContext context = connector.createContext(config, capabilities).build();
+
+            assertThat(context.getGetUrls()).containsOnlyKeys(MediaTypes.APPLICATION_KVP.toString());
+            assertThat(context.getPostUrls()).containsOnlyKeys(MediaTypes.APPLICATION_XML.toString());
+            assertThat(context.isSupportsGDA()).isTrue();
+            assertThat(connector.supportsKvp(context)).isTrue();
+            assertThat(connector.getKvpUrl(context)).isEqualTo(new URL(simulator.getSosUrl()));
+            assertThat(connector.getPoxUrl(context)).isEqualTo(new URL(simulator.getSosUrl()));
+        }
+    }
+
+    @Test
+    @DisplayName("Test the values of a KVP only service are not requested in bulk")
+    public void kvp_only() throws Exception {
+        try (SensorWebSimulator simulator = SensorWebSimulator.withDatasets(4, 2).setPostBinding(false).start()) {
+            DataSourceConfiguration config = createConfig(simulator.getSosUrl());
+            config.setHarvestLatestValues(true);
+            config.setHarvestFirstValues(true);
+            GetCapabilitiesResponse capabilities = connector.getCapabilities(config);
+
+            ConnectorContext context =
+                    connector.createContext(config, (SosCapabilities) capabilities.getCapabilities()).build();
+            assertThat(context.getPostUrls()).isEmpty();
+            assertThat(connector.supportsKvp(context)).isTrue();
+            assertThat(connector.supportsPost(context)).isFalse();
+
+            // the offerings and their procedures are harvested without the optional values
+            ServiceConstellation constellation =
+                    connector.getConstellation(new HarvestContext(config), capabilities);
+            assertThat(constellation.getOfferings()).hasSize(2);
+            assertThat(constellation.getProcedures()).hasSize(2);
+        }
+    }
+
+    @Test
+    @DisplayName("Test a harvest sets the connector and version at the service, not at the shared configuration")
+    public void unchanged_configuration() throws Exception {
+        try (SensorWebSimulator simulator = SensorWebSimulator.withDatasets(2, 1).start()) {
+            DataSourceConfiguration config = createConfig(simulator.getSosUrl());
+
+            ServiceConstellation constellation =
+                    connector.getConstellation(new HarvestContext(config), connector.getCapabilities(config));
+
+            assertThat(constellation.getService().getConnector()).isEqualTo(connector.getConnectorName());
+            assertThat(constellation.getService().getVersion()).isEqualTo(Sos2Constants.SERVICEVERSION);
+            assertThat(config.getConnector()).isNull();
+            assertThat(config.getVersion()).isNull();
+        }
+    }
+
+    private DataSourceConfiguration createConfig(String url) {
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName("sos");
+        config.setUrl(url);
+        return config;
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.connector.utils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.math.BigDecimal;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.series.db.beans.QuantityDataEntity;
+import org.n52.shetland.ogc.gml.time.TimeInstant;
+import org.n52.shetland.ogc.om.OmObservation;
+import org.n52.shetland.ogc.om.SingleObservationValue;
+import org.n52.shetland.ogc.om.values.BooleanValue;
+import org.n52.shetland.ogc.om.values.CountValue;
+import org.n52.shetland.ogc.om.values.QuantityValue;
+import org.n52.shetland.ogc.om.values.TextValue;
+import org.n52.shetland.ogc.om.values.Value;
+
+public class DataEntityBuilderTest {
+
+    private static final DateTime TIME = new DateTime(2021, 6, 1, 12, 0);
+
+    @Test
+    @DisplayName("Test only numeric values are stored as quantities")
+    public void numeric_values() {
+        assertThat(DataEntityBuilder.hasNumericValue(createObservation(new QuantityValue(new BigDecimal("52.7")))))
+                .isTrue();
+        assertThat(DataEntityBuilder.hasNumericValue(createObservation(new CountValue(52)))).isTrue();
+        assertThat(DataEntityBuilder.hasNumericValue(createObservation(new TextValue("52.7")))).isFalse();
+        assertThat(DataEntityBuilder.hasNumericValue(createObservation(new BooleanValue(true)))).isFalse();
+        assertThat(DataEntityBuilder.hasNumericValue(new OmObservation())).isFalse();
+    }
+
+    @Test
+    @DisplayName("Test creating a quantity of a count")
+    public void count_as_quantity() {
+        QuantityDataEntity data = DataEntityBuilder.createQuantityDataEntity(createObservation(new CountValue(52)));
+        assertThat(data.getValue()).isEqualByComparingTo("52");
+        assertThat(data.getSamplingTimeEnd()).isEqualTo(TIME.toDate());
+    }
+
+    private OmObservation createObservation(Value<?> value) {
+        OmObservation observation = new OmObservation();
+        observation.setValue(new SingleObservationValue<>(new TimeInstant(TIME), value));
+        return observation;
+    }
+
+}
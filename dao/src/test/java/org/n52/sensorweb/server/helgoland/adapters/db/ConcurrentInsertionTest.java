@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.n52.sensorweb.server.db.repositories.core.FormatRepository;
+import org.n52.sensorweb.server.helgoland.adapters.da.InsertRepository;
+import org.n52.sensorweb.server.helgoland.adapters.test.CategoryBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.DatasetEntityBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.FeatureBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.FormatBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.OfferingBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.PhenomenonBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.PlatformBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.ProcedureBuilder;
+import org.n52.sensorweb.server.helgoland.adapters.test.ServiceBuilder;
+import org.n52.series.db.beans.DatasetEntity;
+import org.n52.series.db.beans.DescribableEntity;
+import org.n52.series.db.beans.FormatEntity;
+import org.n52.series.db.beans.ServiceEntity;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+@DataJpaTest
+@ExtendWith(SpringExtension.class)
+@ImportResource("classpath:artic-sea-test.xml")
+@ContextConfiguration(classes = InsertRespositoryTest.Config.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class ConcurrentInsertionTest extends ProxyTestBase {
+
+    private static final List<String> PARAMETERS = Arrays.asList("PhenomenonEntity", "CategoryEntity",
+            "PlatformEntity", "OfferingEntity", "FeatureEntity");
+
+    @Autowired
+    private InsertRepository insertRepository;
+
+    @Autowired
+    private FormatRepository formatRepository;
+
+    @Autowired
+    private AutowireCapableBeanFactory beanFactory;
+
+    @Test
+    @DisplayName("Test two services inserting the same phenomenon in parallel on two nodes")
+    public void parallel_insertion() throws Exception {
+        String suffix = UUID.randomUUID().toString();
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format-" + suffix).build());
+        List<ServiceEntity> services = new ArrayList<>();
+        for (String name : Arrays.asList("service-a-" + suffix, "service-b-" + suffix)) {
+            services.add(insertRepository.insertService(
+                    ServiceBuilder.newService(name, "https://52north.org/" + name, "SOS 2.0.0").build()));
+        }
+        // a repository of its own does not share the service locks, like the repository of another node
+        List<InsertRepository> nodes = Arrays.asList(insertRepository, beanFactory.createBean(InsertRepository.class));
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<DatasetEntity>> inserted = new ArrayList<>();
+        try {
+            for (InsertRepository node : nodes) {
+                for (ServiceEntity service : services) {
+                    String procedure = "procedure-" + nodes.indexOf(node);
+                    inserted.add(executor.submit(() -> {
+                        start.await();
+                        return node.insertDatasets(
+                                Collections.singletonList(createDataset(service, format, procedure))).get(0);
+                    }));
+                }
+            }
+            start.countDown();
+            for (Future<DatasetEntity> dataset : inserted) {
+                assertThat(dataset.get().getId()).isNotNull();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (ServiceEntity service : services) {
+            for (String parameter : PARAMETERS) {
+                assertThat(entityManager.createQuery("select count(p) from " + parameter
+                        + " p where p.service.id = :service", Long.class).setParameter("service", service.getId())
+                        .getSingleResult()).as(parameter).isEqualTo(1L);
+            }
+            assertThat(entityManager.createQuery("select count(d) from DatasetEntity d where d.service.id = :service",
+                    Long.class).setParameter("service", service.getId()).getSingleResult()).isEqualTo(2L);
+        }
+    }
+
+    private DatasetEntity createDataset(ServiceEntity service, FormatEntity format, String procedure) {
+        DatasetEntity dataset = DatasetEntityBuilder.newDataset(procedure)
+                .setCategory(withService(CategoryBuilder.newCategory("category").build(), service))
+                .setFeature(withService(FeatureBuilder.newFeature("feature").setFormat(format).build(), service))
+                .setOffering(withService(OfferingBuilder.newOffering("offering").build(), service))
+                .setPhenomenon(withService(PhenomenonBuilder.newPhenomenon("phenomenon").build(), service))
+                .setPlatform(withService(PlatformBuilder.newFeature("platform").build(), service))
+                .setProcedure(withService(ProcedureBuilder.newProcedure(procedure).setFormat(format).build(), service))
+                .build();
+        dataset.setService(service);
+        return dataset;
+    }
+
+    private <T extends DescribableEntity> T withService(T entity, ServiceEntity service) {
+        entity.setService(service);
+        return entity;
+    }
+
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.SOS2Connector;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCheckpoint;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.DataSourceHarvesterJob;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestCheckpointStore;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestSchedulerFactoryBean;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestStateStore;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestSummary;
+import org.n52.sensorweb.server.helgoland.adapters.test.SensorWebSimulator;
+import org.n52.series.db.beans.DatasetEntity;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.impl.matchers.KeyMatcher;
+import org.quartz.listeners.JobListenerSupport;
+import org.quartz.spi.TriggerFiredBundle;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.quartz.SpringBeanJobFactory;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Runs {@link DataSourceHarvesterJob}s like the harvest scheduler does: created by the job factory for each
+ * execution, knowing nothing but the job data, against a simulated SOS.
+ */
+@DataJpaTest
+@ExtendWith(SpringExtension.class)
+@ImportResource("classpath:artic-sea-test.xml")
+@ContextConfiguration(classes = { InsertRespositoryTest.Config.class, DataSourceHarvesterJobTest.JobConfig.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class DataSourceHarvesterJobTest extends ProxyTestBase {
+
+    private static final long TIMEOUT_IN_SECONDS = 60;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private ConfigurationReader configurationReader;
+
+    @Autowired
+    private HarvestStateStore stateStore;
+
+    @Autowired
+    private HarvestCheckpointStore checkpointStore;
+
+    @TempDir
+    public Path checkpointDirectory;
+
+    private HarvestSchedulerFactoryBean schedulerFactory;
+
+    private AutowiringJobFactory jobFactory;
+
+    private Scheduler scheduler;
+
+    private Path configFile;
+
+    private SensorWebSimulator simulator;
+
+    @BeforeEach
+    public void startScheduler() throws Exception {
+        configFile = Files.createTempFile("config-data-sources", ".json");
+        simulator = SensorWebSimulator.withDatasets(20, 2).start();
+        schedulerFactory = new HarvestSchedulerFactoryBean();
+        schedulerFactory.setSchedulerName("harvesterJobTestScheduler");
+        jobFactory = new AutowiringJobFactory(applicationContext);
+        schedulerFactory.setJobFactory(jobFactory);
+        schedulerFactory.setAutoStartup(false);
+        schedulerFactory.afterPropertiesSet();
+        scheduler = schedulerFactory.getObject();
+        scheduler.start();
+    }
+
+    @AfterEach
+    public void stopScheduler() throws Exception {
+        checkpointStore.setDirectory("");
+        schedulerFactory.destroy();
+        simulator.close();
+        Files.deleteIfExists(configFile);
+    }
+
+    @Test
+    @DisplayName("Test a scheduled harvest persists the datasets and completes")
+    public void scheduled_harvest() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos");
+
+        harvest(config);
+
+        assertThat(countDatasets(config)).isEqualTo(simulator.getDatasetCount());
+        assertThat(stateStore.getLastSuccess(config.getItemName())).isPresent();
+        assertThat(getGeneration(config)).isEqualTo(1L);
+        assertThat(stateStore.getStaleDatasets(config.getItemName())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a repeated harvest keeps the datasets and starts the next generation")
+    public void repeated_harvest() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos-repeated");
+
+        harvest(config);
+        harvest(config);
+
+        assertThat(countDatasets(config)).isEqualTo(simulator.getDatasetCount());
+        assertThat(getGeneration(config)).isEqualTo(2L);
+        assertThat(stateStore.getStaleDatasets(config.getItemName())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a missing dataset is reported as removed only by the harvest hiding it")
+    public void retained_dataset() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos-retained");
+        harvest(config);
+
+        // the last procedure and its two datasets disappear
+        simulator.setOfferedProcedures(9);
+        HarvestSummary hiding = getSummary(harvest(config));
+        HarvestSummary retaining = getSummary(harvest(config));
+
+        assertThat(hiding.getRemoved()).isEqualTo(2);
+        assertThat(hiding.getAdded()).isZero();
+        assertThat(retaining.getRemoved()).isZero();
+        assertThat(retaining.getAdded()).isZero();
+        assertThat(retaining.getUpdated()).isZero();
+        assertThat(retaining.hasChanges()).isFalse();
+        assertThat(stateStore.getStaleDatasets(config.getItemName())).hasSize(2);
+    }
+
+    @Test
+    @DisplayName("Test an unchanged adaptive source with a retained hidden dataset backs off")
+    public void adaptive_back_off() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos-adaptive",
+                job -> job.put("minIntervalInSeconds", 600).put("maxIntervalInSeconds", 7200));
+        assertThat(getInterval(harvest(config))).isEqualTo(600);
+
+        // the last procedure and its two datasets disappear
+        simulator.setOfferedProcedures(9);
+        assertThat(getInterval(harvest(config))).isEqualTo(600);
+        // the hidden dataset is retained, but the source did not change
+        assertThat(getInterval(harvest(config))).isEqualTo(900);
+    }
+
+    @Test
+    @DisplayName("Test a streamed harvest persists the same datasets as a single-shot harvest")
+    public void streamed_harvest() throws Exception {
+        DataSourceConfiguration single = configure("simulated-sos-single");
+        harvest(single);
+        List<String> datasets = getDatasetKeys(single);
+        List<String> offerings = getOfferings(single);
+
+        // a chunk per offering, the constellation is released after each chunk
+        jobFactory.setCustomizer(job -> {
+            ReflectionTestUtils.setField(job, "streaming", true);
+            ReflectionTestUtils.setField(job, "chunkSize", 1);
+        });
+        DataSourceConfiguration streamed = configure("simulated-sos-streamed");
+        harvest(streamed);
+
+        assertThat(getDatasetKeys(streamed)).hasSize(simulator.getDatasetCount())
+                .containsExactlyInAnyOrderElementsOf(datasets);
+        // offerings are kept by the released constellation as long as datasets reference them
+        assertThat(getOfferings(streamed)).containsExactlyInAnyOrderElementsOf(offerings);
+        assertThat(getGeneration(streamed)).isEqualTo(1L);
+        assertThat(stateStore.getStaleDatasets(streamed.getItemName())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a harvest resumes from the checkpoint of an interrupted harvest of the same configuration")
+    public void resume_checkpoint() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos-resumed");
+        harvest(config);
+        long requestsOfCompleteHarvest = simulator.getRequestCount();
+        checkpointStore.setDirectory(checkpointDirectory.toString());
+
+        // an interrupted harvest which completed all offerings
+        simulator.resetRequestCount();
+        checkpointStore.write(createCompletedCheckpoint(config, config.getConfigHash()));
+        harvest(config);
+
+        assertThat(simulator.getRequestCount()).isLessThan(requestsOfCompleteHarvest);
+        assertThat(countDatasets(config)).isEqualTo(simulator.getDatasetCount());
+        assertThat(stateStore.getStaleDatasets(config.getItemName())).isEmpty();
+        assertThat(checkpointStore.read(config.getItemName())).isEmpty();
+
+        // the checkpoint of another configuration is not resumed
+        simulator.resetRequestCount();
+        checkpointStore.write(createCompletedCheckpoint(config, "outdated"));
+        harvest(config);
+
+        assertThat(simulator.getRequestCount()).isEqualTo(requestsOfCompleteHarvest);
+        assertThat(countDatasets(config)).isEqualTo(simulator.getDatasetCount());
+        assertThat(checkpointStore.read(config.getItemName())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a harvest exceeding its budget keeps its progress and is resumed by the next run")
+    public void budget_exhaustion() throws Exception {
+        checkpointStore.setDirectory(checkpointDirectory.toString());
+        // each offering takes several requests, the budget is exhausted after a few of them
+        simulator.setLatency(100);
+        DataSourceConfiguration config = configure("simulated-sos-budget", job -> job.put("budgetInSeconds", 1));
+
+        HarvestSummary exhausted = getSummary(harvest(config));
+
+        assertThat(exhausted).isNull();
+        assertThat(countDatasets(config)).isPositive().isLessThan(simulator.getDatasetCount());
+        assertThat(checkpointStore.read(config.getItemName())).isPresent();
+        assertThat(stateStore.getLastSuccess(config.getItemName())).isEmpty();
+
+        simulator.setLatency(0);
+        harvest(config);
+
+        assertThat(countDatasets(config)).isEqualTo(simulator.getDatasetCount());
+        assertThat(checkpointStore.read(config.getItemName())).isEmpty();
+        assertThat(stateStore.getLastSuccess(config.getItemName())).isPresent();
+    }
+
+    @Test
+    @DisplayName("Test an interrupted harvest stops at the next safe point and keeps its progress")
+    public void interrupted_harvest() throws Exception {
+        checkpointStore.setDirectory(checkpointDirectory.toString());
+        simulator.setLatency(100);
+        DataSourceConfiguration config = configure("simulated-sos-interrupted");
+
+        HarvestSummary interrupted = getSummary(harvest(config, key -> {
+            // interrupted once the first offering is persisted
+            await(() -> countDatasets(config) > 0);
+            assertThat(scheduler.interrupt(key)).isTrue();
+        }));
+
+        assertThat(interrupted).isNull();
+        assertThat(countDatasets(config)).isPositive().isLessThan(simulator.getDatasetCount());
+        assertThat(checkpointStore.read(config.getItemName())).isPresent();
+        assertThat(stateStore.getLastSuccess(config.getItemName())).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a node which did not harvest a source serves its data")
+    public void serve_from_other_node() throws Exception {
+        DataSourceConfiguration config = configure("simulated-sos-clustered");
+        harvest(config);
+        DatasetEntity dataset = entityManager.createQuery("select d from DatasetEntity d join fetch d.service "
+                + "join fetch d.procedure join fetch d.offering join fetch d.phenomenon join fetch d.feature "
+                + "where d.service.name = :name", DatasetEntity.class).setParameter("name", config.getItemName())
+                .setMaxResults(1).getSingleResult();
+
+        // the connector of a node which neither harvested the source nor has seen it since its start
+        SOS2Connector otherNode = applicationContext.getAutowireCapableBeanFactory().createBean(SOS2Connector.class);
+
+        assertThat(otherNode.getLastObservation(dataset)).isPresent();
+        assertThat(otherNode.getFirstObservation(dataset)).isPresent();
+    }
+
+    private HarvestCheckpoint createCompletedCheckpoint(DataSourceConfiguration config, String configHash) {
+        HarvestCheckpoint checkpoint = new HarvestCheckpoint(config.getItemName());
+        checkpoint.setConfigHash(configHash);
+        getOfferings(config).forEach(checkpoint::addCompletedOffering);
+        getDatasetIds(config).forEach(checkpoint::addDatasetId);
+        return checkpoint;
+    }
+
+    private List<String> getOfferings(DataSourceConfiguration config) {
+        return entityManager.createQuery("select o.identifier from OfferingEntity o where o.service.name = :name",
+                String.class).setParameter("name", config.getItemName()).getResultList();
+    }
+
+    private List<String> getDatasetKeys(DataSourceConfiguration config) {
+        return entityManager.createQuery("select concat(d.procedure.identifier, '|', d.offering.identifier, '|', "
+                + "d.phenomenon.identifier, '|', d.feature.identifier) from DatasetEntity d "
+                + "where d.service.name = :name", String.class).setParameter("name", config.getItemName())
+                .getResultList();
+    }
+
+    private List<Long> getDatasetIds(DataSourceConfiguration config) {
+        return entityManager.createQuery("select d.id from DatasetEntity d where d.service.name = :name",
+                Long.class).setParameter("name", config.getItemName()).getResultList();
+    }
+
+    private DataSourceConfiguration configure(String itemName) throws Exception {
+        return configure(itemName, job -> {
+        });
+    }
+
+    private DataSourceConfiguration configure(String itemName, Consumer<ObjectNode> job) throws Exception {
+        ObjectNode dataSource = objectMapper.createObjectNode().put("itemName", itemName)
+                .put("url", simulator.getSosUrl()).put("version", "2.0.0").put("type", "SOS")
+                .put("connector", "SOS2Connector").put("supportsFirstLast", true);
+        job.accept(dataSource.putObject("job").put("enabled", true).put("cronExpression", "0 0 0 1 1 ? 2099"));
+        ObjectNode root = objectMapper.createObjectNode();
+        root.putArray("dataSources").add(dataSource);
+        Files.write(configFile, objectMapper.writeValueAsBytes(root));
+        configurationReader.setExternalConfigFile(configFile.toString());
+        assertThat(configurationReader.reload()).isTrue();
+        return configurationReader.getDataSource(itemName).get();
+    }
+
+    private JobExecutionContext harvest(DataSourceConfiguration config) throws Exception {
+        return harvest(config, key -> {
+        });
+    }
+
+    /**
+     * Schedules the harvest of the data source for immediate execution and waits until it is executed.
+     *
+     * @param whileRunning
+     *            called with the key of the job once it is scheduled
+     * @return the context of the execution
+     */
+    private JobExecutionContext harvest(DataSourceConfiguration config, JobAction whileRunning) throws Exception {
+        DataSourceHarvesterJob template = new DataSourceHarvesterJob();
+        template.init(config);
+        JobDetail job = template.createJobDetails();
+        // the trigger is named like the job, as adaptive harvests reschedule it
+        Trigger trigger = TriggerBuilder.newTrigger().withIdentity(job.getKey().getName(), job.getKey().getGroup())
+                .forJob(job).startNow().build();
+        CompletionListener listener = new CompletionListener();
+        scheduler.getListenerManager().addJobListener(listener, KeyMatcher.keyEquals(job.getKey()));
+        try {
+            scheduler.scheduleJob(job, Collections.singleton(trigger), true);
+            whileRunning.run(job.getKey());
+            assertThat(listener.await()).isTrue();
+        } finally {
+            scheduler.getListenerManager().removeJobListener(listener.getName());
+        }
+        assertThat(listener.getException()).isNull();
+        return listener.getContext();
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_IN_SECONDS);
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+    }
+
+    private HarvestSummary getSummary(JobExecutionContext context) {
+        return (HarvestSummary) ReflectionTestUtils.getField(context.getJobInstance(), "summary");
+    }
+
+    private int getInterval(JobExecutionContext context) {
+        return context.getJobDetail().getJobDataMap().getInt("intervalInSeconds");
+    }
+
+    private long countDatasets(DataSourceConfiguration config) {
+        return entityManager.createQuery("select count(d) from DatasetEntity d where d.service.name = :name",
+                Long.class).setParameter("name", config.getItemName()).getSingleResult();
+    }
+
+    private Long getGeneration(DataSourceConfiguration config) {
+        return new JdbcTemplate(stateStore.getDataSource()).queryForObject(
+                "SELECT generation FROM harvest_generation WHERE item_name = ?", Long.class, config.getItemName());
+    }
+
+    @FunctionalInterface
+    private interface JobAction {
+
+        void run(JobKey key) throws Exception;
+
+    }
+
+    static class JobConfig {
+
+        @Bean
+        public ConfigurationReader configurationReader() {
+            return new ConfigurationReader();
+        }
+
+    }
+
+    /**
+     * Creates a new job for each execution and autowires it, like the job factory of the harvest scheduler.
+     */
+    private static final class AutowiringJobFactory extends SpringBeanJobFactory {
+
+        private final ApplicationContext context;
+
+        private volatile Consumer<Object> customizer = job -> {
+        };
+
+        AutowiringJobFactory(ApplicationContext context) {
+            this.context = context;
+        }
+
+        /**
+         * @param customizer
+         *            changes the settings of the jobs created from now on
+         */
+        void setCustomizer(Consumer<Object> customizer) {
+            this.customizer = customizer;
+        }
+
+        @Override
+        protected Object createJobInstance(TriggerFiredBundle bundle) throws Exception {
+            Object job = super.createJobInstance(bundle);
+            context.getAutowireCapableBeanFactory().autowireBean(job);
+            customizer.accept(job);
+            return job;
+        }
+
+    }
+
+    private static final class CompletionListener extends JobListenerSupport {
+
+        private final CountDownLatch executed = new CountDownLatch(1);
+
+        private volatile JobExecutionException exception;
+
+        private volatile JobExecutionContext context;
+
+        @Override
+        public String getName() {
+            return "harvesterJobTestCompletion";
+        }
+
+        @Override
+        public void jobWasExecuted(JobExecutionContext context, JobExecutionException jobException) {
+            exception = jobException;
+            this.context = context;
+            executed.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return executed.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        }
+
+        JobExecutionException getException() {
+            return exception;
+        }
+
+        JobExecutionContext getContext() {
+            return context;
+        }
+
+    }
+
+}
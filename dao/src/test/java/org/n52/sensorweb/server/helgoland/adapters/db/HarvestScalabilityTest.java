@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpResponse;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.SOS2Connector;
+import org.n52.sensorweb.server.helgoland.adapters.connector.SensorThingsConnector;
+import org.n52.sensorweb.server.helgoland.adapters.connector.constellations.DatasetConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.da.InsertRepository;
+import org.n52.sensorweb.server.helgoland.adapters.test.SensorWebSimulator;
+import org.n52.sensorweb.server.helgoland.adapters.web.SimpleHttpClient;
+import org.n52.series.db.beans.CategoryEntity;
+import org.n52.series.db.beans.DatasetEntity;
+import org.n52.series.db.beans.DescribableEntity;
+import org.n52.series.db.beans.ServiceEntity;
+import org.n52.shetland.ogc.ows.service.GetCapabilitiesResponse;
+import org.n52.svalbard.decode.DecoderRepository;
+import org.n52.svalbard.decode.exception.DecodingException;
+import org.n52.svalbard.util.CodingHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Harvests simulated services of increasing size and reports wall time, requests, peak heap and inserted rows.
+ * <p>
+ * The benchmark is disabled by default, run it with
+ * {@code mvn test -Dtest=HarvestScalabilityTest -Dharvest.benchmark=true}. The sizes (number of datasets) and the
+ * latency (in milliseconds) of the simulated services can be set with {@code -Dharvest.benchmark.sizes=1000,10000}
+ * and {@code -Dharvest.benchmark.latency=20}. The datasets are persisted in one batch like the harvest job does,
+ * {@code -Dharvest.benchmark.persist=single} persists them one by one for comparison.
+ */
+@DataJpaTest
+@ExtendWith(SpringExtension.class)
+@ImportResource("classpath:artic-sea-test.xml")
+@ContextConfiguration(classes = InsertRespositoryTest.Config.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@EnabledIfSystemProperty(named = "harvest.benchmark", matches = "true")
+public class HarvestScalabilityTest extends ProxyTestBase {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HarvestScalabilityTest.class);
+
+    private static final int PHENOMENA = 5;
+
+    private static final List<String> RESULTS = new ArrayList<>();
+
+    private static final String[] ENTITIES = { "DatasetEntity", "ProcedureEntity", "OfferingEntity",
+        "FeatureEntity", "PhenomenonEntity", "PlatformEntity", "CategoryEntity", "UnitEntity" };
+
+    @Autowired
+    private SOS2Connector sosConnector;
+
+    @Autowired
+    private SensorThingsConnector sensorThingsConnector;
+
+    @Autowired
+    private InsertRepository insertRepository;
+
+    @Autowired
+    private DecoderRepository decoderRepository;
+
+    @AfterAll
+    public static void report() {
+        LOGGER.info("Harvest scalability:\n{}\n{}", String.format(Locale.ROOT, "%-14s %9s %10s %12s %9s %12s %9s",
+                "connector", "datasets", "time [ms]", "persist [ms]", "requests", "heap [MiB]", "db rows"),
+                String.join("\n", RESULTS));
+    }
+
+    @Test
+    @DisplayName("Benchmark harvesting a SOS 2.0")
+    public void sos_harvest() throws Exception {
+        for (int size : getSizes()) {
+            try (SensorWebSimulator simulator = createSimulator(size)) {
+                DataSourceConfiguration config = createConfig("simulator-sos-" + size, "SOS", simulator.getSosUrl());
+                run("SOS2Connector", simulator, () -> sosConnector.getConstellation(new HarvestContext(config),
+                        getCapabilities(config)));
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Benchmark harvesting a SensorThings API")
+    public void sensorthings_harvest() throws Exception {
+        for (int size : getSizes()) {
+            try (SensorWebSimulator simulator = createSimulator(size)) {
+                DataSourceConfiguration config = createConfig("simulator-sta-" + size, "SensorThings",
+                        simulator.getSensorThingsUrl());
+                run("SensorThings", simulator,
+                        () -> sensorThingsConnector.getConstellation(new HarvestContext(config)));
+            }
+        }
+    }
+
+    private void run(String connector, SensorWebSimulator simulator, Harvest harvest) throws Exception {
+        long rowsBefore = countRows();
+        List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(pool -> pool.getType() == MemoryType.HEAP).collect(Collectors.toList());
+        System.gc();
+        heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+        long start = System.nanoTime();
+
+        ServiceConstellation constellation = harvest.run();
+        long persistStart = System.nanoTime();
+        persist(constellation);
+
+        long time = (System.nanoTime() - start) / 1_000_000;
+        long persistTime = (System.nanoTime() - persistStart) / 1_000_000;
+        // the sum of the peaks of all pools is an upper bound of the peak heap usage
+        long peakHeap = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum() / (1024 * 1024);
+        long rows = countRows() - rowsBefore;
+        String result = String.format(Locale.ROOT, "%-14s %9d %10d %12d %9d %12d %9d", connector,
+                simulator.getDatasetCount(), time, persistTime, simulator.getRequestCount(), peakHeap, rows);
+        LOGGER.info(result);
+        RESULTS.add(result);
+        assertThat(constellation.getDatasets()).hasSize(simulator.getDatasetCount());
+    }
+
+    private void persist(ServiceConstellation constellation) {
+        ServiceEntity service = insertRepository.insertService(constellation.getService());
+        CategoryEntity category = new CategoryEntity();
+        category.setIdentifier("DEFAULT_PROXY_CATEGORY");
+        List<DatasetEntity> datasets = new ArrayList<>();
+        for (DatasetConstellation dataset : constellation.getDatasets()) {
+            datasets.add(dataset.createDatasetEntity(
+                    withService(constellation.getProcedures(), dataset.getProcedure(), service),
+                    withService(category, service),
+                    withService(constellation.getFeatures(), dataset.getFeature(), service),
+                    withService(constellation.getOfferings(), dataset.getOffering(), service),
+                    withService(constellation.getPhenomena(), dataset.getPhenomenon(), service),
+                    withService(constellation.getPlatforms(), dataset.getPlatform(), service), service));
+        }
+        if ("single".equals(System.getProperty("harvest.benchmark.persist"))) {
+            datasets.forEach(insertRepository::insertDataset);
+        } else {
+            assertThat(insertRepository.insertDatasets(datasets)).hasSize(datasets.size());
+        }
+    }
+
+    private <T extends DescribableEntity> T withService(Map<String, T> entities,
+            String identifier, ServiceEntity service) {
+        return withService(entities.get(identifier), service);
+    }
+
+    private <T extends DescribableEntity> T withService(T entity, ServiceEntity service) {
+        entity.setService(service);
+        return entity;
+    }
+
+    private long countRows() {
+        return Arrays.stream(ENTITIES).map(entity -> "select count(e) from " + entity + " e")
+                .map(query -> entityManager.createQuery(query, Long.class).getSingleResult())
+                .mapToLong(Long::longValue).sum();
+    }
+
+    private GetCapabilitiesResponse getCapabilities(DataSourceConfiguration config)
+            throws IOException, DecodingException, XmlException {
+        HttpResponse response =
+                new SimpleHttpClient().executeGet(config.getUrl() + "?service=SOS&request=GetCapabilities");
+        XmlObject xmlResponse = XmlObject.Factory.parse(response.getEntity().getContent());
+        return (GetCapabilitiesResponse) decoderRepository.getDecoder(CodingHelper.getDecoderKey(xmlResponse))
+                .decode(xmlResponse);
+    }
+
+    private DataSourceConfiguration createConfig(String itemName, String type, String url) {
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName(itemName);
+        config.setType(type);
+        config.setUrl(url);
+        return config;
+    }
+
+    private SensorWebSimulator createSimulator(int size) throws IOException {
+        return SensorWebSimulator.withDatasets(size, PHENOMENA)
+                .setLatency(Long.getLong("harvest.benchmark.latency", 0L)).start();
+    }
+
+    private int[] getSizes() {
+        return Arrays.stream(System.getProperty("harvest.benchmark.sizes", "1000,10000,100000").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+    }
+
+    @FunctionalInterface
+    private interface Harvest {
+        ServiceConstellation run() throws Exception;
+    }
+}
@@ -39,7 +39,10 @@ import org.n52.sensorweb.server.db.repositories.core.DatasetRepository;
 import org.n52.sensorweb.server.db.repositories.core.FormatRepository;
 import org.n52.sensorweb.server.db.repositories.core.ServiceRepository;
 import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.da.DatasetKey;
 import org.n52.sensorweb.server.helgoland.adapters.da.InsertRepository;
+import org.n52.sensorweb.server.helgoland.adapters.da.ParameterCache;
+import org.n52.sensorweb.server.helgoland.adapters.da.StoredDataset;
 import org.n52.sensorweb.server.helgoland.adapters.test.CategoryBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.test.DatasetEntityBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.test.FeatureBuilder;
@@ -49,10 +52,15 @@ import org.n52.sensorweb.server.helgoland.adapters.test.PhenomenonBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.test.PlatformBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.test.ProcedureBuilder;
 import org.n52.sensorweb.server.helgoland.adapters.test.ServiceBuilder;
+import org.n52.series.db.beans.CategoryEntity;
 import org.n52.series.db.beans.CountDataEntity;
 import org.n52.series.db.beans.DataEntity;
 import org.n52.series.db.beans.DatasetEntity;
+import org.n52.series.db.beans.FeatureEntity;
 import org.n52.series.db.beans.FormatEntity;
+import org.n52.series.db.beans.OfferingEntity;
+import org.n52.series.db.beans.PlatformEntity;
+import org.n52.series.db.beans.ProcedureEntity;
 import org.n52.series.db.beans.QuantityDataEntity;
 import org.n52.series.db.beans.ServiceEntity;
 import org.n52.series.db.beans.TextDataEntity;
@@ -69,6 +77,9 @@ import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -212,6 +223,104 @@ public class InsertRespositoryTest extends ProxyTestBase {
         });
     }
 
+    @Test
+    @DisplayName("Test batch insertion of datasets sharing parameters")
+    public void datasets_insertion() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        CategoryEntity category = CategoryBuilder.newCategory("category").build();
+        FeatureEntity feature = FeatureBuilder.newFeature("feature").setFormat(format).build();
+        OfferingEntity offering = OfferingBuilder.newOffering("offering").build();
+        PlatformEntity platform = PlatformBuilder.newFeature("platform").build();
+        ProcedureEntity procedure = ProcedureBuilder.newProcedure("procedure").setFormat(format).build();
+        List<DatasetEntity> datasets = new ArrayList<>();
+        for (String phenomenon : Arrays.asList("phenomenon-1", "phenomenon-2")) {
+            datasets.add((DatasetEntity) DatasetEntityBuilder.newDataset(phenomenon).setCategory(category)
+                    .setFeature(feature).setOffering(offering)
+                    .setPhenomenon(PhenomenonBuilder.newPhenomenon(phenomenon).build()).setPlatform(platform)
+                    .setProcedure(procedure).build().setService(service));
+        }
+        List<DatasetEntity> inserted = insertRespository.insertDatasets(datasets);
+        assertAll("Inserted datasets", () -> {
+            assertEquals(2, inserted.size());
+            assertNotNull(inserted.get(0).getId());
+            assertNotNull(inserted.get(1).getId());
+            assertFalse(inserted.get(0).getId().equals(inserted.get(1).getId()));
+            assertEquals(inserted.get(0).getFeature().getId(), inserted.get(1).getFeature().getId());
+            assertEquals("phenomenon-2", inserted.get(1).getPhenomenon().getIdentifier());
+            assertEquals(2, insertRespository.getIdsForService(service).size());
+        });
+    }
+
+    @Test
+    @DisplayName("Test batch insertion finds stored datasets")
+    public void batch_stored_datasets() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        DatasetEntity stored = insertRespository
+                .insertDatasets(Collections.singletonList(createDatasetEntity(service, format, "phenomenon")))
+                .get(0);
+
+        // the stored dataset harvested again, along with a new one and a duplicate of the new one
+        List<DatasetEntity> inserted = insertRespository.insertDatasets(Arrays.asList(
+                createDatasetEntity(service, format, "phenomenon"),
+                createDatasetEntity(service, format, "phenomenon-2"),
+                createDatasetEntity(service, format, "phenomenon-2")));
+        assertAll("Inserted datasets", () -> {
+            assertEquals(stored.getId(), inserted.get(0).getId());
+            assertFalse(stored.getId().equals(inserted.get(1).getId()));
+            assertEquals(inserted.get(1).getId(), inserted.get(2).getId());
+            assertEquals(2, insertRespository.getIdsForService(service).size());
+        });
+    }
+
+    @Test
+    @DisplayName("Test later batches reference cached parameters")
+    public void cached_parameters() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        ParameterCache cache = new ParameterCache();
+        DatasetEntity first = insertRespository
+                .insertDatasets(Collections.singletonList(createDatasetEntity(service, format, "phenomenon")), cache)
+                .get(0);
+        assertThat(cache.size()).isEqualTo(6);
+
+        // new instances of the same parameters, as harvested with a later chunk
+        DatasetEntity second = insertRespository
+                .insertDatasets(Collections.singletonList(createDatasetEntity(service, format, "phenomenon-2")), cache)
+                .get(0);
+        assertAll("Inserted datasets", () -> {
+            assertFalse(first.getId().equals(second.getId()));
+            assertEquals(first.getFeature().getId(), second.getFeature().getId());
+            assertEquals(first.getProcedure().getId(), second.getProcedure().getId());
+            assertEquals(7, cache.size());
+        });
+    }
+
+    @Test
+    @DisplayName("Test batch insertion finds the stored parameters of the service")
+    public void stored_parameters() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        DatasetEntity first = insertRespository
+                .insertDatasets(Collections.singletonList(createOwnedDatasetEntity(service, format))).get(0);
+
+        // the next harvest knows none of the parameters
+        List<DatasetEntity> inserted = insertRespository.insertDatasets(Arrays.asList(
+                createOwnedDatasetEntity(service, format), createOwnedDatasetEntity(service, format, "phenomenon-2")));
+        assertAll("Inserted datasets", () -> {
+            assertEquals(first.getId(), inserted.get(0).getId());
+            assertEquals(first.getProcedure().getId(), inserted.get(1).getProcedure().getId());
+            assertEquals(first.getFeature().getId(), inserted.get(1).getFeature().getId());
+            assertEquals(1, countParameters("ProcedureEntity", service));
+            assertEquals(2, countParameters("PhenomenonEntity", service));
+        });
+    }
+
     @Test
     @DisplayName("Test deletion of dataset")
     public void dataset_deletion() {
@@ -248,6 +357,127 @@ public class InsertRespositoryTest extends ProxyTestBase {
         });
     }
 
+    @Test
+    @DisplayName("Test deletion of a service with more datasets than fit into one delete chunk")
+    public void chunked_service_deletion() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        List<DatasetEntity> datasets = new ArrayList<>();
+        for (int i = 0; i < 1001; i++) {
+            datasets.add(createDatasetEntity(service, format, "phenomenon-" + i));
+        }
+        List<DatasetEntity> inserted = insertRespository.insertDatasets(datasets);
+        // the values are referenced as first and last value of their datasets
+        List<Long> dataIds = new ArrayList<>();
+        for (DatasetEntity dataset : Arrays.asList(inserted.get(0), inserted.get(1000))) {
+            dataIds.add(insertRespository.insertData(dataset, createQuantityData(dataset)).getId());
+        }
+        List<Long> datasetIds = new ArrayList<>(insertRespository.getIdsForService(service));
+        assertEquals(1001, datasetIds.size());
+
+        insertRespository.removeService(createConfiguration(service));
+        assertAll("Deleted service", () -> {
+            assertThat(datasetRepository.findAllById(datasetIds)).isEmpty();
+            assertThat(dataRepository.findAllById(dataIds)).isEmpty();
+            assertFalse(insertRespository.hasService(createConfiguration(service)));
+        });
+    }
+
+    @Test
+    @DisplayName("Test deletion of a service keeps its parameters used by another service")
+    public void shared_parameter_deletion() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        ServiceEntity other = insertRespository.insertService(
+                ServiceBuilder.newService("other", "https://52north.org/other", "SOS 2.0.0").build());
+        FormatEntity format = formatRepository.saveAndFlush(FormatBuilder.newFormat("format").build());
+        DatasetEntity dataset = insertRespository.insertDataset(createOwnedDatasetEntity(service, format));
+        DatasetEntity otherDataset = createOwnedDatasetEntity(other, format);
+        // the category of the service is used by a dataset of the other service
+        otherDataset.setCategory(dataset.getCategory());
+        DatasetEntity insertedOther = insertRespository.insertDataset(otherDataset);
+
+        insertRespository.removeService(createConfiguration(service));
+        assertAll("Deleted service", () -> {
+            assertFalse(datasetRepository.findById(dataset.getId()).isPresent());
+            assertEquals(0L, countParameters("PhenomenonEntity", service));
+            assertEquals(0L, countParameters("ProcedureEntity", service));
+            assertEquals(1L, countParameters("CategoryEntity", service));
+            assertEquals(1L, countParameters("PhenomenonEntity", other));
+            Optional<DatasetEntity> kept = datasetRepository.findById(insertedOther.getId());
+            assertTrue(kept.isPresent());
+            assertEquals(dataset.getCategory().getId(), kept.get().getCategory().getId());
+        });
+    }
+
+    @Test
+    @DisplayName("Test projection of stored datasets")
+    public void stored_datasets() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        DatasetEntity dataset = createQuantityDatasetEntity(service);
+        DatasetEntity insertedDataset = insertRespository.insertDataset(dataset);
+        insertRespository.insertData(insertedDataset, createQuantityData(insertedDataset));
+        List<StoredDataset> stored = insertRespository.getStoredDatasets(service);
+        assertAll("Stored datasets", () -> {
+            assertEquals(1, stored.size());
+            StoredDataset storedDataset = stored.get(0);
+            assertEquals(insertedDataset.getId(), storedDataset.getId());
+            assertEquals(new DatasetKey(insertedDataset.getProcedure().getIdentifier(),
+                    insertedDataset.getOffering().getIdentifier(), insertedDataset.getPhenomenon().getIdentifier(),
+                    insertedDataset.getFeature().getIdentifier(), insertedDataset.getPlatform().getIdentifier()),
+                    storedDataset.getKey());
+            assertFalse(storedDataset.isBeforeFirst(insertedDataset.getFirstValueAt()));
+            assertFalse(storedDataset.isAfterLast(insertedDataset.getLastValueAt()));
+            assertTrue(storedDataset.isAfterLast(DateTime.now().plusHours(1).toDate()));
+            assertFalse(storedDataset.isDeleted());
+        });
+        insertRespository.setDeleted(service, Collections.singleton(insertedDataset.getId()), true);
+        assertTrue(insertRespository.getStoredDatasets(service).get(0).isDeleted());
+    }
+
+    @Test
+    @DisplayName("Test switch-over publishes staged datasets and hides missing ones")
+    public void switch_over() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        DatasetEntity dataset = createQuantityDatasetEntity(service);
+        dataset.setPublished(false);
+        Long id = insertRespository.insertDataset(dataset).getId();
+        assertFalse(insertRespository.getStoredDatasets(service).get(0).isPublished());
+
+        insertRespository.switchOver(service, Collections.singleton(id), Collections.emptySet(),
+                Collections.emptySet());
+        StoredDataset published = insertRespository.getStoredDatasets(service).get(0);
+        assertTrue(published.isPublished());
+        assertFalse(published.isDeleted());
+
+        insertRespository.switchOver(service, Collections.emptySet(), Collections.emptySet(),
+                Collections.singleton(id));
+        assertTrue(insertRespository.getStoredDatasets(service).get(0).isDeleted());
+    }
+
+    @Test
+    @DisplayName("Test switch-over inserts the values staged for published datasets")
+    public void switch_over_values() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        DatasetEntity dataset = insertRespository.insertDataset(createQuantityDatasetEntity(service));
+        DataEntity<?> value = createQuantityData(dataset);
+
+        insertRespository.switchOver(service, Collections.singletonMap(dataset, Collections.singletonList(value)),
+                Collections.emptySet(), Collections.emptySet(), Collections.singleton(dataset.getId()), () -> {
+                });
+        StoredDataset stored = insertRespository.getStoredDatasets(service).get(0);
+        assertAll("Switched over dataset", () -> {
+            assertEquals(1, dataRepository.findAllByDataset(dataset).size());
+            assertEquals(value.getSamplingTimeEnd(), stored.getLastValueAt());
+            // the staged dataset carries the flags of the start of the harvest
+            assertTrue(stored.isDeleted());
+        });
+    }
+
     @Test
     @DisplayName("Test insertion of quantity data")
     public void quantity_data_insertion() {
@@ -274,6 +504,31 @@ public class InsertRespositoryTest extends ProxyTestBase {
         });
     }
 
+    @Test
+    @DisplayName("Test batch insertion of quantity data")
+    public void quantity_data_batch_insertion() {
+        ServiceEntity service = insertRespository.insertService(
+                ServiceBuilder.newService("service", "https://52north.org/service", "SOS 2.0.0").build());
+        DatasetEntity insertedDataset = insertRespository.insertDataset(createQuantityDatasetEntity(service));
+        List<DataEntity<?>> values = new ArrayList<>();
+        for (int hours : new int[] { 2, 0, 1 }) {
+            DataEntity<?> data = createQuantityData(insertedDataset);
+            Date date = DateTime.now().minusHours(hours).toDate();
+            data.setSamplingTimeStart(date);
+            data.setSamplingTimeEnd(date);
+            values.add(data);
+        }
+        List<DataEntity<?>> inserted = insertRespository.insertData(insertedDataset, values);
+        assertAll("Inserted data", () -> {
+            assertEquals(3, inserted.size());
+            assertEquals(3, dataRepository.findAllByDataset(insertedDataset).size());
+            assertEquals(values.get(0).getSamplingTimeStart(), insertedDataset.getFirstValueAt());
+            assertEquals(values.get(1).getSamplingTimeEnd(), insertedDataset.getLastValueAt());
+            assertEquals(inserted.get(0).getId(), insertedDataset.getFirstObservation().getId());
+            assertEquals(inserted.get(1).getId(), insertedDataset.getLastObservation().getId());
+        });
+    }
+
     @Test
     @DisplayName("Test insertion of text data")
     public void text_data_insertion() {
@@ -359,6 +614,43 @@ public class InsertRespositoryTest extends ProxyTestBase {
                                    .build();
     }
 
+    private DatasetEntity createDatasetEntity(ServiceEntity service, FormatEntity format, String phenomenon) {
+        return (DatasetEntity) DatasetEntityBuilder.newDataset(phenomenon)
+                .setCategory(CategoryBuilder.newCategory("category").build())
+                .setFeature(FeatureBuilder.newFeature("feature").setFormat(format).build())
+                .setOffering(OfferingBuilder.newOffering("offering").build())
+                .setPhenomenon(PhenomenonBuilder.newPhenomenon(phenomenon).build())
+                .setPlatform(PlatformBuilder.newFeature("platform").build())
+                .setProcedure(ProcedureBuilder.newProcedure("procedure").setFormat(format).build())
+                .build().setService(service);
+    }
+
+    /**
+     * @return a dataset whose parameters belong to the service, as harvested
+     */
+    private DatasetEntity createOwnedDatasetEntity(ServiceEntity service, FormatEntity format) {
+        return createOwnedDatasetEntity(service, format, "phenomenon");
+    }
+
+    private DatasetEntity createOwnedDatasetEntity(ServiceEntity service, FormatEntity format, String phenomenon) {
+        DatasetEntity dataset = createDatasetEntity(service, format, phenomenon);
+        Arrays.asList(dataset.getCategory(), dataset.getFeature(), dataset.getOffering(), dataset.getPhenomenon(),
+                dataset.getPlatform(), dataset.getProcedure()).forEach(parameter -> parameter.setService(service));
+        return dataset;
+    }
+
+    private DataSourceConfiguration createConfiguration(ServiceEntity service) {
+        DataSourceConfiguration configuration = new DataSourceConfiguration();
+        configuration.setItemName(service.getName());
+        configuration.setUrl(service.getUrl());
+        return configuration;
+    }
+
+    private long countParameters(String entity, ServiceEntity service) {
+        return entityManager.createQuery("select count(p) from " + entity + " p where p.service.id = :service",
+                Long.class).setParameter("service", service.getId()).getSingleResult();
+    }
+
     private DataEntity<?> createQuantityData(DatasetEntity dataset) {
         return createData(dataset, QuantityDataEntity::new, new BigDecimal("52.7"));
     }
@@ -389,7 +681,7 @@ public class InsertRespositoryTest extends ProxyTestBase {
             "org.n52.sensorweb.server.db.assembler.core", "org.n52.sensorweb.server.db.assembler.mapper",
             "org.n52.sensorweb.server.db.factory", "org.n52.sensorweb.server.db.old.dao",
             "org.n52.sensorweb.server.helgoland.adapters"})
-    static class Config extends ProxyTestRepositoryConfig<DatasetEntity> {
+    public static class Config extends ProxyTestRepositoryConfig<DatasetEntity> {
         public Config() {
             super("/mapping/proxy/persistence.xml");
         }
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import javax.persistence.CacheStoreMode;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.n52.sensorweb.server.helgoland.adapters.da.DataSourceRouting;
+import org.n52.sensorweb.server.helgoland.adapters.da.ReadReplicaConfigurer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.ImportResource;
+import org.springframework.orm.jpa.EntityManagerHolder;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+@DataJpaTest
+@ExtendWith(SpringExtension.class)
+@ImportResource("classpath:artic-sea-test.xml")
+@ContextConfiguration(classes = InsertRespositoryTest.Config.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class ReadReplicaCacheTest extends ProxyTestBase {
+
+    private static final String CACHE_STORE_MODE = "javax.persistence.cache.storeMode";
+
+    @Autowired
+    private ReadReplicaConfigurer readReplicas;
+
+    @Autowired
+    private EntityManagerFactory entityManagerFactory;
+
+    @AfterEach
+    public void tearDown() {
+        DataSourceRouting.clear();
+    }
+
+    @Test
+    @DisplayName("Test entity managers of routed reads do not put into the shared cache")
+    public void routed_entity_manager() {
+        EntityManager primary = entityManagerFactory.createEntityManager();
+        EntityManager routed = entityManagerFactory.createEntityManager();
+        try {
+            ReadReplicaConfigurer.bypassCacheForRoutedReads(primary);
+            DataSourceRouting.routeReads(5);
+            ReadReplicaConfigurer.bypassCacheForRoutedReads(routed);
+            assertThat(primary.getProperties().get(CACHE_STORE_MODE)).isNotEqualTo(CacheStoreMode.BYPASS);
+            assertThat(routed.getProperties()).containsEntry(CACHE_STORE_MODE, CacheStoreMode.BYPASS);
+            // cached entities are still read
+            assertThat(routed.createQuery("select count(s) from ServiceEntity s", Long.class).getSingleResult())
+                    .isNotNull();
+        } finally {
+            primary.close();
+            routed.close();
+        }
+    }
+
+    @Test
+    @DisplayName("Test entity managers opened for a request before its reads are routed")
+    public void bound_entity_manager() {
+        EntityManager entityManager = entityManagerFactory.createEntityManager();
+        TransactionSynchronizationManager.bindResource(entityManagerFactory, new EntityManagerHolder(entityManager));
+        try {
+            readReplicas.routeReads(5);
+            assertThat(DataSourceRouting.getMaxLagInSeconds()).isEqualTo(5);
+            assertThat(entityManager.getProperties()).containsEntry(CACHE_STORE_MODE, CacheStoreMode.BYPASS);
+        } finally {
+            TransactionSynchronizationManager.unbindResource(entityManagerFactory);
+            entityManager.close();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.db;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.sensorweb.server.helgoland.adapters.da.DataSourceRouting;
+import org.n52.sensorweb.server.helgoland.adapters.da.RoutingDataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+public class RoutingDataSourceTest {
+
+    private static final String LAG_QUERY = "SELECT lag FROM replica_state";
+
+    private EmbeddedDatabase primary;
+
+    private EmbeddedDatabase replica;
+
+    private RoutingDataSource dataSource;
+
+    @BeforeEach
+    public void setUp() {
+        primary = createDatabase("primary", 0);
+        replica = createDatabase("replica", 0);
+        Map<String, DataSource> replicas = new LinkedHashMap<>();
+        replicas.put("replica", replica);
+        // probe the lag on every routing decision
+        dataSource = new RoutingDataSource(primary, replicas, LAG_QUERY, 0);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        DataSourceRouting.clear();
+        primary.shutdown();
+        replica.shutdown();
+    }
+
+    @Test
+    @DisplayName("Test unmarked reads and writes use the primary database")
+    public void primary_by_default() {
+        assertThat(getDatabaseName()).isEqualTo("primary");
+    }
+
+    @Test
+    @DisplayName("Test marked reads use a replica in sync")
+    public void replica_reads() {
+        DataSourceRouting.routeReads(5);
+        assertThat(getDatabaseName()).isEqualTo("replica");
+
+        DataSourceRouting.clear();
+        assertThat(getDatabaseName()).isEqualTo("primary");
+    }
+
+    @Test
+    @DisplayName("Test marked reads use the primary database if the replica lags behind")
+    public void lagging_replica() {
+        new JdbcTemplate(replica).update("UPDATE replica_state SET lag = 60");
+        DataSourceRouting.routeReads(5);
+        assertThat(getDatabaseName()).isEqualTo("primary");
+
+        DataSourceRouting.routeReads(120);
+        assertThat(getDatabaseName()).isEqualTo("replica");
+    }
+
+    @Test
+    @DisplayName("Test marked reads use the primary database if the replica is unavailable")
+    public void unavailable_replica() {
+        replica.shutdown();
+        DataSourceRouting.routeReads(5);
+        assertThat(getDatabaseName()).isEqualTo("primary");
+    }
+
+    private String getDatabaseName() {
+        return new JdbcTemplate(dataSource).queryForObject("SELECT name FROM replica_state", String.class);
+    }
+
+    private EmbeddedDatabase createDatabase(String name, int lag) {
+        EmbeddedDatabase database =
+                new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        JdbcTemplate template = new JdbcTemplate(database);
+        template.execute("CREATE TABLE replica_state (name VARCHAR(255), lag DOUBLE)");
+        template.update("INSERT INTO replica_state (name, lag) VALUES (?, ?)", name, lag);
+        return database;
+    }
+
+}
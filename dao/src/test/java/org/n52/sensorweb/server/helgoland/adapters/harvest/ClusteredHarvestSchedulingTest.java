@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.n52.sensorweb.server.helgoland.adapters.config.ConfigurationReader;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.HarvestPriority;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCheckpoint;
+import org.quartz.Job;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+
+public class ClusteredHarvestSchedulingTest {
+
+    private static final Map<String, AtomicInteger> EXECUTIONS = new ConcurrentHashMap<>();
+
+    @TempDir
+    public Path directory;
+
+    private JdbcDataSource dataSource;
+
+    private final List<HarvestSchedulerFactoryBean> nodes = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        EXECUTIONS.clear();
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (HarvestSchedulerFactoryBean node : nodes) {
+            node.destroy();
+        }
+    }
+
+    @Test
+    @DisplayName("Test each harvest is executed by exactly one node")
+    public void exactly_once() throws Exception {
+        Scheduler nodeA = createNode("node-a");
+        Scheduler nodeB = createNode("node-b");
+        int jobs = 10;
+        for (int i = 0; i < jobs; i++) {
+            schedule(i % 2 == 0 ? nodeA : nodeB, "source-" + i, new Date());
+        }
+        nodeA.start();
+        nodeB.start();
+
+        awaitExecutions(jobs);
+        Thread.sleep(1000);
+        assertThat(EXECUTIONS).hasSize(jobs);
+        assertThat(EXECUTIONS.values()).allMatch(count -> count.get() == 1);
+    }
+
+    @Test
+    @DisplayName("Test harvests are taken over when a node stops")
+    public void failover() throws Exception {
+        Scheduler nodeA = createNode("node-a");
+        Scheduler nodeB = createNode("node-b");
+        nodeA.start();
+        schedule(nodeA, "source", new Date(System.currentTimeMillis() + 2000));
+        nodeA.shutdown();
+        nodeB.start();
+
+        awaitExecutions(1);
+        assertThat(EXECUTIONS).containsOnlyKeys("source");
+    }
+
+    @Test
+    @DisplayName("Test a queued harvest resumed by another node is admitted once and frees its reservation")
+    public void resumed_elsewhere() throws Exception {
+        ConfigurationReader configurationReader = createConfigurationReader("source");
+        Scheduler nodeA = createNode("node-a");
+        Scheduler nodeB = createNode("node-b");
+        HarvestExecutor executorA = createExecutor(nodeA, configurationReader);
+        HarvestExecutor executorB = createExecutor(nodeB, configurationReader);
+        assertThat(executorA.tryAcquire("blocker", HarvestPriority.NORMAL, 1d, () -> { })).isTrue();
+
+        nodeA.start();
+        schedule(nodeA, AdmittedJob.class, "source", new Date());
+        await(() -> executorA.getQueueLength() == 1);
+        assertThat(EXECUTIONS).isEmpty();
+
+        // the resumed trigger of node A can only be fired by node B
+        nodeA.standby();
+        nodeB.start();
+        executorA.release("blocker", 0);
+        awaitExecutions(1);
+        await(() -> executorB.getRunningHarvests() == 0);
+        assertThat(executorA.getRunningHarvests()).isEqualTo(1);
+
+        // the next harvest fired by node A notices the reservation is not claimed anymore
+        nodeB.standby();
+        nodeA.start();
+        schedule(nodeA, AdmittedJob.class, "other", new Date());
+        awaitExecutions(2);
+        assertThat(executorA.getRunningHarvests()).isZero();
+        assertThat(EXECUTIONS.get("source").get()).isEqualTo(1);
+    }
+
+    @Test
+    @DisplayName("Test a harvest interrupted on one node is resumed by another")
+    public void shared_checkpoint() {
+        HarvestCheckpointStore nodeA = createCheckpointStore();
+        HarvestCheckpointStore nodeB = createCheckpointStore();
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName("source");
+        config.setConfigHash("hash");
+        HarvestCheckpoint checkpoint = new HarvestCheckpoint(config.getItemName());
+        checkpoint.setConfigHash(config.getConfigHash());
+        checkpoint.addCompletedOffering("offering");
+        checkpoint.addDatasetId(1L);
+        nodeA.write(checkpoint);
+
+        assertThat(nodeB.read(config)).hasValueSatisfying(resumed -> {
+            assertThat(resumed.getCompletedOfferings()).containsExactly("offering");
+            assertThat(resumed.getDatasetIds()).containsExactly(1L);
+        });
+        nodeB.delete(config.getItemName());
+        assertThat(nodeA.read(config)).isEmpty();
+    }
+
+    private HarvestCheckpointStore createCheckpointStore() {
+        HarvestStateStore stateStore = new HarvestStateStore();
+        stateStore.setDataSource(dataSource);
+        HarvestCheckpointStore checkpointStore = new HarvestCheckpointStore();
+        checkpointStore.setStateStore(stateStore);
+        checkpointStore.setShared(true);
+        return checkpointStore;
+    }
+
+    private ConfigurationReader createConfigurationReader(String itemName) throws IOException {
+        Path file = directory.resolve("config-data-sources.json");
+        Files.write(file, ("{ \"dataSources\": [ { \"itemName\": \"" + itemName + "\", "
+                + "\"url\": \"http://localhost/service\", \"type\": \"SOS\" } ] }")
+                .getBytes(StandardCharsets.UTF_8));
+        ConfigurationReader configurationReader = new ConfigurationReader();
+        configurationReader.setExternalConfigFile(file.toString());
+        configurationReader.setPollIntervalInSeconds(0);
+        configurationReader.start();
+        return configurationReader;
+    }
+
+    private HarvestExecutor createExecutor(Scheduler scheduler, ConfigurationReader configurationReader)
+            throws Exception {
+        HarvestExecutor harvestExecutor = new HarvestExecutor();
+        harvestExecutor.setMaxConcurrentHarvests(1);
+        scheduler.getListenerManager()
+                .addTriggerListener(new HarvestAdmissionListener(harvestExecutor, configurationReader));
+        return harvestExecutor;
+    }
+
+    private Scheduler createNode(String instanceId) throws Exception {
+        HarvestSchedulerFactoryBean node = new HarvestSchedulerFactoryBean();
+        node.setSchedulerName("clusteredTestScheduler");
+        node.setClustered(true);
+        node.setClusterDataSource(dataSource);
+        node.setInstanceId(instanceId);
+        node.setClusterCheckinInterval(1000);
+        node.setAutoStartup(false);
+        node.afterPropertiesSet();
+        nodes.add(node);
+        return node.getObject();
+    }
+
+    private void schedule(Scheduler scheduler, String name, Date startAt) throws Exception {
+        schedule(scheduler, CountingJob.class, name, startAt);
+    }
+
+    private void schedule(Scheduler scheduler, Class<? extends Job> jobClass, String name, Date startAt)
+            throws Exception {
+        // harvest jobs keep their repeating trigger, a vetoed one-shot trigger must not remove the job
+        JobDetail job = JobBuilder.newJob(jobClass).withIdentity(name)
+                .usingJobData(DataSourceHarvesterJob.JOB_ITEM_NAME, name).storeDurably().requestRecovery(true)
+                .build();
+        Trigger trigger = TriggerBuilder.newTrigger().withIdentity(name).startAt(startAt).build();
+        scheduler.scheduleJob(job, trigger);
+    }
+
+    private void awaitExecutions(int expected) throws InterruptedException {
+        await(() -> EXECUTIONS.size() >= expected);
+    }
+
+    private void await(BooleanSupplier condition) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(100);
+        }
+    }
+
+    public static class CountingJob implements Job {
+
+        @Override
+        public void execute(JobExecutionContext context) {
+            EXECUTIONS.computeIfAbsent(context.getJobDetail().getKey().getName(), k -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+
+    }
+
+    public static class AdmittedJob extends DataSourceHarvesterJob {
+
+        @Override
+        protected void executeInternal(JobExecutionContext context) {
+            EXECUTIONS.computeIfAbsent(context.getJobDetail().getKey().getName(), k -> new AtomicInteger())
+                    .incrementAndGet();
+        }
+
+    }
+
+}
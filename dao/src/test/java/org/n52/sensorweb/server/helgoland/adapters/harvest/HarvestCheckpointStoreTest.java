@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestCheckpoint;
+
+public class HarvestCheckpointStoreTest {
+
+    @TempDir
+    public Path directory;
+
+    private HarvestCheckpointStore store;
+
+    @BeforeEach
+    public void setUp() {
+        store = new HarvestCheckpointStore();
+        store.setDirectory(directory.toString());
+        store.setMaxAgeInSeconds(TimeUnit.HOURS.toSeconds(1));
+    }
+
+    @Test
+    @DisplayName("Test checkpointing is disabled without a directory")
+    public void disabled() {
+        store.setDirectory("");
+        store.write(createCheckpoint(config("a", "hash")));
+
+        assertThat(store.isEnabled()).isFalse();
+        assertThat(store.read("a")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a checkpoint is read as written")
+    public void write_read() {
+        DataSourceConfiguration config = config("a", "hash");
+        HarvestCheckpoint checkpoint = createCheckpoint(config);
+        checkpoint.addCompletedOffering("offering");
+        checkpoint.addDatasetId(1L);
+        checkpoint.setResumeLink("http://a/next");
+        store.write(checkpoint);
+
+        HarvestCheckpoint read = store.read(config).get();
+        assertThat(read.getItemName()).isEqualTo("a");
+        assertThat(read.getConfigHash()).isEqualTo("hash");
+        assertThat(read.getCompletedOfferings()).containsExactly("offering");
+        assertThat(read.getDatasetIds()).containsExactly(1L);
+        assertThat(read.getResumeLink()).isEqualTo("http://a/next");
+    }
+
+    @Test
+    @DisplayName("Test a checkpoint of a changed configuration is discarded")
+    public void changed_config() {
+        store.write(createCheckpoint(config("a", "hash")));
+
+        assertThat(store.read(config("a", "changed"))).isEmpty();
+        assertThat(store.read("a")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test a checkpoint older than the maximum age is discarded")
+    public void expired() {
+        DataSourceConfiguration config = config("a", "hash");
+        HarvestCheckpoint checkpoint = createCheckpoint(config);
+        checkpoint.setUpdated(new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+        store.write(checkpoint);
+
+        assertThat(store.read(config)).isEmpty();
+        assertThat(store.read("a")).isEmpty();
+
+        store.setMaxAgeInSeconds(0);
+        store.write(checkpoint);
+        assertThat(store.read(config)).isPresent();
+    }
+
+    @Test
+    @DisplayName("Test deleting checkpoints of single and of unconfigured data sources")
+    public void delete_retain() throws IOException {
+        Arrays.asList("a", "b", "c").forEach(name -> store.write(createCheckpoint(config(name, "hash"))));
+        Files.write(directory.resolve("unrelated.txt"), new byte[0]);
+
+        store.delete("a");
+        assertThat(store.read("a")).isEmpty();
+
+        store.retain(Collections.singleton("b"));
+        assertThat(store.read("b")).isPresent();
+        assertThat(store.read("c")).isEmpty();
+        assertThat(directory.resolve("unrelated.txt")).exists();
+    }
+
+    private HarvestCheckpoint createCheckpoint(DataSourceConfiguration config) {
+        HarvestCheckpoint checkpoint = new HarvestCheckpoint(config.getItemName());
+        checkpoint.setConfigHash(config.getConfigHash());
+        return checkpoint;
+    }
+
+    private DataSourceConfiguration config(String itemName, String configHash) {
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName(itemName);
+        config.setConfigHash(configHash);
+        return config;
+    }
+
+}
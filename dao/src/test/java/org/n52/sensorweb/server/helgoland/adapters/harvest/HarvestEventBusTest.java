@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+
+public class HarvestEventBusTest {
+
+    private HarvestEventBus eventBus;
+
+    @AfterEach
+    public void tearDown() {
+        if (eventBus != null) {
+            eventBus.destroy();
+        }
+    }
+
+    @Test
+    @DisplayName("Test failing listeners do not affect other listeners")
+    public void failure_isolation() throws Exception {
+        CountDownLatch received = new CountDownLatch(3);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("failing", (HarvestingListener) event -> {
+            throw new IllegalStateException("failure");
+        });
+        beanFactory.addBean("counting", (HarvestingListener) event -> received.countDown());
+        eventBus = new HarvestEventBus(beanFactory.getBeanProvider(HarvestingListener.class), 10);
+
+        for (int i = 0; i < 3; i++) {
+            eventBus.publish(createEvent("source-" + i));
+        }
+
+        assertThat(received.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    @DisplayName("Test publishing does not wait for slow listeners")
+    public void asynchronous_delivery() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        StaticListableBeanFactory beanFactory = new StaticListableBeanFactory();
+        beanFactory.addBean("blocking", (HarvestingListener) event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        eventBus = new HarvestEventBus(beanFactory.getBeanProvider(HarvestingListener.class), 2);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            eventBus.publish(createEvent("source-" + i));
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // one event is processed, two are queued and the remaining are dropped
+        assertThat(elapsed).isLessThan(1000);
+        assertThat(eventBus.getQueueLength()).isLessThanOrEqualTo(2);
+        release.countDown();
+    }
+
+    private HarvestEvent createEvent(String itemName) {
+        return new HarvestEvent(itemName, 1L, new HarvestSummary(1, 0, 0));
+    }
+
+}
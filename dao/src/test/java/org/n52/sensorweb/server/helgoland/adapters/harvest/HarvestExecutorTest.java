@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.sensorweb.server.helgoland.adapters.config.HarvestPriority;
+
+public class HarvestExecutorTest {
+
+    private HarvestExecutor harvestExecutor;
+
+    private ExecutorService threads;
+
+    @BeforeEach
+    public void setUp() {
+        harvestExecutor = new HarvestExecutor();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        threads.shutdownNow();
+    }
+
+    @Test
+    @DisplayName("Test global concurrency limit")
+    public void concurrency_limit() throws Exception {
+        harvestExecutor.setMaxConcurrentHarvests(2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            String source = "source-" + i;
+            threads.submit(() -> {
+                harvestExecutor.execute(source, HarvestPriority.NORMAL, 1d, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(50);
+                    running.decrementAndGet();
+                });
+                finished.countDown();
+                return null;
+            });
+        }
+        assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(maxRunning.get()).isEqualTo(2);
+        assertThat(harvestExecutor.getStatistics()).hasSize(6);
+    }
+
+    @Test
+    @DisplayName("Test priority classes are served first")
+    public void priority_order() throws Exception {
+        harvestExecutor.setMaxConcurrentHarvests(1);
+        CountDownLatch blocking = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        List<String> order = new CopyOnWriteArrayList<>();
+        threads.submit(() -> {
+            harvestExecutor.execute("blocking", HarvestPriority.NORMAL, 1d, () -> {
+                started.countDown();
+                blocking.await();
+            });
+            return null;
+        });
+        assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+        CountDownLatch finished = new CountDownLatch(3);
+        submit("bulk", HarvestPriority.BULK, order, finished);
+        submit("normal", HarvestPriority.NORMAL, order, finished);
+        submit("critical", HarvestPriority.CRITICAL, order, finished);
+        while (harvestExecutor.getQueueLength() < 3) {
+            Thread.sleep(10);
+        }
+        blocking.countDown();
+
+        assertThat(finished.await(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(order).containsExactly("critical", "normal", "bulk");
+        assertThat(harvestExecutor.getStatistics().get("bulk").getLastWaitMillis()).isPositive();
+    }
+
+    @Test
+    @DisplayName("Test queued harvests are resumed instead of blocking")
+    public void non_blocking_admission() throws Exception {
+        harvestExecutor.setMaxConcurrentHarvests(1);
+        List<String> resumed = new CopyOnWriteArrayList<>();
+        assertThat(harvestExecutor.tryAcquire("running", HarvestPriority.NORMAL, 1d, () -> resumed.add("running")))
+                .isTrue();
+        assertThat(harvestExecutor.tryAcquire("bulk", HarvestPriority.BULK, 1d, () -> resumed.add("bulk")))
+                .isFalse();
+        assertThat(harvestExecutor.tryAcquire("critical", HarvestPriority.CRITICAL, 1d,
+                () -> resumed.add("critical"))).isFalse();
+        // a missed execution of a queued source collapses into the queued one
+        assertThat(harvestExecutor.tryAcquire("bulk", HarvestPriority.BULK, 1d, () -> resumed.add("bulk")))
+                .isFalse();
+        assertThat(harvestExecutor.getQueueLength()).isEqualTo(2);
+        assertThat(resumed).isEmpty();
+
+        harvestExecutor.release("running", 10);
+        assertThat(resumed).containsExactly("critical");
+        assertThat(harvestExecutor.getRunningHarvests()).isEqualTo(1);
+        assertThat(harvestExecutor.tryAcquire("critical", HarvestPriority.CRITICAL, 1d, () -> { })).isTrue();
+
+        harvestExecutor.release("critical", 10);
+        assertThat(resumed).containsExactly("critical", "bulk");
+        harvestExecutor.cancel("bulk");
+        assertThat(harvestExecutor.getRunningHarvests()).isZero();
+        assertThat(harvestExecutor.getQueueLength()).isZero();
+    }
+
+    @Test
+    @DisplayName("Test queue statistics via JMX")
+    public void jmx_statistics() throws Exception {
+        harvestExecutor.execute("source", HarvestPriority.NORMAL, 1d, () -> { });
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.n52.sensorweb.server.helgoland.adapters:type=HarvestExecutorTest");
+        server.registerMBean(harvestExecutor, name);
+        try {
+            assertThat(server.getAttribute(name, "QueueLength")).isEqualTo(0);
+            assertThat(server.getAttribute(name, "MaxConcurrentHarvests")).isEqualTo(2);
+            TabularData statistics = (TabularData) server.getAttribute(name, "Statistics");
+            CompositeData source = (CompositeData) statistics.get(new Object[] { "source" }).get("value");
+            assertThat(source.get("harvests")).isEqualTo(1L);
+        } finally {
+            server.unregisterMBean(name);
+        }
+    }
+
+    private void submit(String source, HarvestPriority priority, List<String> order, CountDownLatch finished) {
+        threads.submit(() -> {
+            harvestExecutor.execute(source, priority, 1d, () -> order.add(source));
+            finished.countDown();
+            return null;
+        });
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.connector.utils.HarvestContext;
+
+public class HarvestGovernorTest {
+
+    private volatile double poolUsage;
+
+    private HarvestGovernor governor;
+
+    private HarvestContext context;
+
+    @BeforeEach
+    public void setUp() {
+        governor = new HarvestGovernor() {
+
+            @Override
+            protected double getPoolUsage() {
+                return poolUsage;
+            }
+
+            @Override
+            protected double getHeapUsage() {
+                return 0d;
+            }
+        };
+        governor.setApiLatencyThreshold(100);
+        governor.setCheckInterval(10);
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName("source");
+        context = new HarvestContext(config);
+        context.setThrottle(governor);
+    }
+
+    @Test
+    @DisplayName("Test slow API requests pause harvests until the latency recovers")
+    public void api_latency() throws Exception {
+        governor.recordApiRequest(1000);
+        assertThat(governor.getOverload()).isPresent();
+
+        CompletableFuture<Void> harvest = CompletableFuture.runAsync(() -> context.safePoint(null));
+        Thread.sleep(100);
+        assertThat(harvest).isNotDone();
+
+        for (int i = 0; i < 20; i++) {
+            governor.recordApiRequest(10);
+        }
+        assertThat(governor.getOverload()).isEmpty();
+        harvest.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    @DisplayName("Test saturated connection pools pause harvests at most for the maximum pause")
+    public void maximum_pause() throws Exception {
+        poolUsage = 1d;
+        governor.setMaxPauseInSeconds(1);
+
+        long start = System.currentTimeMillis();
+        context.safePoint(null);
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(1000);
+    }
+
+    @Test
+    @DisplayName("Test cancelled harvests stop waiting")
+    public void cancellation() throws Exception {
+        poolUsage = 1d;
+
+        CompletableFuture<Void> harvest = CompletableFuture.runAsync(() -> {
+            try {
+                governor.await(context);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        context.cancel("test");
+        harvest.get(5, TimeUnit.SECONDS);
+        assertThat(context.isCancelled()).isTrue();
+    }
+
+    @Test
+    @DisplayName("Test a disabled governor never pauses harvests")
+    public void disabled() {
+        poolUsage = 1d;
+        governor.recordApiRequest(1000);
+        governor.setEnabled(false);
+        assertThat(governor.getOverload()).isEmpty();
+    }
+
+}
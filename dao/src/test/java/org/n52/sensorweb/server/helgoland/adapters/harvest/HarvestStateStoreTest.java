@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabase;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseBuilder;
+import org.springframework.jdbc.datasource.embedded.EmbeddedDatabaseType;
+
+public class HarvestStateStoreTest {
+
+    private EmbeddedDatabase database;
+
+    private HarvestStateStore stateStore;
+
+    @BeforeEach
+    public void setUp() {
+        database = new EmbeddedDatabaseBuilder().setType(EmbeddedDatabaseType.H2).generateUniqueName(true).build();
+        stateStore = new HarvestStateStore();
+        stateStore.setDataSource(database);
+        stateStore.setDefaultFreshnessInSeconds(3600);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        database.shutdown();
+    }
+
+    @Test
+    @DisplayName("Test sources harvested within their freshness window are fresh")
+    public void fresh_sources() {
+        DataSourceConfiguration config = createConfig("source", "http://localhost/sos");
+        assertThat(stateStore.isFresh(config)).isFalse();
+
+        stateStore.recordSuccess(config, new Date());
+        assertThat(stateStore.isFresh(config)).isTrue();
+        assertThat(stateStore.getLastSuccess("source")).isPresent();
+
+        stateStore.recordSuccess(config, new Date(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+        assertThat(stateStore.isFresh(config)).isFalse();
+    }
+
+    @Test
+    @DisplayName("Test sources with a new URL or without freshness window are not fresh")
+    public void stale_sources() {
+        stateStore.recordSuccess(createConfig("source", "http://localhost/sos"), new Date());
+
+        assertThat(stateStore.isFresh(createConfig("source", "http://localhost/other"))).isFalse();
+        DataSourceConfiguration disabled = createConfig("source", "http://localhost/sos");
+        disabled.getJob().setFreshnessInSeconds(0);
+        assertThat(stateStore.isFresh(disabled)).isFalse();
+
+        stateStore.delete("source");
+        assertThat(stateStore.getLastSuccess("source")).isEmpty();
+    }
+
+    @Test
+    @DisplayName("Test hidden datasets expire after the retained generations")
+    public void stale_datasets() {
+        stateStore.setRetainedGenerations(2);
+        assertThat(stateStore.nextGeneration("source")).isEqualTo(1L);
+        assertThat(stateStore.nextGeneration("source")).isEqualTo(2L);
+
+        stateStore.addStaleDatasets("source", Arrays.asList(1L, 2L), 1L);
+        assertThat(stateStore.getStaleDatasets("source")).containsEntry(1L, 1L).containsEntry(2L, 1L);
+        assertThat(stateStore.getStaleDatasets("other")).isEmpty();
+        assertThat(stateStore.isExpired(1L, 3L)).isFalse();
+        assertThat(stateStore.isExpired(1L, 4L)).isTrue();
+
+        stateStore.removeStaleDatasets(Collections.singleton(1L));
+        assertThat(stateStore.getStaleDatasets("source")).containsOnlyKeys(2L);
+
+        stateStore.delete("source");
+        assertThat(stateStore.getStaleDatasets("source")).isEmpty();
+        assertThat(stateStore.nextGeneration("source")).isEqualTo(1L);
+    }
+
+    @Test
+    @DisplayName("Test the harvest state is discarded when the schema is created on startup")
+    public void recreated_schema() {
+        DataSourceConfiguration config = createConfig("source", "http://localhost/sos");
+        stateStore.recordSuccess(config, new Date());
+        stateStore.nextGeneration("source");
+        stateStore.addStaleDatasets("source", Collections.singleton(1L), 1L);
+
+        HarvestStateStore updated = new HarvestStateStore();
+        updated.setDataSource(database);
+        updated.setSchemaAction("update");
+        assertThat(updated.getLastSuccess("source")).isPresent();
+
+        HarvestStateStore recreated = new HarvestStateStore();
+        recreated.setDataSource(database);
+        recreated.setSchemaAction("create-drop");
+        assertThat(recreated.getLastSuccess("source")).isEmpty();
+        assertThat(recreated.getStaleDatasets("source")).isEmpty();
+        assertThat(recreated.nextGeneration("source")).isEqualTo(1L);
+    }
+
+    @Test
+    @DisplayName("Test nodes sharing a database migrate the harvest state schema once")
+    public void concurrent_migration() {
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Void>> nodes = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            HarvestStateStore node = new HarvestStateStore();
+            node.setDataSource(database);
+            nodes.add(CompletableFuture.runAsync(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                node.getLastSuccess("source");
+            }));
+        }
+        start.countDown();
+
+        CompletableFuture.allOf(nodes.toArray(new CompletableFuture[0])).join();
+        JdbcTemplate template = new JdbcTemplate(database);
+        assertThat(template.queryForObject("SELECT COUNT(*) FROM harvest_schema_version", Integer.class))
+                .isEqualTo(3);
+        assertThat(template.queryForObject("SELECT COUNT(*) FROM harvest_schema_lock WHERE locked_by IS NULL",
+                Integer.class)).isEqualTo(1);
+    }
+
+    private DataSourceConfiguration createConfig(String itemName, String url) {
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName(itemName);
+        config.setUrl(url);
+        config.setJob(new DataSourceJobConfiguration());
+        return config;
+    }
+
+}
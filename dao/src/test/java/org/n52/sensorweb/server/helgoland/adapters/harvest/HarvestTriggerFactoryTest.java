@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.harvest;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceConfiguration;
+import org.n52.sensorweb.server.helgoland.adapters.config.DataSourceJobConfiguration;
+import org.quartz.JobKey;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+
+public class HarvestTriggerFactoryTest {
+
+    private static final String HOURLY = "0 0 0/1 * * ?";
+
+    @Test
+    @DisplayName("Test deterministic cron jitter")
+    public void cron_jitter() {
+        String fluggs = HarvestTriggerFactory.jitter(HOURLY, "fluggs", 900);
+        assertThat(fluggs).isEqualTo(HarvestTriggerFactory.jitter(HOURLY, "fluggs", 900));
+        assertThat(fluggs).endsWith(" 0/1 * * ?");
+        String[] fields = fluggs.split(" ");
+        assertThat(Integer.parseInt(fields[1]) * 60 + Integer.parseInt(fields[0])).isBetween(0, 899);
+        assertThat(HarvestTriggerFactory.jitter("0 0/15 * * * ?", "fluggs", 3600))
+                .matches("\\d+ \\d+/15 \\* \\* \\* \\?");
+    }
+
+    @Test
+    @DisplayName("Test cron jitter crossing the hour is carried into the hours field")
+    public void cron_jitter_carry() {
+        // the offset of "sos" is 877s
+        assertThat(HarvestTriggerFactory.jitter("0 50 2 * * ?", "sos", 900)).isEqualTo("37 4 3 * * ?");
+        assertThat(HarvestTriggerFactory.jitter("0 50 0/6 * * ?", "sos", 900)).isEqualTo("37 4 1/6 * * ?");
+        assertThat(HarvestTriggerFactory.jitter("0 50 23 * * ?", "sos", 900)).isEqualTo("37 4 0 * * ?");
+        assertThat(HarvestTriggerFactory.jitter("0 50 * * * ?", "sos", 900)).isEqualTo("37 4 * * * ?");
+    }
+
+    @Test
+    @DisplayName("Test cron jitter which can not be carried stays within the hour")
+    public void cron_jitter_within_hour() {
+        assertThat(HarvestTriggerFactory.jitter("0 50 23 ? * MON", "sos", 900)).isEqualTo("37 54 23 ? * MON");
+        assertThat(HarvestTriggerFactory.jitter("0 10/15 8-17 * * ?", "sos", 900))
+                .isEqualTo("37 14/15 8-17 * * ?");
+        assertThat(HarvestTriggerFactory.jitter("0 20/15 * * * ?", "sos", 900)).isEqualTo("37 24/15 * * * ?");
+    }
+
+    @Test
+    @DisplayName("Test unsupported cron expressions are kept")
+    public void cron_unchanged() {
+        assertThat(HarvestTriggerFactory.jitter(HOURLY, "fluggs", 0)).isEqualTo(HOURLY);
+        assertThat(HarvestTriggerFactory.jitter("0 * * * * ?", "fluggs", 900)).isEqualTo("0 * * * * ?");
+        assertThat(HarvestTriggerFactory.jitter("0/30 0 * * * ?", "fluggs", 900)).isEqualTo("0/30 0 * * * ?");
+    }
+
+    @Test
+    @DisplayName("Test spreading sources within a window")
+    public void spread_window() {
+        DataSourceConfiguration a = createConfig("a", 3600);
+        DataSourceConfiguration b = createConfig("b", 3600);
+        HarvestTriggerFactory factory = new HarvestTriggerFactory();
+        factory.spread(Arrays.asList(b, a));
+        Trigger first = factory.createTrigger(a, JobKey.jobKey("a"));
+        Trigger second = factory.createTrigger(b, JobKey.jobKey("b"));
+        assertThat(first).isInstanceOf(SimpleTrigger.class);
+        assertThat(((SimpleTrigger) first).getRepeatInterval()).isEqualTo(3600000L);
+        long distance = Math.floorMod(second.getStartTime().getTime() - first.getStartTime().getTime(), 3600000L);
+        assertThat(distance).isEqualTo(1800000L);
+    }
+
+    @Test
+    @DisplayName("Test spreading reports the sources with a new offset")
+    public void respread_window() {
+        DataSourceConfiguration a = createConfig("a", 3600);
+        DataSourceConfiguration b = createConfig("b", 3600);
+        HarvestTriggerFactory factory = new HarvestTriggerFactory();
+        assertThat(factory.spread(Arrays.asList(a, b))).containsExactlyInAnyOrder("a", "b");
+        assertThat(factory.spread(Arrays.asList(b, a))).isEmpty();
+        // "a" keeps offset 0, "b" moves from the half to a third of the window
+        assertThat(factory.spread(Arrays.asList(a, b, createConfig("c", 3600)))).containsExactlyInAnyOrder("b", "c");
+    }
+
+    @Test
+    @DisplayName("Test adaptive intervals within their bounds")
+    public void adaptive_interval() {
+        DataSourceConfiguration config = createConfig("a", 3600);
+        config.getJob().setMinIntervalInSeconds(600);
+        config.getJob().setMaxIntervalInSeconds(7200);
+        DataSourceJobConfiguration job = config.getJob();
+        assertThat(HarvestTriggerFactory.nextInterval(job, 1000, false)).isEqualTo(1500);
+        assertThat(HarvestTriggerFactory.nextInterval(job, 6000, false)).isEqualTo(7200);
+        assertThat(HarvestTriggerFactory.nextInterval(job, 1000, true)).isEqualTo(600);
+        assertThat(HarvestTriggerFactory.nextInterval(job, 4000, true)).isEqualTo(2000);
+
+        HarvestTriggerFactory factory = new HarvestTriggerFactory();
+        Trigger initial = factory.createTrigger(config, JobKey.jobKey("a"));
+        Trigger restored = factory.createTrigger(config, JobKey.jobKey("a"), 86400);
+        assertThat(((SimpleTrigger) initial).getRepeatInterval()).isEqualTo(600000L);
+        assertThat(((SimpleTrigger) restored).getRepeatInterval()).isEqualTo(7200000L);
+    }
+
+    private DataSourceConfiguration createConfig(String name, int window) {
+        DataSourceJobConfiguration job = new DataSourceJobConfiguration();
+        job.setEnabled(true);
+        job.setSpreadWindowInSeconds(window);
+        DataSourceConfiguration config = new DataSourceConfiguration();
+        config.setItemName(name);
+        config.setJob(job);
+        return config;
+    }
+
+}
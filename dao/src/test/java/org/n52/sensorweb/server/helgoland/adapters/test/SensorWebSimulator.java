@@ -0,0 +1,558 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server simulating a SOS 2.0 and a SensorThings API with generated content of arbitrary size.
+ * <p>
+ * Each procedure observes all phenomena at its own feature, so the simulator serves
+ * {@code procedures * phenomena} datasets. The SOS provides one offering per procedure and supports
+ * GetCapabilities, GetFeatureOfInterest, GetDataAvailability (KVP) and GetObservation (KVP and POX). The
+ * SensorThings API provides one thing and sensor per procedure and one datastream per dataset with paged
+ * {@code Datastreams} and the {@code Locations} of each thing.
+ */
+public class SensorWebSimulator implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SensorWebSimulator.class);
+
+    private static final String SOS_PATH = "/sos/service";
+
+    private static final String STA_PATH = "/sta/v1.0/";
+
+    private static final String PHENOMENON_TIME_START = "2020-01-01T00:00:00.000Z";
+
+    private static final String PHENOMENON_TIME_END = "2021-01-01T00:00:00.000Z";
+
+    private static final String XML_CONTENT_TYPE = "application/xml; charset=UTF-8";
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
+
+    private static final String NAMESPACES = " xmlns:sos=\"http://www.opengis.net/sos/2.0\""
+            + " xmlns:swes=\"http://www.opengis.net/swes/2.0\" xmlns:ows=\"http://www.opengis.net/ows/1.1\""
+            + " xmlns:gml=\"http://www.opengis.net/gml/3.2\" xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+            + " xmlns:om=\"http://www.opengis.net/om/2.0\" xmlns:sf=\"http://www.opengis.net/sampling/2.0\""
+            + " xmlns:sams=\"http://www.opengis.net/samplingSpatial/2.0\""
+            + " xmlns:gda=\"http://www.opengis.net/sosgda/1.0\""
+            + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"";
+
+    private static final Pattern POX_OPERATION =
+            Pattern.compile("<(?:\\w+:)?(GetObservation|GetFeatureOfInterest|GetDataAvailability)[\\s>]");
+
+    private static final Pattern POX_PROCEDURE = Pattern.compile("<(?:\\w+:)?procedure>([^<]+)</");
+
+    private static final Pattern POX_OFFERING = Pattern.compile("<(?:\\w+:)?offering>([^<]+)</");
+
+    private static final Pattern POX_PHENOMENON = Pattern.compile("<(?:\\w+:)?observedProperty>([^<]+)</");
+
+    private static final Pattern INDEX = Pattern.compile("-(\\d+)$");
+
+    private static final Pattern THING_LOCATIONS = Pattern.compile("Things\\((\\d+)\\)/Locations");
+
+    private final int procedures;
+
+    private final int phenomena;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private volatile int offeredProcedures;
+
+    private volatile boolean postBinding = true;
+
+    private long latency;
+
+    private int pageSize = 100;
+
+    private int threads = 16;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    public SensorWebSimulator(int procedures, int phenomena) {
+        this.procedures = procedures;
+        this.phenomena = phenomena;
+        this.offeredProcedures = procedures;
+    }
+
+    /**
+     * Creates a simulator serving about the given number of datasets.
+     *
+     * @param datasets
+     *            the number of datasets
+     * @param phenomena
+     *            the number of phenomena observed by each procedure
+     * @return the simulator
+     */
+    public static SensorWebSimulator withDatasets(int datasets, int phenomena) {
+        return new SensorWebSimulator(Math.max(1, datasets / phenomena), phenomena);
+    }
+
+    /**
+     * @param latency
+     *            the time (in milliseconds) each response is delayed
+     * @return this
+     */
+    public SensorWebSimulator setLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    /**
+     * @param offeredProcedures
+     *            the number of procedures listed in the SOS capabilities, the datasets of the others disappear
+     * @return this
+     */
+    public SensorWebSimulator setOfferedProcedures(int offeredProcedures) {
+        this.offeredProcedures = Math.min(procedures, offeredProcedures);
+        return this;
+    }
+
+    /**
+     * @param postBinding
+     *            if the SOS capabilities list a POST binding besides the KVP binding
+     * @return this
+     */
+    public SensorWebSimulator setPostBinding(boolean postBinding) {
+        this.postBinding = postBinding;
+        return this;
+    }
+
+    /**
+     * @param pageSize
+     *            the number of datastreams per SensorThings page
+     * @return this
+     */
+    public SensorWebSimulator setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @param threads
+     *            the number of requests served concurrently
+     * @return this
+     */
+    public SensorWebSimulator setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    public SensorWebSimulator start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(SOS_PATH, this::handle);
+        server.createContext(STA_PATH, this::handle);
+        server.start();
+        LOGGER.info("Simulating {} procedures with {} phenomena each at port {}", procedures, phenomena,
+                server.getAddress().getPort());
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getSosUrl() {
+        return getBaseUrl() + SOS_PATH;
+    }
+
+    public String getSensorThingsUrl() {
+        return getBaseUrl() + STA_PATH;
+    }
+
+    public int getDatasetCount() {
+        return procedures * phenomena;
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public void resetRequestCount() {
+        requests.set(0);
+    }
+
+    private String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            String path = exchange.getRequestURI().getPath();
+            if (path.startsWith(STA_PATH)) {
+                respond(exchange, 200, JSON_CONTENT_TYPE, handleSensorThings(exchange));
+            } else {
+                respond(exchange, 200, XML_CONTENT_TYPE, handleSos(exchange));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, XML_CONTENT_TYPE, "");
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Invalid request {}: {}", exchange.getRequestURI(), e.getMessage());
+            respond(exchange, 400, XML_CONTENT_TYPE, exceptionReport(e.getMessage()));
+        }
+    }
+
+    private void respond(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String handleSos(HttpExchange exchange) throws IOException {
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            String body = read(exchange.getRequestBody());
+            Matcher operation = POX_OPERATION.matcher(body);
+            if (!operation.find()) {
+                throw new IllegalArgumentException("unsupported request");
+            }
+            return dispatch(operation.group(1), find(POX_PROCEDURE, body), find(POX_OFFERING, body),
+                    find(POX_PHENOMENON, body));
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        return dispatch(params.getOrDefault("request", ""), params.get("procedure"), params.get("offering"),
+                params.get("observedproperty"));
+    }
+
+    private String dispatch(String operation, String procedure, String offering, String phenomenon) {
+        switch (operation) {
+            case "GetCapabilities":
+                return capabilities();
+            case "GetFeatureOfInterest":
+                return featureOfInterest(index(procedure));
+            case "GetDataAvailability":
+                return dataAvailability(index(procedure));
+            case "GetObservation":
+                if (procedure != null) {
+                    return observations(index(procedure), phenomenon != null ? index(phenomenon) : -1);
+                }
+                return observations(index(offering), -1);
+            default:
+                throw new IllegalArgumentException("unsupported operation " + operation);
+        }
+    }
+
+    private String capabilities() {
+        StringBuilder xml = new StringBuilder(1024 + procedures * (800 + phenomena * 60));
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:Capabilities version=\"2.0.0\"")
+                .append(NAMESPACES).append('>')
+                .append("<ows:ServiceIdentification><ows:Title>Sensor Web Simulator</ows:Title>")
+                .append("<ows:ServiceType codeSpace=\"http://opengeospatial.net\">OGC:SOS</ows:ServiceType>")
+                .append("<ows:ServiceTypeVersion>2.0.0</ows:ServiceTypeVersion></ows:ServiceIdentification>")
+                .append("<ows:ServiceProvider><ows:ProviderName>52North</ows:ProviderName>")
+                .append("<ows:ServiceContact><ows:IndividualName>Simulator</ows:IndividualName>")
+                .append("</ows:ServiceContact></ows:ServiceProvider><ows:OperationsMetadata>");
+        for (String operation : new String[] { "GetCapabilities", "GetFeatureOfInterest", "GetObservation",
+            "GetDataAvailability" }) {
+            xml.append("<ows:Operation name=\"").append(operation).append("\"><ows:DCP><ows:HTTP>")
+                    .append("<ows:Get xlink:href=\"").append(getSosUrl()).append("?\">")
+                    .append(contentTypeConstraint("application/x-kvp")).append("</ows:Get>");
+            if (postBinding) {
+                xml.append("<ows:Post xlink:href=\"").append(getSosUrl()).append("\">")
+                        .append(contentTypeConstraint("application/xml")).append("</ows:Post>");
+            }
+            xml.append("</ows:HTTP></ows:DCP></ows:Operation>");
+        }
+        xml.append("</ows:OperationsMetadata><sos:contents><sos:Contents>");
+        for (int procedure = 0; procedure < offeredProcedures; procedure++) {
+            xml.append("<swes:offering><sos:ObservationOffering>")
+                    .append("<swes:identifier>").append(offeringId(procedure)).append("</swes:identifier>")
+                    .append("<swes:name>Offering ").append(procedure).append("</swes:name>")
+                    .append("<swes:procedure>").append(procedureId(procedure)).append("</swes:procedure>")
+                    .append("<swes:procedureDescriptionFormat>http://www.opengis.net/sensorml/2.0")
+                    .append("</swes:procedureDescriptionFormat>");
+            for (int phenomenon = 0; phenomenon < phenomena; phenomenon++) {
+                xml.append("<swes:observableProperty>").append(phenomenonId(phenomenon))
+                        .append("</swes:observableProperty>");
+            }
+            xml.append("<sos:phenomenonTime>").append(timePeriod("pt_" + procedure)).append("</sos:phenomenonTime>")
+                    .append("<sos:responseFormat>http://www.opengis.net/om/2.0</sos:responseFormat>")
+                    .append("<sos:observationType>")
+                    .append("http://www.opengis.net/def/observationType/OGC-OM/2.0/OM_Measurement")
+                    .append("</sos:observationType></sos:ObservationOffering></swes:offering>");
+        }
+        return xml.append("</sos:Contents></sos:contents></sos:Capabilities>").toString();
+    }
+
+    private String contentTypeConstraint(String contentType) {
+        return "<ows:Constraint name=\"Content-Type\"><ows:AllowedValues><ows:Value>" + contentType
+                + "</ows:Value></ows:AllowedValues></ows:Constraint>";
+    }
+
+    private String featureOfInterest(int procedure) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:GetFeatureOfInterestResponse" + NAMESPACES + ">"
+                + "<sos:featureMember><sams:SF_SpatialSamplingFeature gml:id=\"" + featureId(procedure) + "\">"
+                + "<gml:identifier codeSpace=\"http://www.opengis.net/def/nil/OGC/0/unknown\">"
+                + featureId(procedure) + "</gml:identifier><gml:name>Feature " + procedure + "</gml:name>"
+                + "<sf:type xlink:href=\"http://www.opengis.net/def/samplingFeatureType/OGC-OM/2.0/"
+                + "SF_SamplingPoint\"/><sf:sampledFeature xlink:href=\"http://www.opengis.net/def/nil/OGC/0/"
+                + "unknown\"/><sams:shape><gml:Point gml:id=\"point_" + procedure + "\">"
+                + "<gml:pos srsName=\"http://www.opengis.net/def/crs/EPSG/0/4326\">" + latitude(procedure) + " "
+                + longitude(procedure) + "</gml:pos></gml:Point></sams:shape></sams:SF_SpatialSamplingFeature>"
+                + "</sos:featureMember></sos:GetFeatureOfInterestResponse>";
+    }
+
+    private String dataAvailability(int procedure) {
+        StringBuilder xml = new StringBuilder(512 + phenomena * 700);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><gda:GetDataAvailabilityResponse")
+                .append(NAMESPACES).append('>');
+        for (int phenomenon = 0; phenomenon < phenomena; phenomenon++) {
+            xml.append("<gda:dataAvailabilityMember gml:id=\"dam_").append(phenomenon).append("\">")
+                    .append("<gda:procedure xlink:href=\"").append(procedureId(procedure))
+                    .append("\" xlink:title=\"Procedure ").append(procedure).append("\"/>")
+                    .append("<gda:observedProperty xlink:href=\"").append(phenomenonId(phenomenon))
+                    .append("\" xlink:title=\"Phenomenon ").append(phenomenon).append("\"/>")
+                    .append("<gda:featureOfInterest xlink:href=\"").append(featureId(procedure))
+                    .append("\" xlink:title=\"Feature ").append(procedure).append("\"/>")
+                    .append("<gda:phenomenonTime>").append(timePeriod("tp_" + phenomenon))
+                    .append("</gda:phenomenonTime></gda:dataAvailabilityMember>");
+        }
+        return xml.append("</gda:GetDataAvailabilityResponse>").toString();
+    }
+
+    private String observations(int procedure, int phenomenon) {
+        StringBuilder xml = new StringBuilder(512 + phenomena * 1000);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><sos:GetObservationResponse").append(NAMESPACES)
+                .append('>');
+        for (int i = phenomenon < 0 ? 0 : phenomenon; i < (phenomenon < 0 ? phenomena : phenomenon + 1); i++) {
+            xml.append("<sos:observationData><om:OM_Observation gml:id=\"o_").append(i).append("\">")
+                    .append("<om:type xlink:href=\"http://www.opengis.net/def/observationType/OGC-OM/2.0/")
+                    .append("OM_Measurement\"/><om:phenomenonTime><gml:TimeInstant gml:id=\"pt_").append(i)
+                    .append("\"><gml:timePosition>").append(PHENOMENON_TIME_END)
+                    .append("</gml:timePosition></gml:TimeInstant></om:phenomenonTime>")
+                    .append("<om:resultTime><gml:TimeInstant gml:id=\"rt_").append(i)
+                    .append("\"><gml:timePosition>").append(PHENOMENON_TIME_END)
+                    .append("</gml:timePosition></gml:TimeInstant></om:resultTime>")
+                    .append("<om:procedure xlink:href=\"").append(procedureId(procedure)).append("\"/>")
+                    .append("<om:observedProperty xlink:href=\"").append(phenomenonId(i)).append("\"/>")
+                    .append("<om:featureOfInterest xlink:href=\"").append(featureId(procedure))
+                    .append("\" xlink:title=\"Feature ").append(procedure).append("\"/>")
+                    .append("<om:result xsi:type=\"gml:MeasureType\" uom=\"degC\">").append(value(procedure, i))
+                    .append("</om:result></om:OM_Observation></sos:observationData>");
+        }
+        return xml.append("</sos:GetObservationResponse>").toString();
+    }
+
+    private String timePeriod(String id) {
+        return "<gml:TimePeriod gml:id=\"" + id + "\"><gml:beginPosition>" + PHENOMENON_TIME_START
+                + "</gml:beginPosition><gml:endPosition>" + PHENOMENON_TIME_END
+                + "</gml:endPosition></gml:TimePeriod>";
+    }
+
+    private String exceptionReport(String message) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><ows:ExceptionReport version=\"2.0.0\"" + NAMESPACES
+                + "><ows:Exception exceptionCode=\"InvalidParameterValue\"><ows:ExceptionText>" + message
+                + "</ows:ExceptionText></ows:Exception></ows:ExceptionReport>";
+    }
+
+    private String handleSensorThings(HttpExchange exchange) {
+        String path = exchange.getRequestURI().getPath().substring(STA_PATH.length());
+        Matcher locations = THING_LOCATIONS.matcher(path);
+        if (locations.matches()) {
+            return "{\"value\":[" + location(Integer.parseInt(locations.group(1))) + "]}";
+        }
+        if (!path.startsWith("Datastreams")) {
+            throw new IllegalArgumentException("unsupported resource " + path);
+        }
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        int skip = Integer.parseInt(params.getOrDefault("$skip", "0"));
+        String expand = params.getOrDefault("$expand", "");
+        int end = Math.min(getDatasetCount(), skip + pageSize);
+        StringBuilder json = new StringBuilder(256 + pageSize * 900);
+        json.append("{\"@iot.count\":").append(getDatasetCount());
+        if (end < getDatasetCount()) {
+            json.append(",\"@iot.nextLink\":\"").append(getSensorThingsUrl()).append("Datastreams?$skip=")
+                    .append(end).append("&$expand=").append(encode(expand)).append('"');
+        }
+        json.append(",\"value\":[");
+        for (int datastream = skip; datastream < end; datastream++) {
+            if (datastream > skip) {
+                json.append(',');
+            }
+            json.append(datastream(datastream, expand.contains("Observations")));
+        }
+        return json.append("]}").toString();
+    }
+
+    private String datastream(int datastream, boolean withObservation) {
+        int thing = datastream / phenomena;
+        int phenomenon = datastream % phenomena;
+        String self = getSensorThingsUrl() + "Datastreams(" + datastream + ")";
+        StringBuilder json = new StringBuilder(900);
+        json.append("{\"@iot.id\":").append(datastream).append(",\"@iot.selfLink\":\"").append(self)
+                .append("\",\"name\":\"Datastream ").append(datastream)
+                .append("\",\"description\":\"Simulated datastream\",")
+                .append("\"unitOfMeasurement\":{\"name\":\"degree Celsius\",\"symbol\":\"degC\",")
+                .append("\"definition\":\"http://unitsofmeasure.org/ucum.html#para-30\"},")
+                .append("\"observationType\":\"http://www.opengis.net/def/observationType/OGC-OM/2.0/")
+                .append("OM_Measurement\",\"Observations@iot.navigationLink\":\"").append(self)
+                .append("/Observations\",\"Sensor\":{\"@iot.id\":").append(thing).append(",\"name\":\"Sensor ")
+                .append(thing).append("\",\"description\":\"Simulated sensor\",")
+                .append("\"encodingType\":\"application/pdf\",\"metadata\":\"none\"},\"Thing\":{\"@iot.id\":")
+                .append(thing).append(",\"name\":\"Thing ").append(thing)
+                .append("\",\"description\":\"Simulated thing\",\"Locations@iot.navigationLink\":\"")
+                .append(getSensorThingsUrl()).append("Things(").append(thing).append(")/Locations\"},")
+                .append("\"ObservedProperty\":{\"@iot.id\":").append(phenomenon)
+                .append(",\"name\":\"Phenomenon ").append(phenomenon)
+                .append("\",\"description\":\"Simulated phenomenon\",\"definition\":\"")
+                .append(phenomenonId(phenomenon)).append("\"}");
+        if (withObservation) {
+            json.append(",\"Observations\":[{\"@iot.id\":").append(datastream)
+                    .append(",\"phenomenonTime\":\"").append(PHENOMENON_TIME_END).append("\",\"resultTime\":\"")
+                    .append(PHENOMENON_TIME_END).append("\",\"result\":").append(value(thing, phenomenon))
+                    .append('}').append(']');
+        }
+        return json.append('}').toString();
+    }
+
+    private String location(int thing) {
+        return "{\"@iot.id\":" + thing + ",\"name\":\"Location " + thing + "\",\"description\":\"Simulated "
+                + "location\",\"encodingType\":\"application/vnd.geo+json\",\"location\":{\"type\":\"Point\","
+                + "\"coordinates\":[" + longitude(thing) + "," + latitude(thing) + "]}}";
+    }
+
+    private String offeringId(int procedure) {
+        return "offering-" + procedure;
+    }
+
+    private String procedureId(int procedure) {
+        return "procedure-" + procedure;
+    }
+
+    private String phenomenonId(int phenomenon) {
+        return "phenomenon-" + phenomenon;
+    }
+
+    private String featureId(int procedure) {
+        return "feature-" + procedure;
+    }
+
+    private String latitude(int procedure) {
+        return String.format(Locale.ROOT, "%.6f", -80.0 + (procedure * 0.0137) % 160.0);
+    }
+
+    private String longitude(int procedure) {
+        return String.format(Locale.ROOT, "%.6f", -170.0 + (procedure * 0.0291) % 340.0);
+    }
+
+    private String value(int procedure, int phenomenon) {
+        return String.format(Locale.ROOT, "%.2f", (procedure * 31 + phenomenon * 7) % 400 / 10.0);
+    }
+
+    private int index(String identifier) {
+        Matcher matcher = INDEX.matcher(identifier == null ? "" : identifier);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("unknown identifier " + identifier);
+        }
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    private String find(Pattern pattern, String body) {
+        Matcher matcher = pattern.matcher(body);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    private Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int separator = param.indexOf('=');
+                if (separator > 0) {
+                    params.put(normalize(decode(param.substring(0, separator))),
+                            decode(param.substring(separator + 1)));
+                }
+            }
+        }
+        return params;
+    }
+
+    private String normalize(String key) {
+        // KVP parameter names are case insensitive, SensorThings query options are not
+        return key.startsWith("$") ? key : key.toLowerCase(Locale.ROOT);
+    }
+
+    private String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String encode(String value) {
+        return value.replace(" ", "%20");
+    }
+
+    private String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015-2021 52°North Initiative for Geospatial Open Source
+ * Software GmbH
+ *
+ * This program is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 as published
+ * by the Free Software Foundation.
+ *
+ * If the program is linked with libraries which are licensed under one of
+ * the following licenses, the combination of the program with the linked
+ * library is not considered a "derivative work" of the program:
+ *
+ *     - Apache License, version 2.0
+ *     - Apache Software License, version 1.0
+ *     - GNU Lesser General Public License, version 3
+ *     - Mozilla Public License, versions 1.0, 1.1 and 2.0
+ *     - Common Development and Distribution License (CDDL), version 1.0
+ *
+ * Therefore the distribution of the program linked with libraries licensed
+ * under the aforementioned licenses, is permitted by the copyright holders
+ * if the distribution is compliant with both the GNU General Public License
+ * version 2 and the aforementioned licenses.
+ *
+ * This program is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY
+ * or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License
+ * for more details.
+ */
+package org.n52.sensorweb.server.helgoland.adapters.web;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReplayHttpClientTest {
+
+    private static final String URI = "http://localhost/service";
+
+    @TempDir
+    public Path directory;
+
+    private final StubHttpClient upstream = new StubHttpClient();
+
+    @Test
+    @DisplayName("Test replayed responses equal the recorded ones")
+    public void record_and_replay() throws Exception {
+        HttpResponse recorded = new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.RECORD)
+                .executeGet(URI + "?request=GetCapabilities");
+        HttpResponse replayed = new ReplayHttpClient(new StubHttpClient(), directory, ReplayHttpClient.Mode.REPLAY)
+                .executeGet(URI + "?request=GetCapabilities");
+
+        assertThat(upstream.requests.get()).isEqualTo(1);
+        assertThat(replayed.getStatusLine().getStatusCode()).isEqualTo(recorded.getStatusLine().getStatusCode());
+        assertThat(replayed.getFirstHeader("Content-Type").getValue())
+                .isEqualTo(recorded.getFirstHeader("Content-Type").getValue());
+        assertThat(EntityUtils.toByteArray(replayed.getEntity()))
+                .isEqualTo(EntityUtils.toByteArray(recorded.getEntity()))
+                .isEqualTo(StubHttpClient.body("GET " + URI + "?request=GetCapabilities"));
+    }
+
+    @Test
+    @DisplayName("Test requests are distinguished by their payload")
+    public void payload_keys() throws Exception {
+        ReplayHttpClient client = new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.REPLAY_OR_RECORD);
+        HttpResponse first = client.executePost(URI, "<GetObservation>a</GetObservation>");
+        HttpResponse second = client.executePost(URI, "<GetObservation>b</GetObservation>");
+        HttpResponse replayed = client.executePost(URI, "<GetObservation>a</GetObservation>");
+
+        assertThat(upstream.requests.get()).isEqualTo(2);
+        assertThat(EntityUtils.toString(first.getEntity())).isNotEqualTo(EntityUtils.toString(second.getEntity()));
+        assertThat(EntityUtils.toString(replayed.getEntity()))
+                .isEqualTo("POST " + URI + " <GetObservation>a</GetObservation>");
+    }
+
+    @Test
+    @DisplayName("Test replaying unknown requests fails")
+    public void replay_missing() {
+        ReplayHttpClient client = new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.REPLAY);
+
+        assertThatThrownBy(() -> client.executeGet(URI)).isInstanceOf(IOException.class);
+        assertThat(upstream.requests.get()).isZero();
+    }
+
+    @Test
+    @DisplayName("Test replayed responses are delayed")
+    public void latency_shaping() throws Exception {
+        upstream.latency = 200;
+        new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.RECORD).executeGet(URI);
+
+        ReplayHttpClient instant = new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.REPLAY);
+        long start = System.currentTimeMillis();
+        instant.executeGet(URI);
+        assertThat(System.currentTimeMillis() - start).isLessThan(200);
+
+        ReplayHttpClient shaped = new ReplayHttpClient(upstream, directory, ReplayHttpClient.Mode.REPLAY);
+        shaped.setLatencyFactor(2);
+        shaped.setFixedLatency(100);
+        start = System.currentTimeMillis();
+        shaped.executeGet(URI);
+        assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(500);
+    }
+
+    private static class StubHttpClient implements HttpClient {
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private long latency;
+
+        static byte[] body(String request) {
+            return request.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public HttpResponse executeGet(String uri) throws IOException {
+            return executeMethod(new HttpGet(uri));
+        }
+
+        @Override
+        public HttpResponse executePost(String uri, String payloadToSend) throws IOException {
+            return executePost(uri, payloadToSend, ContentType.TEXT_XML);
+        }
+
+        @Override
+        public HttpResponse executePost(String uri, String payloadToSend, ContentType contentType)
+                throws IOException {
+            return executePost(uri, new StringEntity(payloadToSend, contentType));
+        }
+
+        @Override
+        public HttpResponse executePost(String uri, HttpEntity payloadToSend) throws IOException {
+            HttpPost post = new HttpPost(uri);
+            post.setEntity(payloadToSend);
+            return executeMethod(post);
+        }
+
+        @Override
+        public HttpResponse executeMethod(HttpRequestBase method) throws IOException {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String request = method.getMethod() + " " + method.getURI();
+            if (method instanceof HttpEntityEnclosingRequest) {
+                request += " " + EntityUtils.toString(((HttpEntityEnclosingRequest) method).getEntity());
+            }
+            BasicHttpResponse response = new BasicHttpResponse(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+            response.addHeader("Content-Type", "text/plain; charset=UTF-8");
+            ByteArrayEntity entity = new ByteArrayEntity(body(request), ContentType.TEXT_PLAIN);
+            response.setEntity(entity);
+            return response;
+        }
+    }
+}
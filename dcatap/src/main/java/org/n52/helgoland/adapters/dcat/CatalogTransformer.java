@@ -69,7 +69,7 @@ import org.locationtech.jts.io.geojson.GeoJsonWriter;
 import org.n52.janmayen.Optionals;
 import org.n52.janmayen.i18n.MultilingualString;
 import org.n52.sensorweb.server.db.repositories.core.ServiceRepository;
-import org.n52.sensorweb.server.helgoland.adapters.connector.utils.ServiceConstellation;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestEvent;
 import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestingListener;
 import org.n52.series.db.beans.ServiceEntity;
 import org.n52.shetland.ogc.gml.time.Time;
@@ -107,6 +107,7 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import com.google.common.base.Strings;
 
@@ -158,26 +159,25 @@ public class CatalogTransformer implements HarvestingListener, CatalogProvider {
     }
 
     @Override
-    public void onResult(ServiceConstellation result) {
-        if (result == null) {
+    @Transactional(readOnly = true)
+    public void onResult(HarvestEvent event) {
+        Optional<ServiceEntity> service = serviceRepository.findById(event.getServiceId());
+        if (!service.isPresent()) {
+            LOG.debug("service of {} was removed meanwhile", event.getItemName());
             return;
         }
 
-        ServiceEntity service = serviceRepository.findByNameAndUrlAndType(result.getService().getName(),
-                result.getService().getUrl(), result.getService().getType());
-
         lock.writeLock().lock();
         try {
-
-            SosCapabilities capabilities = getCapabilities(result);
+            SosCapabilities capabilities = getCapabilities(service.get());
 
             catalog.removeAll(DCTerms.modified);
             catalog.addProperty(DCTerms.modified, now(), XSDDatatype.XSDdateTime);
 
-            createServiceBasedDatasets(service, capabilities);
+            createServiceBasedDatasets(service.get(), capabilities);
             modelPersistence.write(model);
         } catch (DecodingException e) {
-            LOG.warn("could not parse SOS capabilities document", e);
+            LOG.warn("could not parse SOS capabilities document of {}", event.getItemName(), e);
         } finally {
             lock.writeLock().unlock();
         }
@@ -600,10 +600,13 @@ public class CatalogTransformer implements HarvestingListener, CatalogProvider {
         }
     }
 
-    private SosCapabilities getCapabilities(ServiceConstellation result) throws DecodingException {
+    private SosCapabilities getCapabilities(ServiceEntity service) throws DecodingException {
+        if (service.getServiceMetadata() == null) {
+            throw new DecodingException("no SOS capabilities document stored");
+        }
         XmlObject xmlResponse;
         try {
-            xmlResponse = XmlObject.Factory.parse(result.getService().getServiceMetadata().getMetadata());
+            xmlResponse = XmlObject.Factory.parse(service.getServiceMetadata().getMetadata());
         } catch (XmlException e) {
             throw new DecodingException(e);
         }
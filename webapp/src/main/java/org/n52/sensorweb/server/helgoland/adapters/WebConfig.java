@@ -32,16 +32,27 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.http.HttpHeaders;
 import org.n52.janmayen.http.HTTPMethods;
+import org.n52.sensorweb.server.helgoland.adapters.da.DataSourceRouting;
+import org.n52.sensorweb.server.helgoland.adapters.da.ReadReplicaConfigurer;
+import org.n52.sensorweb.server.helgoland.adapters.harvest.HarvestGovernor;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.ImportResource;
+import org.springframework.core.Ordered;
 import org.springframework.http.MediaType;
+import org.springframework.web.servlet.HandlerInterceptor;
 import org.springframework.web.servlet.View;
 import org.springframework.web.servlet.config.annotation.ContentNegotiationConfigurer;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ViewResolverRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.web.servlet.view.json.MappingJackson2JsonView;
+import org.springframework.web.util.UrlPathHelper;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 @EnableWebMvc
 @Configuration
@@ -50,6 +61,66 @@ public class WebConfig implements WebMvcConfigurer {
 
     private static final String CSV = "csv";
 
+    private static final String REQUEST_START = WebConfig.class.getName() + ".requestStart";
+
+    private static final UrlPathHelper URL_PATH_HELPER = new UrlPathHelper();
+
+    @Autowired(required = false)
+    private HarvestGovernor harvestGovernor;
+
+    @Autowired(required = false)
+    private ReadReplicaConfigurer readReplicas;
+
+    @Override
+    public void addInterceptors(InterceptorRegistry registry) {
+        if (harvestGovernor != null) {
+            // reports API response times, so harvests pause while the API is slow
+            registry.addInterceptor(new HandlerInterceptor() {
+
+                @Override
+                public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+                        Object handler) {
+                    request.setAttribute(REQUEST_START, System.currentTimeMillis());
+                    return true;
+                }
+
+                @Override
+                public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+                        Object handler, Exception ex) {
+                    Object start = request.getAttribute(REQUEST_START);
+                    if (start instanceof Long) {
+                        harvestGovernor.recordApiRequest(System.currentTimeMillis() - (Long) start);
+                    }
+                }
+            });
+        }
+        if (readReplicas != null && readReplicas.isEnabled()) {
+            // lets API reads use a read replica, harvests keep using the primary database. Runs first, so entity
+            // managers opened for the request know their reads are routed.
+            registry.addInterceptor(new HandlerInterceptor() {
+
+                @Override
+                public boolean preHandle(HttpServletRequest request, HttpServletResponse response,
+                        Object handler) {
+                    if (HTTPMethods.GET.equalsIgnoreCase(request.getMethod())) {
+                        int maxLag = readReplicas.getMaxLagInSeconds(
+                                URL_PATH_HELPER.getPathWithinApplication(request));
+                        if (maxLag >= 0) {
+                            readReplicas.routeReads(maxLag);
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public void afterCompletion(HttpServletRequest request, HttpServletResponse response,
+                        Object handler, Exception ex) {
+                    DataSourceRouting.clear();
+                }
+            }).order(Ordered.HIGHEST_PRECEDENCE);
+        }
+    }
+
     @Override
     public void addCorsMappings(CorsRegistry registry) {
         registry.addMapping("/*")